@@ -0,0 +1,355 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class AccessLog {
+
+	/*
+	 * Constants for the log. The levels a record can have, most severe first,
+	 * and how long the writer sleeps when there is nothing to write.
+	 */
+	public static final int ERROR = 0;
+	public static final int WARN = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+	private static final String[] LEVELS = { "ERROR", "WARN", "INFO", "DEBUG" };
+	private static final long IDLE_SLEEP = 5;
+
+	/*
+	 * Settings for the log. The most detailed level written, the fraction of
+	 * access records kept, the file written and how large it may grow before it
+	 * is rotated, how many rotated files are kept, and whether records are also
+	 * echoed to the console.
+	 */
+	private static volatile int level = INFO;
+	private static volatile double sampleRate = 1.0;
+	private static File logFile;
+	private static long maxFileBytes;
+	private static int maxFiles;
+	private static boolean console;
+
+	/*
+	 * Variables for the ring buffer which carries records from request threads
+	 * to the writer without locking. Each slot has a sequence number saying
+	 * whether it is free for the producer claiming that position or full for
+	 * the consumer, so a producer only ever does one compare-and-set to claim a
+	 * slot. When every slot is full a record is dropped and counted rather than
+	 * making the request wait.
+	 */
+	private static AtomicReferenceArray<Record> slots;
+	private static AtomicLongArray sequences;
+	private static int mask;
+	private static final AtomicLong tail = new AtomicLong();
+	private static long head;
+	private static final AtomicLong dropped = new AtomicLong();
+
+	/*
+	 * Variables for the writer. Its thread, whether it should keep running, the
+	 * stream to the current file and how much has been written to it, and the
+	 * drops last reported in the log.
+	 */
+	private static Thread writer;
+	private static volatile boolean running;
+	private static Writer output;
+	private static long fileBytes;
+	private static long droppedReported;
+
+	// Start the log with the given settings. Until this is called, and after it
+	// is closed, records go straight to the console.
+	public static synchronized void open(int level, double sampleRate, File logFile, long maxFileBytes, int maxFiles,
+			int bufferSize, boolean console) {
+		AccessLog.level = level;
+		AccessLog.sampleRate = sampleRate;
+		AccessLog.logFile = logFile;
+		AccessLog.maxFileBytes = maxFileBytes;
+		AccessLog.maxFiles = maxFiles;
+		AccessLog.console = console;
+		int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+		slots = new AtomicReferenceArray<>(capacity);
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+		mask = capacity - 1;
+		tail.set(0);
+		head = 0;
+		try {
+			openFile();
+		} catch (IOException e) {
+			System.out.println("Error opening log file " + logFile + ", logging to the console only");
+			AccessLog.console = true;
+		}
+		running = true;
+		writer = new Thread(AccessLog::writeRecords, "access-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// Stop the writer once it has written every record already logged
+	public static synchronized void close() {
+		if (writer == null) {
+			return;
+		}
+		running = false;
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+		}
+		writer = null;
+		slots = null;
+	}
+
+	// Change the most detailed level written
+	public static void setLevel(int newLevel) {
+		level = newLevel;
+	}
+
+	// Return the level with the given name, or -1 if there is none
+	public static int parseLevel(String name) {
+		for (int i = 0; i < LEVELS.length; i++) {
+			if (LEVELS[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Return the number of records dropped because the buffer was full
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	public static void error(String message) {
+		log(ERROR, message, null);
+	}
+
+	public static void warn(String message) {
+		log(WARN, message, null);
+	}
+
+	public static void info(String message) {
+		log(INFO, message, null);
+	}
+
+	public static void debug(String message) {
+		log(DEBUG, message, null);
+	}
+
+	// Log a served request. Only the given fraction of requests are logged.
+	// Times are from System.nanoTime(), and firstByteAt is 0 if nothing was sent.
+	public static void access(String client, String method, String url, String outcome, int status, long startedAt,
+			long firstByteAt, long finishedAt) {
+		if (level < INFO || (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+			return;
+		}
+		Access access = new Access();
+		access.client = client;
+		access.method = method;
+		access.url = url;
+		access.outcome = outcome;
+		access.status = status;
+		access.firstByteMicros = firstByteAt == 0 ? -1 : (firstByteAt - startedAt) / 1000;
+		access.totalMicros = (finishedAt - startedAt) / 1000;
+		log(INFO, null, access);
+	}
+
+	// Put a record in the ring buffer, or drop it if the buffer is full. The
+	// record is only formatted later, on the writer thread.
+	private static void log(int recordLevel, String message, Access access) {
+		if (recordLevel > level) {
+			return;
+		}
+		Record record = new Record(System.currentTimeMillis(), recordLevel, message, access);
+		AtomicReferenceArray<Record> ring = slots;
+		if (ring == null) {
+			System.out.println(format(record));
+			return;
+		}
+		while (true) {
+			long position = tail.get();
+			int slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					ring.set(slot, record);
+					sequences.set(slot, position + 1);
+					return;
+				}
+			} else if (difference < 0) {
+				dropped.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	// Take the next record from the ring buffer, or return null if it is empty.
+	// Only the writer thread calls this.
+	private static Record poll() {
+		int slot = (int) head & mask;
+		if (sequences.get(slot) != head + 1) {
+			return null;
+		}
+		Record record = slots.get(slot);
+		slots.set(slot, null);
+		sequences.set(slot, head + mask + 1);
+		head++;
+		return record;
+	}
+
+	// Write records as they arrive, flushing whenever the buffer has been
+	// emptied. Once stopped, write whatever is left and close the file.
+	private static void writeRecords() {
+		while (true) {
+			boolean stopping = !running;
+			Record record;
+			boolean wrote = false;
+			while ((record = poll()) != null) {
+				write(format(record));
+				wrote = true;
+			}
+			long drops = dropped.get();
+			if (drops != droppedReported) {
+				write(format(new Record(System.currentTimeMillis(), WARN,
+						(drops - droppedReported) + " log records dropped, buffer full", null)));
+				droppedReported = drops;
+				wrote = true;
+			}
+			if (wrote) {
+				flush();
+			}
+			if (stopping) {
+				break;
+			}
+			if (!wrote) {
+				try {
+					Thread.sleep(IDLE_SLEEP);
+				} catch (InterruptedException e) {
+					running = false;
+				}
+			}
+		}
+		try {
+			if (output != null) {
+				output.close();
+			}
+		} catch (IOException e) {
+		}
+		output = null;
+	}
+
+	// Write one line to the file (rotating it first if it is full) and, if
+	// asked, the console
+	private static void write(String line) {
+		if (console) {
+			System.out.println(line);
+		}
+		if (output == null) {
+			return;
+		}
+		try {
+			if (fileBytes >= maxFileBytes) {
+				rotate();
+			}
+			output.write(line);
+			output.write(System.lineSeparator());
+			fileBytes += line.length() + 1;
+		} catch (IOException e) {
+			System.out.println("Error writing to log file " + logFile);
+		}
+	}
+
+	private static void flush() {
+		try {
+			if (output != null) {
+				output.flush();
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	// Move each kept file along one (the oldest is deleted), and start a new one
+	private static void rotate() throws IOException {
+		output.close();
+		new File(logFile.getPath() + "." + maxFiles).delete();
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			File older = new File(logFile.getPath() + "." + i);
+			if (older.exists()) {
+				older.renameTo(new File(logFile.getPath() + "." + (i + 1)));
+			}
+		}
+		if (maxFiles > 0) {
+			logFile.renameTo(new File(logFile.getPath() + ".1"));
+		} else {
+			logFile.delete();
+		}
+		openFile();
+	}
+
+	// Open the log file for appending
+	private static void openFile() throws IOException {
+		output = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8));
+		fileBytes = logFile.length();
+	}
+
+	// Format a record as one line of space separated key=value fields
+	private static String format(Record record) {
+		StringBuilder line = new StringBuilder();
+		line.append(Instant.ofEpochMilli(record.time)).append(" level=").append(LEVELS[record.level]);
+		if (record.access != null) {
+			Access access = record.access;
+			line.append(" client=").append(access.client).append(" method=").append(access.method).append(" url=")
+					.append(quote(access.url)).append(" outcome=").append(access.outcome).append(" status=")
+					.append(access.status).append(" ttfb_us=").append(access.firstByteMicros).append(" total_us=")
+					.append(access.totalMicros);
+		} else {
+			line.append(" msg=").append(quote(record.message));
+		}
+		return line.toString();
+	}
+
+	// Quote a value if it contains spaces or quotes
+	private static String quote(String value) {
+		if (value == null) {
+			return "-";
+		}
+		if (value.indexOf(' ') < 0 && value.indexOf('"') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+	}
+
+	/*
+	 * A record waiting to be written. Either a message or a served request.
+	 */
+	private static class Record {
+		private long time;
+		private int level;
+		private String message;
+		private Access access;
+
+		private Record(long time, int level, String message, Access access) {
+			this.time = time;
+			this.level = level;
+			this.message = message;
+			this.access = access;
+		}
+	}
+
+	/*
+	 * The fields of a served request.
+	 */
+	private static class Access {
+		private String client;
+		private String method;
+		private String url;
+		private String outcome;
+		private int status;
+		private long firstByteMicros;
+		private long totalMicros;
+	}
+}
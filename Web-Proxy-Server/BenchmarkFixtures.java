@@ -0,0 +1,80 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.function.*;
+
+/*
+ * The parts of the proxy which the JMH benchmarks (in the benchmarks directory)
+ * measure. JMH will not run benchmarks in the default package, and a class in
+ * a package cannot name one in the default package, so each part is handed to
+ * the benchmarks as one of the JDK's functional interfaces. The benchmarks load
+ * this class by name when they are set up.
+ */
+public class BenchmarkFixtures {
+
+	// Return a function which parses a request head, held in a buffer whose
+	// position is at its end, and reads what the proxy reads from it: the
+	// method, the URL, whether to keep the connection open, and how the body is
+	// framed. Their lengths and flags are summed so that none of the work is
+	// unused.
+	public static ToLongFunction<ByteBuffer> requestParser() {
+		HttpHead head = new HttpHead();
+		return buffer -> {
+			head.reset();
+			head.parse(buffer);
+			return head.getMethod().length() + head.getUrl().length() + head.getContentLength()
+					+ (head.headerContains("proxy-connection", "close") ? 1 : 0) + (head.isChunked() ? 1 : 0);
+		};
+	}
+
+	// Return the most bytes of request head the proxy reads
+	public static int maxHeadSize() {
+		return HttpHead.MAX_HEAD_SIZE;
+	}
+
+	// Return a blocklist of the given size, half of whose rules block a domain
+	// (adsN.example.com for even N) and half a substring (/trackerN/ for odd N)
+	public static Predicate<String> blockList(int size) {
+		List<String> rules = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			rules.add(i % 2 == 0 ? BlockList.DOMAIN_PREFIX + "ads" + i + ".example.com" : "/tracker" + i + "/");
+		}
+		BlockList blockList = BlockList.compile(rules);
+		return blockList::matches;
+	}
+
+	// Return a function which looks pages up in a cache holding the given pages,
+	// each with its body in the file of the same index, and returns the size of
+	// the page found (-1 if it is not cached). Every page is looked up once
+	// first, which moves it into the memory tier.
+	public static ToLongFunction<String> cacheLookup(String[] urls, File[] files) {
+		ResponseCache cache = new ResponseCache(64L * 1024 * 1024, 256L * 1024, 1024L * 1024 * 1024);
+		for (int i = 0; i < urls.length; i++) {
+			cache.put(new CacheEntry(urls[i], files[i], null, null, Long.MAX_VALUE));
+			cache.get(urls[i]);
+		}
+		return url -> {
+			CacheEntry entry = cache.get(url);
+			return entry == null ? -1 : entry.getSize();
+		};
+	}
+
+	// Relay between the two connections with a TunnelRelay on an event loop of
+	// its own. Closing what is returned stops the event loop.
+	public static Closeable tunnel(SocketChannel clientChannel, SocketChannel serverChannel) throws IOException {
+		EventLoop eventLoop = new EventLoop(0);
+		Thread loopThread = new Thread(eventLoop, "benchmark-event-loop");
+		loopThread.start();
+		TunnelRelay relay = new TunnelRelay(eventLoop, clientChannel, serverChannel, null, null);
+		eventLoop.execute(relay::start);
+		return () -> {
+			eventLoop.shutdown();
+			try {
+				loopThread.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+	}
+}
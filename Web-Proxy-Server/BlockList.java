@@ -0,0 +1,292 @@
+import java.util.*;
+
+public class BlockList {
+
+	/*
+	 * Constants for the matcher. A rule starting with the domain prefix blocks a
+	 * domain and every subdomain of it, and the initial number of states in the
+	 * substring automaton.
+	 */
+	static final String DOMAIN_PREFIX = "*.";
+	private static final int INITIAL_STATES = 1024;
+
+	// The rules the matcher was compiled from, in lower case, in the order given
+	private Set<String> rules;
+
+	/*
+	 * Variables for the domain rules. A trie of domain labels, read from the top
+	 * level domain down. A node which ends a rule blocks every name below it.
+	 */
+	private DomainNode domains = new DomainNode();
+
+	/*
+	 * Variables for the substring rules. An Aho-Corasick automaton over every
+	 * rule, so that a URL is checked against all of them in one pass. The edges
+	 * out of each state are kept as linked lists while building, and looked up
+	 * through a hash table keyed by state and character when matching. Each state
+	 * has a failure link, and whether a rule ends at it or at any state its
+	 * failure links lead to.
+	 */
+	private int stateCount = 1;
+	private int[] firstEdge = new int[INITIAL_STATES];
+	private int[] fail = new int[INITIAL_STATES];
+	private boolean[] matches = new boolean[INITIAL_STATES];
+	private int edgeCount;
+	private char[] edgeChar = new char[INITIAL_STATES];
+	private int[] edgeTarget = new int[INITIAL_STATES];
+	private int[] nextEdge = new int[INITIAL_STATES];
+	private long[] gotoKeys;
+	private int[] gotoTargets;
+	private int gotoMask;
+	private int size;
+
+	private BlockList() {
+		Arrays.fill(firstEdge, -1);
+	}
+
+	// Compile a list of rules into a matcher. The matcher does not change once
+	// compiled, so it can be shared between threads and swapped for a new one
+	// when the rules change.
+	public static BlockList compile(Collection<String> rules) {
+		BlockList blockList = new BlockList();
+		Set<String> lowerRules = new LinkedHashSet<>();
+		for (String rule : rules) {
+			String lowerRule = rule.toLowerCase();
+			if (!lowerRules.add(lowerRule)) {
+				continue;
+			}
+			if (lowerRule.startsWith(DOMAIN_PREFIX) && lowerRule.length() > DOMAIN_PREFIX.length()) {
+				blockList.addDomain(lowerRule.substring(DOMAIN_PREFIX.length()));
+			} else if (!lowerRule.isEmpty()) {
+				blockList.addSubstring(lowerRule);
+			}
+		}
+		blockList.rules = Collections.unmodifiableSet(lowerRules);
+		blockList.buildFailureLinks();
+		return blockList;
+	}
+
+	// Return a new matcher with one more rule, or this one if it already has
+	// the rule. This matcher is left as it is, so threads using it are not
+	// affected.
+	public BlockList with(String rule) {
+		if (rules.contains(rule.toLowerCase())) {
+			return this;
+		}
+		List<String> newRules = new ArrayList<>(rules);
+		newRules.add(rule);
+		return compile(newRules);
+	}
+
+	// Return the rules the matcher was compiled from
+	public Set<String> getRules() {
+		return rules;
+	}
+
+	// Return whether a URL is blocked, either because its host is in a blocked
+	// domain or because it contains a blocked substring
+	public boolean matches(String url) {
+		return matchesDomain(getHost(url)) || matchesSubstring(url);
+	}
+
+	// Return the number of rules
+	public int size() {
+		return size;
+	}
+
+	// Add a domain rule to the trie
+	private void addDomain(String domain) {
+		String[] labels = domain.split("\\.");
+		DomainNode node = domains;
+		for (int i = labels.length - 1; i >= 0; i--) {
+			node = node.children.computeIfAbsent(labels[i], label -> new DomainNode());
+		}
+		node.blocked = true;
+		size++;
+	}
+
+	// Add a substring rule to the automaton's trie
+	private void addSubstring(String rule) {
+		int state = 0;
+		for (int i = 0; i < rule.length(); i++) {
+			char c = rule.charAt(i);
+			int next = -1;
+			for (int edge = firstEdge[state]; edge >= 0; edge = nextEdge[edge]) {
+				if (edgeChar[edge] == c) {
+					next = edgeTarget[edge];
+					break;
+				}
+			}
+			if (next < 0) {
+				next = newState();
+				addEdge(state, c, next);
+			}
+			state = next;
+		}
+		matches[state] = true;
+		size++;
+	}
+
+	// Link each state to the longest proper suffix of its string which is also
+	// in the trie, visiting states breadth first so that shorter strings are
+	// linked first. Then build the hash table of edges used when matching.
+	private void buildFailureLinks() {
+		int[] queue = new int[stateCount];
+		int head = 0, tail = 0;
+		for (int edge = firstEdge[0]; edge >= 0; edge = nextEdge[edge]) {
+			fail[edgeTarget[edge]] = 0;
+			queue[tail++] = edgeTarget[edge];
+		}
+		buildGotoTable();
+		while (head < tail) {
+			int state = queue[head++];
+			for (int edge = firstEdge[state]; edge >= 0; edge = nextEdge[edge]) {
+				int child = edgeTarget[edge];
+				int link = fail[state];
+				int next;
+				while ((next = step(link, edgeChar[edge])) < 0 && link != 0) {
+					link = fail[link];
+				}
+				fail[child] = next < 0 ? 0 : next;
+				matches[child] |= matches[fail[child]];
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	// Build an open addressing hash table from (state, character) to the next
+	// state, sized to at most half full
+	private void buildGotoTable() {
+		int capacity = Integer.highestOneBit(Math.max(edgeCount, 1) * 2) * 2;
+		gotoKeys = new long[capacity];
+		gotoTargets = new int[capacity];
+		gotoMask = capacity - 1;
+		Arrays.fill(gotoKeys, -1);
+		for (int state = 0; state < stateCount; state++) {
+			for (int edge = firstEdge[state]; edge >= 0; edge = nextEdge[edge]) {
+				long key = gotoKey(state, edgeChar[edge]);
+				int slot = hash(key);
+				while (gotoKeys[slot] != -1) {
+					slot = (slot + 1) & gotoMask;
+				}
+				gotoKeys[slot] = key;
+				gotoTargets[slot] = edgeTarget[edge];
+			}
+		}
+	}
+
+	// Return the state reached from a state on a character, or -1 if there is
+	// no edge for it
+	private int step(int state, char c) {
+		long key = gotoKey(state, c);
+		for (int slot = hash(key);; slot = (slot + 1) & gotoMask) {
+			if (gotoKeys[slot] == key) {
+				return gotoTargets[slot];
+			}
+			if (gotoKeys[slot] == -1) {
+				return -1;
+			}
+		}
+	}
+
+	// Run the automaton over a URL, ignoring case, and return whether any rule
+	// is found in it
+	private boolean matchesSubstring(String url) {
+		if (stateCount == 1) {
+			return false;
+		}
+		int state = 0;
+		for (int i = 0; i < url.length(); i++) {
+			char c = Character.toLowerCase(url.charAt(i));
+			int next;
+			while ((next = step(state, c)) < 0 && state != 0) {
+				state = fail[state];
+			}
+			state = next < 0 ? 0 : next;
+			if (matches[state]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Walk the trie from the top level domain of a host down, and return whether
+	// a blocked domain is passed on the way
+	private boolean matchesDomain(String host) {
+		if (host == null || domains.children.isEmpty()) {
+			return false;
+		}
+		DomainNode node = domains;
+		int end = host.length();
+		while (end > 0) {
+			int start = host.lastIndexOf('.', end - 1) + 1;
+			node = node.children.get(host.substring(start, end));
+			if (node == null) {
+				return false;
+			}
+			if (node.blocked) {
+				return true;
+			}
+			end = start - 1;
+		}
+		return false;
+	}
+
+	// Return the host of a URL in lower case, or null if it has none
+	static String getHost(String url) {
+		int start = url.indexOf("://");
+		start = start < 0 ? 0 : start + 3;
+		int end = start;
+		while (end < url.length() && "/:?#".indexOf(url.charAt(end)) < 0) {
+			end++;
+		}
+		int userInfo = url.lastIndexOf('@', end - 1);
+		if (userInfo >= start) {
+			start = userInfo + 1;
+		}
+		return end > start ? url.substring(start, end).toLowerCase() : null;
+	}
+
+	// Add a state, growing the state arrays if they are full
+	private int newState() {
+		if (stateCount == firstEdge.length) {
+			int capacity = stateCount * 2;
+			firstEdge = Arrays.copyOf(firstEdge, capacity);
+			Arrays.fill(firstEdge, stateCount, capacity, -1);
+			fail = Arrays.copyOf(fail, capacity);
+			matches = Arrays.copyOf(matches, capacity);
+		}
+		return stateCount++;
+	}
+
+	// Add an edge between two states, growing the edge arrays if they are full
+	private void addEdge(int from, char c, int to) {
+		if (edgeCount == edgeChar.length) {
+			int capacity = edgeCount * 2;
+			edgeChar = Arrays.copyOf(edgeChar, capacity);
+			edgeTarget = Arrays.copyOf(edgeTarget, capacity);
+			nextEdge = Arrays.copyOf(nextEdge, capacity);
+		}
+		edgeChar[edgeCount] = c;
+		edgeTarget[edgeCount] = to;
+		nextEdge[edgeCount] = firstEdge[from];
+		firstEdge[from] = edgeCount++;
+	}
+
+	private static long gotoKey(int state, char c) {
+		return ((long) state << 16) | c;
+	}
+
+	private int hash(long key) {
+		long mixed = key * 0x9E3779B97F4A7C15L;
+		return (int) (mixed >>> 32) & gotoMask;
+	}
+
+	/*
+	 * A label in the domain trie, with the labels below it.
+	 */
+	private static class DomainNode {
+		private HashMap<String, DomainNode> children = new HashMap<>();
+		private boolean blocked;
+	}
+}
@@ -0,0 +1,42 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BufferPool {
+
+	/*
+	 * Constants for the pool. The size of each buffer, and the most buffers kept
+	 * for reuse. Buffers released beyond this are left to the garbage collector.
+	 */
+	public static final int BUFFER_SIZE = 16384;
+	private static final int MAX_POOLED = 1024;
+
+	/*
+	 * Static variables. The free direct buffers and how many there are.
+	 */
+	private static ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+	private static AtomicInteger freeCount = new AtomicInteger();
+
+	// Take a cleared direct buffer from the pool, allocating one if it is empty
+	public static ByteBuffer acquire() {
+		ByteBuffer buffer = freeBuffers.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		freeCount.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	// Give a buffer back to the pool. It must not be used again by the caller.
+	public static void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		if (freeCount.incrementAndGet() <= MAX_POOLED) {
+			freeBuffers.offer(buffer);
+		} else {
+			freeCount.decrementAndGet();
+		}
+	}
+}
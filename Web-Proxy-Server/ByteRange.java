@@ -0,0 +1,115 @@
+public class ByteRange {
+
+	// Constant for the only range unit HTTP defines
+	private static final String BYTES = "bytes=";
+
+	/*
+	 * Variables for the range, as the client asked for it. The first byte (-1
+	 * for a suffix, which asks for the last few bytes), and the last byte (-1 if
+	 * it runs to the end), or the length of a suffix.
+	 */
+	private long first;
+	private long last;
+
+	private ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	// Return the range from the first byte to the last (-1 to run to the end)
+	public static ByteRange of(long first, long last) {
+		return new ByteRange(first, last);
+	}
+
+	// Parse the value of a Range header. Return null if it is not a single byte
+	// range (several ranges at once are not supported), in which case the header
+	// is ignored and the whole body is sent.
+	public static ByteRange parse(String header) {
+		if (header == null || !header.regionMatches(true, 0, BYTES, 0, BYTES.length())) {
+			return null;
+		}
+		String spec = header.substring(BYTES.length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0 || spec.indexOf(',') >= 0) {
+			return null;
+		}
+		try {
+			String from = spec.substring(0, dash).trim();
+			String to = spec.substring(dash + 1).trim();
+			if (from.isEmpty()) {
+				long suffix = Long.parseLong(to);
+				return suffix > 0 ? new ByteRange(-1, suffix) : null;
+			}
+			long start = Long.parseLong(from);
+			long end = to.isEmpty() ? -1 : Long.parseLong(to);
+			return start >= 0 && (end == -1 || end >= start) ? new ByteRange(start, end) : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	// Return whether the range asks for the last few bytes, which cannot be
+	// placed until the length of the body is known
+	public boolean isSuffix() {
+		return first < 0;
+	}
+
+	// Return the first byte asked for. Only valid if the range is not a suffix.
+	public long getFirst() {
+		return first;
+	}
+
+	// Return the last byte asked for, or -1 if the range runs to the end. Only
+	// valid if the range is not a suffix.
+	public long getLast() {
+		return last;
+	}
+
+	// Return whether any of the range lies within a body of the given length
+	public boolean isSatisfiable(long length) {
+		return isSuffix() ? length > 0 : first < length;
+	}
+
+	// Return the first byte of the range within a body of the given length
+	public long getStart(long length) {
+		return isSuffix() ? Math.max(0, length - last) : first;
+	}
+
+	// Return the last byte of the range within a body of the given length
+	public long getEnd(long length) {
+		return isSuffix() || last == -1 ? length - 1 : Math.min(last, length - 1);
+	}
+
+	// Return the range as a Range header value
+	@Override
+	public String toString() {
+		return BYTES + (isSuffix() ? "-" + last : first + "-" + (last == -1 ? "" : String.valueOf(last)));
+	}
+
+	// Parse the value of a Content-Range header from a 206 response into its
+	// first byte, last byte and the full length (-1 if the server did not say).
+	// Return null if it cannot be parsed.
+	public static long[] parseContentRange(String header) {
+		if (header == null || !header.regionMatches(true, 0, "bytes ", 0, 6)) {
+			return null;
+		}
+		String spec = header.substring(6).trim();
+		int dash = spec.indexOf('-');
+		int slash = spec.indexOf('/');
+		if (dash < 0 || slash < dash) {
+			return null;
+		}
+		try {
+			long start = Long.parseLong(spec.substring(0, dash).trim());
+			long end = Long.parseLong(spec.substring(dash + 1, slash).trim());
+			String total = spec.substring(slash + 1).trim();
+			long length = total.equals("*") ? -1 : Long.parseLong(total);
+			if (start < 0 || end < start || (length >= 0 && end >= length)) {
+				return null;
+			}
+			return new long[] { start, end, length };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
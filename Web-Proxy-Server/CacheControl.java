@@ -0,0 +1,167 @@
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+public class CacheControl {
+
+	/*
+	 * Constants for this class. How much of the time since a response was last
+	 * modified it may be treated as fresh for when the server gives no expiry,
+	 * and the longest such a guess may be.
+	 */
+	private static final double HEURISTIC_FRACTION = 0.1;
+	private static final long MAX_HEURISTIC_MILLIS = 24L * 60 * 60 * 1000;
+
+	// How long a response with neither an expiry nor a Last-Modified header is
+	// treated as fresh for
+	private static volatile long defaultTtlMillis = 60000;
+
+	// How long after it expires a response which says nothing about it may
+	// still be served while it is refreshed in the background, and in place of
+	// an error from the server. A stale response may only be served where its
+	// server allows it, so these are 0 unless the proxy's operator opts in.
+	private static volatile long defaultStaleWhileRevalidateMillis;
+	private static volatile long defaultStaleIfErrorMillis;
+
+	/*
+	 * Variables for the directives of a Cache-Control header. Whether the
+	 * response may be stored, whether it must be revalidated before every use,
+	 * whether it must never be served once it has expired, how long it is fresh
+	 * for in seconds, and how long after that it may be served while it is
+	 * revalidated or if the server fails (each -1 if not given).
+	 */
+	private boolean noStore;
+	private boolean noCache;
+	private boolean mustRevalidate;
+	private long maxAge = -1;
+	private long staleWhileRevalidate = -1;
+	private long staleIfError = -1;
+
+	// Set how long a response with no freshness information is treated as fresh
+	public static void setDefaultTtl(long millis) {
+		defaultTtlMillis = millis;
+	}
+
+	// Set how long after it expires a response which gives no stale-while-revalidate
+	// or stale-if-error directive may still be served in each case
+	public static void setDefaultStaleWindows(long whileRevalidateMillis, long ifErrorMillis) {
+		defaultStaleWhileRevalidateMillis = whileRevalidateMillis;
+		defaultStaleIfErrorMillis = ifErrorMillis;
+	}
+
+	// Parse the value of a Cache-Control header, which may be null. A shared
+	// cache must not store private responses, so they are treated as no-store.
+	// s-maxage is meant for shared caches and so takes priority over max-age.
+	public static CacheControl parse(String headerValue) {
+		CacheControl cacheControl = new CacheControl();
+		if (headerValue == null) {
+			return cacheControl;
+		}
+		long sharedMaxAge = -1;
+		for (String directive : headerValue.toLowerCase().split(",")) {
+			directive = directive.trim();
+			if (directive.equals("no-store") || directive.startsWith("private")) {
+				cacheControl.noStore = true;
+			} else if (directive.startsWith("no-cache")) {
+				cacheControl.noCache = true;
+			} else if (directive.equals("must-revalidate") || directive.equals("proxy-revalidate")) {
+				cacheControl.mustRevalidate = true;
+			} else if (directive.startsWith("max-age=")) {
+				cacheControl.maxAge = parseSeconds(directive.substring(8));
+			} else if (directive.startsWith("s-maxage=")) {
+				sharedMaxAge = parseSeconds(directive.substring(9));
+			} else if (directive.startsWith("stale-while-revalidate=")) {
+				cacheControl.staleWhileRevalidate = parseSeconds(directive.substring(23));
+			} else if (directive.startsWith("stale-if-error=")) {
+				cacheControl.staleIfError = parseSeconds(directive.substring(15));
+			}
+		}
+		if (sharedMaxAge >= 0) {
+			cacheControl.maxAge = sharedMaxAge;
+		}
+		return cacheControl;
+	}
+
+	// Work out when a response received at the given time stops being fresh,
+	// from its Cache-Control, Expires, Date, Age and Last-Modified headers (any of
+	// which may be null)
+	public static long expiresAt(String cacheControlHeader, String expires, String date, String age,
+			String lastModified, long receivedAt) {
+		CacheControl cacheControl = parse(cacheControlHeader);
+		if (cacheControl.noCache) {
+			return receivedAt;
+		}
+		long ageMillis = age == null ? 0 : Math.max(0, parseSeconds(age)) * 1000;
+		if (cacheControl.maxAge >= 0) {
+			return receivedAt + cacheControl.maxAge * 1000 - ageMillis;
+		}
+		long dateMillis = parseDate(date, receivedAt);
+		if (expires != null) {
+			// An invalid Expires date means the response has already expired
+			return receivedAt + parseDate(expires, dateMillis) - dateMillis - ageMillis;
+		}
+		if (lastModified != null) {
+			long sinceModified = dateMillis - parseDate(lastModified, dateMillis);
+			long heuristic = Math.min((long) (sinceModified * HEURISTIC_FRACTION), MAX_HEURISTIC_MILLIS);
+			return receivedAt + Math.max(0, heuristic) - ageMillis;
+		}
+		return receivedAt + defaultTtlMillis - ageMillis;
+	}
+
+	// Return how long after it expires a response with the given Cache-Control
+	// header (which may be null) may be served while a new copy is fetched in
+	// the background, in milliseconds
+	public static long staleWhileRevalidate(String cacheControlHeader) {
+		CacheControl cacheControl = parse(cacheControlHeader);
+		if (cacheControl.noCache || cacheControl.mustRevalidate) {
+			return 0;
+		}
+		return cacheControl.staleWhileRevalidate >= 0 ? cacheControl.staleWhileRevalidate * 1000
+				: defaultStaleWhileRevalidateMillis;
+	}
+
+	// Return how long after it expires a response with the given Cache-Control
+	// header (which may be null) may be served when the server cannot be reached
+	// or fails, in milliseconds
+	public static long staleIfError(String cacheControlHeader) {
+		CacheControl cacheControl = parse(cacheControlHeader);
+		if (cacheControl.noCache || cacheControl.mustRevalidate) {
+			return 0;
+		}
+		return cacheControl.staleIfError >= 0 ? cacheControl.staleIfError * 1000 : defaultStaleIfErrorMillis;
+	}
+
+	public boolean isNoStore() {
+		return noStore;
+	}
+
+	public boolean isNoCache() {
+		return noCache;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	// Parse a number of seconds, treating anything invalid as 0
+	private static long parseSeconds(String value) {
+		try {
+			return Long.parseLong(value.trim().replace("\"", ""));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	// Parse a HTTP date into milliseconds, or return the fallback if it is
+	// missing or invalid
+	private static long parseDate(String value, long fallback) {
+		if (value == null) {
+			return fallback;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return fallback;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+import java.io.*;
+
+public class CacheEntry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/*
+	 * Variables for the entry. The URL it caches, the file in the disk tier which
+	 * holds the body and its size, the validators the server sent with it, the
+	 * time (in milliseconds) at which it stops being fresh, and the coding the
+	 * body is stored in (null if it is not encoded) along with its size once
+	 * decoded (-1 if not known). How long after it stops being fresh it may
+	 * still be served while it is refreshed in the background, and in place of
+	 * an error from the server.
+	 */
+	private String url;
+	private File file;
+	private long size;
+	private String etag;
+	private String lastModified;
+	private volatile long expiresAt;
+	private String contentEncoding;
+	private long decodedSize;
+	private long staleWhileRevalidate;
+	private long staleIfError;
+
+	/*
+	 * Variables which are not saved with the entry. The body itself while the
+	 * entry is in the memory tier, when the entry was last requested, and how
+	 * often it has been requested lately. The count is kept without a lock, so
+	 * the odd request made at the same moment as another may be missed, which
+	 * is close enough to rank entries by.
+	 */
+	private transient volatile byte[] body;
+	private transient volatile long lastAccess;
+	private transient volatile int requests;
+
+	/*
+	 * Constructor for the entry. Initalize the local variables. The validators
+	 * may be null if the server did not send them.
+	 */
+	public CacheEntry(String url, File file, String etag, String lastModified, long expiresAt) {
+		this(url, file, etag, lastModified, expiresAt, null, -1);
+	}
+
+	/*
+	 * Constructor for an entry whose body is stored encoded, e.g. compressed.
+	 */
+	public CacheEntry(String url, File file, String etag, String lastModified, long expiresAt,
+			String contentEncoding, long decodedSize) {
+		this(url, file, file.length(), etag, lastModified, expiresAt, contentEncoding, decodedSize);
+	}
+
+	/*
+	 * Constructor for an entry whose body is known to be of the given size, e.g.
+	 * one read back from the index, so that its file need not be looked at.
+	 */
+	public CacheEntry(String url, File file, long size, String etag, String lastModified, long expiresAt,
+			String contentEncoding, long decodedSize) {
+		this.url = url;
+		this.file = file;
+		this.size = size;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.expiresAt = expiresAt;
+		this.contentEncoding = contentEncoding;
+		this.decodedSize = decodedSize;
+		this.lastAccess = System.nanoTime();
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	// Return the coding the body is stored in, or null if it is not encoded
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	// Return the size of the body once decoded, or -1 if it is not known
+	public long getDecodedSize() {
+		return contentEncoding == null ? size : decodedSize;
+	}
+
+	// Return whether the entry can be served without asking the server
+	public boolean isFresh() {
+		return System.currentTimeMillis() < expiresAt;
+	}
+
+	// Return whether the entry is no longer fresh but may still be served while
+	// it is refreshed in the background
+	public boolean canServeStale() {
+		long now = System.currentTimeMillis();
+		return now >= expiresAt && now < expiresAt + staleWhileRevalidate;
+	}
+
+	// Return whether the entry may be served when the server cannot be reached
+	// or fails
+	public boolean canServeOnError() {
+		return System.currentTimeMillis() < expiresAt + staleIfError;
+	}
+
+	public long getStaleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+
+	public long getStaleIfError() {
+		return staleIfError;
+	}
+
+	// Return whether the entry holds the whole body. Only a sparse entry, which
+	// is filled in as ranges of it are requested, may not.
+	public boolean isComplete() {
+		return true;
+	}
+
+	// Return whether the server can be asked if the entry is still valid
+	public boolean hasValidators() {
+		return etag != null || lastModified != null;
+	}
+
+	// Return the body if the entry is in the memory tier, otherwise null
+	public byte[] getBody() {
+		return body;
+	}
+
+	public long getLastAccess() {
+		return lastAccess;
+	}
+
+	// Return how often the entry has been requested lately
+	public int getRequests() {
+		return requests;
+	}
+
+	// Record that the server confirmed the entry is still valid, and when it
+	// next stops being fresh
+	void revalidated(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
+	// Set how long after it stops being fresh the entry may still be served,
+	// while it is refreshed and in place of an error, in milliseconds
+	void setStaleWindows(long whileRevalidate, long ifError) {
+		staleWhileRevalidate = whileRevalidate;
+		staleIfError = ifError;
+	}
+
+	// Record that the entry has just been requested
+	void touch() {
+		lastAccess = System.nanoTime();
+		requests++;
+	}
+
+	// Halve the count of recent requests, so that requests made long ago count
+	// for less, and return the count before it was halved
+	int decayRequests() {
+		int count = requests;
+		requests = count / 2;
+		return count;
+	}
+
+	// Move the entry into (or, given null, out of) the memory tier
+	void setBody(byte[] body) {
+		this.body = body;
+	}
+}
@@ -0,0 +1,268 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+public class CacheIndex {
+
+	/*
+	 * Constants for the index file. Each record is its length, a CRC32 of its
+	 * contents, a type, then the contents. The file starts at the initial size
+	 * and doubles whenever it fills up. It is compacted once it holds more than
+	 * twice as many records as there are entries (plus some slack), checked at
+	 * the given interval along with flushing it to disk.
+	 */
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final int RECORD_HEADER = 9;
+	private static final int INITIAL_SIZE = 1024 * 1024;
+	private static final int COMPACTION_SLACK = 1000;
+	private static final long MAINTENANCE_INTERVAL = 30;
+
+	/*
+	 * Variables for the index. The index file, the channel it is open on and the
+	 * memory mapping new records are appended through, the number of records in
+	 * the file, a source of the entries currently cached (used when compacting),
+	 * and the thread which flushes and compacts the file.
+	 */
+	private File indexFile;
+	private FileChannel channel;
+	private MappedByteBuffer mapped;
+	private int recordCount;
+	private Supplier<Collection<CacheEntry>> liveEntries;
+	private ScheduledExecutorService maintenance;
+
+	/*
+	 * Constructor for the index. Open (or create) the index file and map it.
+	 */
+	public CacheIndex(File indexFile) throws IOException {
+		this.indexFile = indexFile;
+		open();
+	}
+
+	// Replay the index, returning the entries it holds by URL. Replay stops at
+	// the first record which is incomplete or fails its checksum, which is where
+	// the proxy was stopped while writing, and new records overwrite it.
+	public synchronized Map<String, CacheEntry> replay() {
+		Map<String, CacheEntry> entries = new HashMap<>();
+		mapped.position(0);
+		recordCount = 0;
+		while (mapped.remaining() >= RECORD_HEADER) {
+			int start = mapped.position();
+			int length = mapped.getInt();
+			int checksum = mapped.getInt();
+			if (length <= 0 || length > mapped.remaining() - 1) {
+				mapped.position(start);
+				break;
+			}
+			byte[] record = new byte[length + 1];
+			mapped.get(record);
+			if (checksum(record) != checksum) {
+				System.out.println("Cache index ends with a damaged record, ignoring it");
+				mapped.position(start);
+				break;
+			}
+			try {
+				DataInputStream input = new DataInputStream(new ByteArrayInputStream(record, 1, length));
+				String url = input.readUTF();
+				if (record[0] == PUT) {
+					entries.put(url, readEntry(url, input));
+				} else {
+					entries.remove(url);
+				}
+				recordCount++;
+			} catch (IOException e) {
+				mapped.position(start);
+				break;
+			}
+		}
+		// Clear anything after the last good record so it is not replayed later
+		int end = mapped.position();
+		for (int i = end; i < Math.min(end + RECORD_HEADER, mapped.capacity()); i++) {
+			mapped.put(i, (byte) 0);
+		}
+		return entries;
+	}
+
+	// Record that an entry has been added or updated
+	public void put(CacheEntry entry) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+			output.writeByte(PUT);
+			output.writeUTF(entry.getUrl());
+			output.writeUTF(entry.getFile().getPath());
+			output.writeUTF(entry.getEtag() == null ? "" : entry.getEtag());
+			output.writeUTF(entry.getLastModified() == null ? "" : entry.getLastModified());
+			output.writeLong(entry.getExpiresAt());
+			output.writeUTF(entry.getContentEncoding() == null ? "" : entry.getContentEncoding());
+			output.writeLong(entry.getDecodedSize());
+			output.writeLong(entry.getStaleWhileRevalidate());
+			output.writeLong(entry.getStaleIfError());
+			output.writeLong(entry.getSize());
+			append(bytes.toByteArray());
+		} catch (IOException e) {
+			AccessLog.error("Error adding " + entry.getUrl() + " to the cache index");
+		}
+	}
+
+	// Record that the entry for a URL has been removed
+	public void remove(String url) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+			output.writeByte(REMOVE);
+			output.writeUTF(url);
+			append(bytes.toByteArray());
+		} catch (IOException e) {
+			AccessLog.error("Error removing " + url + " from the cache index");
+		}
+	}
+
+	// Start flushing the index to disk and compacting it in the background. The
+	// supplier gives the entries currently cached, which is all a compacted
+	// index needs to hold.
+	public void startMaintenance(Supplier<Collection<CacheEntry>> liveEntries) {
+		this.liveEntries = liveEntries;
+		maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "cache-index");
+			thread.setDaemon(true);
+			return thread;
+		});
+		maintenance.scheduleWithFixedDelay(this::maintain, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL,
+				TimeUnit.SECONDS);
+	}
+
+	// Stop the background thread, compact the index and flush it to disk
+	public synchronized void close() {
+		if (maintenance != null) {
+			maintenance.shutdown();
+		}
+		if (liveEntries != null) {
+			compact(liveEntries.get());
+		}
+		mapped.force();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println("Error closing the cache index");
+		}
+	}
+
+	// Flush the index to disk, and compact it if it has grown well beyond the
+	// number of entries
+	private synchronized void maintain() {
+		try {
+			Collection<CacheEntry> live = liveEntries.get();
+			if (recordCount > 2 * live.size() + COMPACTION_SLACK) {
+				compact(live);
+			}
+			mapped.force();
+		} catch (RuntimeException e) {
+			AccessLog.error("Error maintaining the cache index");
+		}
+	}
+
+	// Rewrite the index to hold one record per live entry. The new index is
+	// written to a temporary file which then replaces the old one, so a crash
+	// part way through leaves the old index intact.
+	private synchronized void compact(Collection<CacheEntry> live) {
+		File compacted = new File(indexFile.getPath() + ".tmp");
+		try {
+			mapped.force();
+			channel.close();
+			Files.deleteIfExists(compacted.toPath());
+			File original = indexFile;
+			indexFile = compacted;
+			open();
+			for (CacheEntry entry : live) {
+				put(entry);
+			}
+			mapped.force();
+			channel.close();
+			indexFile = original;
+			Files.move(compacted.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			open();
+			replay();
+		} catch (IOException e) {
+			AccessLog.error("Error compacting the cache index");
+		}
+	}
+
+	// Append a record (its type followed by its contents) to the index, growing
+	// the file if it is full. The length is written last, so a record is not
+	// replayed until it is complete.
+	private synchronized void append(byte[] record) throws IOException {
+		if (mapped.remaining() < record.length + RECORD_HEADER * 2) {
+			grow(record.length + RECORD_HEADER * 2);
+		}
+		int start = mapped.position();
+		mapped.putInt(start + 4, checksum(record));
+		mapped.position(start + 8);
+		mapped.put(record);
+		mapped.putInt(start, record.length - 1);
+		recordCount++;
+	}
+
+	// Map a larger region of the file, at least doubling its size
+	private void grow(int needed) throws IOException {
+		int position = mapped.position();
+		long size = Math.max((long) mapped.capacity() * 2, (long) position + needed);
+		mapped.force();
+		mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		mapped.position(position);
+	}
+
+	// Open the index file and map it, at no less than the initial size
+	private void open() throws IOException {
+		channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, channel.size()));
+	}
+
+	// Read the fields of an entry which follow its URL in a PUT record. Records
+	// written before bodies were stored encoded end after the expiry, those
+	// written before stale entries could be served end after the decoded size,
+	// and those written before the size of the body was recorded end after the
+	// stale windows. The size is recorded so that replaying the index need not
+	// look at every file. Only for older records is it read from the file.
+	private static CacheEntry readEntry(String url, DataInputStream input) throws IOException {
+		File file = new File(input.readUTF());
+		String etag = input.readUTF();
+		String lastModified = input.readUTF();
+		long expiresAt = input.readLong();
+		String contentEncoding = "";
+		long decodedSize = -1;
+		long staleWhileRevalidate = 0;
+		long staleIfError = 0;
+		long size = -1;
+		if (input.available() > 0) {
+			contentEncoding = input.readUTF();
+			decodedSize = input.readLong();
+		}
+		if (input.available() > 0) {
+			staleWhileRevalidate = input.readLong();
+			staleIfError = input.readLong();
+		}
+		if (input.available() > 0) {
+			size = input.readLong();
+		}
+		CacheEntry entry = new CacheEntry(url, file, size >= 0 ? size : file.length(), etag.isEmpty() ? null : etag,
+				lastModified.isEmpty() ? null : lastModified, expiresAt,
+				contentEncoding.isEmpty() ? null : contentEncoding, decodedSize);
+		entry.setStaleWindows(staleWhileRevalidate, staleIfError);
+		return entry;
+	}
+
+	// Return the CRC32 of a record
+	private static int checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,117 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.stream.Stream;
+
+public class CacheLayout {
+
+	/*
+	 * Constants for the layout of the cache directory. Each version of a body is
+	 * stored in a file named after the SHA-256 hash of its URL and a suffix of
+	 * its own, two levels of shard directories down, each named after the next
+	 * byte of the hash. That keeps every directory small (a few dozen files per
+	 * shard with millions of entries) and names cannot collide. A sparse body
+	 * has a unique name with its own suffix, which it keeps, and a body being
+	 * written has a temporary name until it is complete.
+	 */
+	private static final File ROOT = new File("cache");
+	private static final int SHARD_LEVELS = 2;
+	private static final String PARTIAL_SUFFIX = ".part";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	// Create a file to store the parts of a new version of the body of a URL as
+	// they are fetched, creating its shard directories. The name is unique to
+	// this version, so a request still reading an older version's parts never
+	// reads the bytes of another.
+	public static File createPartialFile(String url) throws IOException {
+		File file = getBaseFile(url);
+		File directory = file.getParentFile();
+		directory.mkdirs();
+		return Files.createTempFile(directory.toPath(), file.getName() + ".", PARTIAL_SUFFIX).toFile();
+	}
+
+	// Create a temporary file to write a new version of the body of a URL into,
+	// creating its shard directories. Once the body is complete, commit() gives
+	// it its final name.
+	public static File createTempFile(String url) throws IOException {
+		File file = getBaseFile(url);
+		File directory = file.getParentFile();
+		directory.mkdirs();
+		return Files.createTempFile(directory.toPath(), file.getName() + ".", TEMP_SUFFIX).toFile();
+	}
+
+	// Move a body which has been written in full to its final name, which is the
+	// temporary name without its suffix, and return the file. The name is unique
+	// to this version, so no other version's file is replaced: a request which
+	// looked up an older version reads that version, or finds its file deleted
+	// once the entry is dropped, but never reads the bytes of another.
+	public static File commit(File tempFile) throws IOException {
+		String name = tempFile.getName();
+		File file = new File(tempFile.getParentFile(), name.substring(0, name.length() - TEMP_SUFFIX.length()));
+		Files.move(tempFile.toPath(), file.toPath());
+		return file;
+	}
+
+	// Return the path of a file in the form used to compare it with the cache's
+	// files in sweep()
+	public static Path normalize(File file) {
+		return file.toPath().toAbsolutePath().normalize();
+	}
+
+	// Delete every file in the cache directory which is not one of the live
+	// files given and has not been written for the given time: bodies whose
+	// entries were lost, and temporary files left by writes which never
+	// finished. Each live file found is taken out of the set, leaving those
+	// which are missing. Return the number deleted.
+	public static int sweep(Set<Path> liveFiles, long minAgeMillis) throws IOException {
+		if (!ROOT.isDirectory()) {
+			return 0;
+		}
+		long cutoff = System.currentTimeMillis() - minAgeMillis;
+		int deleted = 0;
+		try (Stream<Path> files = Files.walk(ROOT.toPath())) {
+			for (Path path : (Iterable<Path>) files::iterator) {
+				File file = path.toFile();
+				if (!file.isFile() || liveFiles.remove(normalize(file))) {
+					continue;
+				}
+				if (file.lastModified() < cutoff && file.delete()) {
+					deleted++;
+				}
+			}
+		}
+		return deleted;
+	}
+
+	// Return the file a URL's bodies are named after: its hash, in its shard
+	// directories
+	private static File getBaseFile(String url) {
+		String hash = hash(url);
+		File directory = ROOT;
+		for (int level = 0; level < SHARD_LEVELS; level++) {
+			directory = new File(directory, hash.substring(level * 2, level * 2 + 2));
+		}
+		return new File(directory, hash);
+	}
+
+	// Return the SHA-256 hash of a URL in hex
+	private static String hash(String url) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
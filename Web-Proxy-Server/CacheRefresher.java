@@ -0,0 +1,230 @@
+import java.io.*;
+import java.net.*;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class CacheRefresher {
+
+	/*
+	 * Constants for the refresher. The number of threads which fetch pages, how
+	 * often (in seconds) the most requested pages are checked for ones about to
+	 * expire, and the size of the buffer bodies are copied through.
+	 */
+	private static final int REFRESH_THREADS = 2;
+	private static final long SCAN_INTERVAL = 5;
+	private static final int BUFFER_SIZE = 16384;
+
+	/*
+	 * Variables for the refresher. The cache it keeps fresh, how many of the
+	 * most requested pages are refreshed before they expire (0 for none), how
+	 * long before they expire they are refreshed, the URLs waiting for or being
+	 * refreshed, and the threads which run the refreshes and the scan.
+	 */
+	private ResponseCache cache;
+	private int topEntries;
+	private long refreshAhead;
+	private Set<String> pending = ConcurrentHashMap.newKeySet();
+	private ScheduledExecutorService refreshThreads;
+
+	/*
+	 * Counters for the refresher. Stale pages served while they were refreshed,
+	 * stale pages served because the server failed, refreshes of stale pages,
+	 * refreshes of popular pages before they expired, refreshes which found the
+	 * page unchanged, and refreshes which failed.
+	 */
+	private AtomicLong servedStale = new AtomicLong();
+	private AtomicLong servedOnError = new AtomicLong();
+	private AtomicLong staleRefreshes = new AtomicLong();
+	private AtomicLong earlyRefreshes = new AtomicLong();
+	private AtomicLong notModified = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+
+	/*
+	 * Constructor for the refresher. Initalize the local variables.
+	 */
+	public CacheRefresher(ResponseCache cache, int topEntries, long refreshAhead) {
+		this.cache = cache;
+		this.topEntries = topEntries;
+		this.refreshAhead = refreshAhead;
+		refreshThreads = Executors.newScheduledThreadPool(REFRESH_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "cache-refresher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Start checking the most requested pages for ones about to expire
+	public void start() {
+		if (topEntries > 0) {
+			refreshThreads.scheduleWithFixedDelay(this::refreshHottest, SCAN_INTERVAL, SCAN_INTERVAL,
+					TimeUnit.SECONDS);
+		}
+	}
+
+	// Stop refreshing. Refreshes in progress are abandoned, and their temporary
+	// files are swept away later.
+	public void close() {
+		refreshThreads.shutdownNow();
+	}
+
+	// Record that a stale page is being served to a request, and refresh it in
+	// the background so that the next request finds it fresh
+	public void servedStale(CacheEntry entry) {
+		servedStale.incrementAndGet();
+		if (refresh(entry)) {
+			staleRefreshes.incrementAndGet();
+		}
+	}
+
+	// Record that a stale page was served because the server could not be
+	// reached or failed
+	public void servedOnError() {
+		servedOnError.incrementAndGet();
+	}
+
+	// Return a summary of the refresher
+	public String getStats() {
+		return "Stale pages served: " + servedStale.get() + " while refreshing, " + servedOnError.get()
+				+ " on server errors. Refreshes: " + staleRefreshes.get() + " stale, " + earlyRefreshes.get()
+				+ " before expiry, " + notModified.get() + " not modified, " + failures.get() + " failed";
+	}
+
+	// Refresh the most requested pages which expire within the refresh window,
+	// so that requests for them never find them stale. Pages which have already
+	// expired are left to be refreshed by the next request for them.
+	private void refreshHottest() {
+		long now = System.currentTimeMillis();
+		for (CacheEntry entry : cache.hottest(topEntries)) {
+			if (entry.getExpiresAt() > now && entry.getExpiresAt() - now <= refreshAhead && refresh(entry)) {
+				earlyRefreshes.incrementAndGet();
+			}
+		}
+	}
+
+	// Fetch a page again on one of the refresh threads, unless it is already
+	// waiting to be. Return whether a refresh was started.
+	private boolean refresh(CacheEntry entry) {
+		String url = entry.getUrl();
+		if (!pending.add(url)) {
+			return false;
+		}
+		try {
+			refreshThreads.execute(() -> {
+				try {
+					refreshNow(entry);
+				} finally {
+					pending.remove(url);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			pending.remove(url);
+			return false;
+		}
+	}
+
+	// Fetch a page again, unless a request is already fetching it. Requests
+	// which find the page stale beyond the time it may be served for wait for
+	// this fetch rather than making their own, as they would for each other's.
+	private void refreshNow(CacheEntry entry) {
+		String url = entry.getUrl();
+		if (cache.joinFetch(url) != null) {
+			return;
+		}
+		try {
+			CacheEntry refreshed = fetch(cache, url, entry);
+			if (refreshed == entry) {
+				notModified.incrementAndGet();
+			}
+			AccessLog.debug("Refreshed cached page for " + url + ".");
+			cache.finishFetch(url, refreshed);
+		} catch (IOException | RuntimeException e) {
+			failures.incrementAndGet();
+			AccessLog.warn("Error refreshing cached page " + url);
+			// Requests waiting on this fetch make their own
+			cache.abandonFetch(url);
+		}
+	}
+
+	// Fetch a page over a pooled connection to the server, asking only whether
+	// it has changed if a stale entry with validators is given, and cache what
+	// the server sends. Return the entry now cached for the page (the one given
+	// if it has not changed), or null if the server says the page may not be
+	// cached. The caller must have joined the fetch for the page.
+	static CacheEntry fetch(ResponseCache cache, String url, CacheEntry entry) throws IOException {
+		URL remoteURL = new URL(url);
+		String host = remoteURL.getHost();
+		int port = remoteURL.getPort() == -1 ? remoteURL.getDefaultPort() : remoteURL.getPort();
+		String request = ConnectionThread.getOriginRequest("GET", remoteURL, entry, null, null);
+		OriginConnection serverConnection = null;
+		File tempFile = null;
+		try {
+			OriginResponse response = ProxyMultiThread.sendToOrigin(host, port, request, false);
+			serverConnection = response.getConnection();
+			int status = response.getStatus();
+			String cacheControl = response.getHeader("Cache-Control");
+			long expiresAt = CacheControl.expiresAt(cacheControl, response.getHeader("Expires"),
+					response.getHeader("Date"), response.getHeader("Age"), response.getHeader("Last-Modified"),
+					System.currentTimeMillis());
+			if (entry != null) {
+				cache.revalidated(entry, status == HttpURLConnection.HTTP_NOT_MODIFIED, expiresAt);
+			}
+			if (entry != null && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				ProxyMultiThread.releaseOriginConnection(serverConnection, response.isKeepAlive());
+				serverConnection = null;
+				return entry;
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				// A stale entry is kept, to be served if the server keeps failing
+				throw new IOException("Server answered " + response.getStatusText());
+			}
+			String coding = ContentEncoding.normalize(response.getHeader("Content-Encoding"));
+			if (CacheControl.parse(cacheControl).isNoStore() || !ContentEncoding.isCacheable(coding)) {
+				if (entry != null) {
+					cache.remove(entry);
+				}
+				return null;
+			}
+
+			// The body is written to a temporary file, which only becomes the cached
+			// file once it is complete, compressed on the way if it compresses well
+			boolean compressing = coding == null
+					&& ContentEncoding.shouldCompress(response.getHeader("Content-Type"), response.getContentLength());
+			tempFile = CacheLayout.createTempFile(url);
+			LongAdder decodedSize = new LongAdder();
+			try (OutputStream cacheStream = compressing
+					? new ProxyMetrics.CountingOutputStream(ContentEncoding.compress(new FileOutputStream(tempFile)),
+							decodedSize)
+					: new FileOutputStream(tempFile)) {
+				InputStream serverStream = response.getBody();
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = serverStream.read(buffer)) >= 0) {
+					cacheStream.write(buffer, 0, read);
+				}
+			}
+			ProxyMultiThread.releaseOriginConnection(serverConnection, response.isKeepAlive());
+			serverConnection = null;
+			File file = CacheLayout.commit(tempFile);
+			tempFile = null;
+
+			CacheEntry fetched = new CacheEntry(url, file, response.getHeader("ETag"),
+					response.getHeader("Last-Modified"), expiresAt, compressing ? ContentEncoding.GZIP : coding,
+					compressing ? decodedSize.sum() : -1);
+			fetched.setStaleWindows(CacheControl.staleWhileRevalidate(cacheControl),
+					CacheControl.staleIfError(cacheControl));
+			cache.put(fetched);
+			return fetched;
+		} finally {
+			// A connection left part way through a response cannot be reused
+			if (serverConnection != null) {
+				ProxyMultiThread.discardOriginConnection(serverConnection);
+			}
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,14 @@
+import java.nio.channels.SelectionKey;
+
+/*
+ * Anything which owns channels registered with an EventLoop. The loop passes
+ * every ready key to the handler attached to it.
+ */
+public interface ChannelHandler {
+
+	// Make progress on the channel which is ready
+	void handle(SelectionKey key);
+
+	// Close every channel the handler owns
+	void close();
+}
@@ -0,0 +1,109 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+public class ConnectionDispatcher {
+
+	/*
+	 * Constants for this class. The dispatch modes and rejection policies the
+	 * operator can choose from.
+	 */
+	public static final String POOL = "pool";
+	public static final String VIRTUAL = "virtual";
+	public static final String REJECT_503 = "503";
+	public static final String REJECT_CLOSE = "close";
+
+	/*
+	 * Variables for the dispatcher. The executor which runs each ConnectionThread,
+	 * the pool behind it when running in pool mode, and what to do with a
+	 * connection when the pool and its queue are full.
+	 */
+	private ExecutorService executor;
+	private ThreadPoolExecutor pool;
+	private String rejectionPolicy;
+
+	/*
+	 * Constructor for the dispatcher. In pool mode, run connections on a fixed
+	 * number of threads with a bounded queue in front of them. In virtual mode,
+	 * run each connection on its own virtual thread, if the JVM supports them.
+	 */
+	public ConnectionDispatcher(String mode, int threads, int queueDepth, String rejectionPolicy) {
+		this.rejectionPolicy = rejectionPolicy;
+		if (mode.equalsIgnoreCase(VIRTUAL)) {
+			executor = newVirtualThreadExecutor();
+		}
+		if (executor == null) {
+			pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(Math.max(1, queueDepth)), new ThreadPoolExecutor.AbortPolicy());
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+			System.out.println("Dispatching connections to " + threads + " threads, queue depth " + queueDepth);
+		} else {
+			System.out.println("Dispatching connections to virtual threads");
+		}
+	}
+
+	// Hand a connection from the browser to the executor. If it is full, reject
+	// the connection according to the rejection policy.
+	public void dispatch(Socket socket) {
+		try {
+			executor.execute(new ConnectionThread(socket));
+		} catch (RejectedExecutionException e) {
+			AccessLog.warn("Connection rejected, proxy is at capacity.");
+			reject(socket);
+		}
+	}
+
+	// Stop accepting connections and wait up to the timeout for in-flight
+	// connections to finish. Interrupt whatever is still running after that.
+	public void drain(long timeoutMillis) {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				System.out.println("Connections still running after " + timeoutMillis + "ms, interrupting them.");
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted exception when closing server.");
+			executor.shutdownNow();
+		}
+	}
+
+	// Return the number of connections waiting for a thread, or 0 in virtual mode
+	public int getQueueDepth() {
+		return pool == null ? 0 : pool.getQueue().size();
+	}
+
+	// Return the number of connections currently being served, or -1 in virtual
+	// mode where this is not tracked by the executor
+	public int getActiveCount() {
+		return pool == null ? -1 : pool.getActiveCount();
+	}
+
+	// Tell the browser the proxy is busy, if the policy asks for it, and close
+	// the connection
+	private void reject(Socket socket) {
+		try {
+			if (rejectionPolicy.equalsIgnoreCase(REJECT_503)) {
+				OutputStream outputStream = socket.getOutputStream();
+				outputStream.write(ConnectionThread.getResponse(503, false).getBytes());
+				outputStream.flush();
+			}
+			socket.close();
+		} catch (IOException e) {
+			AccessLog.warn("Error rejecting connection");
+		}
+	}
+
+	// Create an executor which starts a virtual thread for every task. This is
+	// looked up reflectively so the proxy still compiles and runs on JVMs without
+	// virtual threads, in which case null is returned and a pool is used instead.
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads are not available on this JVM, using a thread pool instead.");
+			return null;
+		}
+	}
+}
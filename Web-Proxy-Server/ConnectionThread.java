@@ -1,320 +1,1219 @@
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ConnectionThread implements Runnable {
 
 	/*
-	 * Variables for this thread. A socket to connect to the client (browser), a
-	 * reader and writer to the client, and a seperate thread to handle HTTPS
-	 * communication from the client to the server.
+	 * Variables for this thread. A socket to connect to the client (browser), and
+	 * buffered streams to read from and write to the client.
 	 */
 	private Socket browserSocket;
-	private BufferedReader clientReader;
-	private BufferedWriter clientWriter;
-	private Thread clientToServerHttpsThread;
+	private BufferedInputStream clientInput;
+	private BufferedOutputStream clientOutput;
 
 	/*
-	 * Constants for this class. To identify connection types and file types.
+	 * Variables for the request being served. Its parsed head, whose views are
+	 * into this thread's head buffer, whether the client speaks HTTP/1.1, whether the connection stays open for
+	 * another request once this one is served, whether the response body is being
+	 * sent in chunks, whether the connection has been handed to a tunnel, the
+	 * range of the body the client asked for (null for all of it), the
+	 * transfer of its response, which the rate limits are kept on, whether
+	 * other requests are waiting on this one to fetch the page, the error which
+	 * stopped the page being fetched before any of the response was sent (null
+	 * if none), and whether the fetch was cut off part way through the response
+	 * instead.
+	 */
+	private HttpHead requestHead = new HttpHead();
+	private boolean http11;
+	private boolean keepAlive;
+	private boolean chunkedResponse;
+	private boolean handedOff;
+	private ByteRange requestedRange;
+	private RateLimiter.Flow flow;
+	private boolean leader;
+	private IOException fetchError;
+	private boolean fetchCutOff;
+
+	/*
+	 * Variables for the metrics of the request being served. When its head was
+	 * read, when the first byte of the response was sent, how it was served, and
+	 * the status sent (0 if none). The client's address is kept for the access
+	 * log.
+	 */
+	private long startedAt;
+	private long firstByteAt;
+	private int outcome;
+	private int status;
+	private String clientAddress;
+
+	/*
+	 * Constants for this class. To identify connection types, the size of the
+	 * buffer used to copy responses, how long to wait for another request
+	 * fetching the same page, how long an idle connection waits for the client's
+	 * next request, the most requests served on one connection, and how long to
+	 * wait for a server to answer a request to open a WebSocket.
 	 */
 	private static final String CONNECT = "CONNECT";
 	private static final String GET = "GET";
-	private static final String JPG = ".jpg";
-	private static final String JPEG = ".jpeg";
-	private static final String PNG = ".png";
-	private static final String GIF = ".gif";
+	private static final String HEAD = "HEAD";
+	private static final int BUFFER_SIZE = 16384;
+	private static final long COALESCE_TIMEOUT = 30000;
+	private static final int KEEP_ALIVE_TIMEOUT = 2000;
+	private static final int MAX_REQUESTS = 100;
+	private static final int UPGRADE_TIMEOUT = 30000;
+
+	// Headers of a request to open a WebSocket which describe the connection to
+	// the proxy, so are not passed on to the server
+	private static final Set<String> UPGRADE_HOP_BY_HOP_HEADERS = new HashSet<>(Arrays.asList("host", "connection",
+			"upgrade", "keep-alive", "proxy-connection", "proxy-authorization", "te", "trailer", "transfer-encoding",
+			"content-length"));
+
+	// A copy buffer and a buffer to read request heads into for each thread,
+	// reused by every connection the thread serves
+	private static final ThreadLocal<byte[]> copyBuffer = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+	private static final ThreadLocal<ByteBuffer> headBuffer = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocate(HttpHead.MAX_HEAD_SIZE));
 
 	/*
 	 * Constructor for this thread. Initalize the local variables.
 	 */
 	public ConnectionThread(Socket browserSocket) {
 		this.browserSocket = browserSocket;
+		clientAddress = browserSocket.getInetAddress().getHostAddress();
 		try {
-			this.browserSocket.setSoTimeout(2000);
-			clientReader = new BufferedReader(new InputStreamReader(browserSocket.getInputStream()));
-			clientWriter = new BufferedWriter(new OutputStreamWriter(browserSocket.getOutputStream()));
+			this.browserSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+			this.browserSocket.setTcpNoDelay(true);
+			clientInput = new BufferedInputStream(
+					new ProxyMetrics.CountingInputStream(browserSocket.getInputStream(), ProxyMetrics.bytesFromClients),
+					BUFFER_SIZE);
+			clientOutput = new BufferedOutputStream(
+					new ProxyMetrics.CountingOutputStream(browserSocket.getOutputStream(), ProxyMetrics.bytesToClients),
+					BUFFER_SIZE);
 		} catch (IOException e) {
-			System.out.println("Error initializing new thread.");
+			AccessLog.error("Error initializing new thread.");
 		}
 	}
 
 	/*
-	 * Take the request from the client. If the site is blocked, do not fulfil the
-	 * request. Identify whether it is a HTTP or HTTPS request. Handle by passing
-	 * off to the appropriate method.
+	 * Take requests from the client until it closes the connection, asks for it
+	 * to be closed, or leaves it idle. Pipelined requests are served in the order
+	 * they were sent. If the site is blocked, do not fulfil the request. Identify
+	 * whether it is a HTTP or HTTPS request, or a request to open a WebSocket.
+	 * Handle by passing off to the appropriate method.
 	 */
 	@Override
 	public void run() {
-		String requestString, requestType, requestUrl;
+		int served = 0;
+		ProxyMetrics.connectionOpened();
 		try {
-			requestString = clientReader.readLine();
-			String[] splitRequest = splitRequest(requestString);
-			requestType = splitRequest[0];
-			requestUrl = splitRequest[1];
-		} catch (IOException e) {
-			System.out.println("Error reading request from client.");
-			return;
+			do {
+				String requestType, requestUrl;
+				try {
+					if (!readRequestHead()) {
+						break;
+					}
+					requestType = requestHead.getMethod();
+					requestUrl = requestHead.getUrl();
+					skipRequestBody();
+				} catch (SocketTimeoutException e) {
+					if (served == 0) {
+						AccessLog.warn("Error reading request from client " + clientAddress);
+					}
+					break;
+				} catch (IOException | RuntimeException e) {
+					AccessLog.warn("Error reading request from client " + clientAddress);
+					break;
+				}
+				// The last request allowed on the connection is answered with
+				// Connection: close, so the client does not send another
+				if (++served >= MAX_REQUESTS) {
+					keepAlive = false;
+				}
+				startedAt = System.nanoTime();
+				firstByteAt = 0;
+				status = 0;
+
+				if (ProxyMultiThread.isBlocked(requestUrl)) {
+					AccessLog.debug("Blocked site " + requestUrl + " requested.");
+					outcome = ProxyMetrics.BLOCKED;
+					blockedSiteRequested();
+					recordRequest(requestType, requestUrl);
+					continue;
+				}
+
+				if (!ProxyMultiThread.allowRequest(clientAddress, requestUrl)) {
+					AccessLog.debug("Request for " + requestUrl + " from " + clientAddress + " over the rate limit.");
+					outcome = ProxyMetrics.LIMITED;
+					if (requestType.equals(CONNECT)) {
+						keepAlive = false;
+					}
+					rateLimited();
+					recordRequest(requestType, requestUrl);
+					continue;
+				}
+				flow = ProxyMultiThread.openFlow(clientAddress, requestUrl);
+
+				if (requestType.equals(GET) && isWebSocketUpgrade(requestHead)) {
+					AccessLog.debug("WebSocket request for : " + requestUrl);
+					outcome = ProxyMetrics.WEBSOCKET;
+					keepAlive = false;
+					handleWebSocketRequest(requestUrl);
+					// A WebSocket records its own metrics when it closes
+					if (!handedOff) {
+						flow.close();
+						recordRequest(requestType, requestUrl);
+					}
+					continue;
+				}
+
+				switch (requestType) {
+					case CONNECT:
+						AccessLog.debug("HTTPS request for : " + requestUrl);
+						outcome = ProxyMetrics.TUNNEL;
+						keepAlive = false;
+						handleHTTPSRequest(requestUrl);
+						break;
+					case HEAD:
+						AccessLog.debug("HEAD request for : " + requestUrl);
+						fulfilHeadRequest(requestUrl);
+						break;
+					default:
+						CacheEntry entry = ProxyMultiThread.getCachedPage(requestUrl);
+						requestedRange = getRequestedRange(requestType, requestUrl, entry);
+						if (entry == null && requestedRange != null) {
+							AccessLog.debug("HTTP request for : " + requestUrl + " " + requestedRange
+									+ ". No whole cached page found.");
+							fulfilRangeRequest(requestUrl);
+						} else if (entry == null) {
+							AccessLog.debug("HTTP request for : " + requestUrl + ". No cached page found.");
+							fetchCoalesced(requestUrl, null);
+						} else if (entry.isFresh()) {
+							AccessLog.debug("HTTP request for : " + requestUrl + ". Cached page found.");
+							fulfilCachedRequest(entry, requestedRange);
+						} else if (entry.canServeStale()) {
+							AccessLog.debug("HTTP request for : " + requestUrl
+									+ ". Cached page is stale, refreshing it in the background.");
+							fulfilCachedRequest(entry, requestedRange, true);
+						} else {
+							AccessLog.debug("HTTP request for : " + requestUrl + ". Cached page is stale.");
+							fetchCoalesced(requestUrl, entry);
+						}
+						break;
+				}
+				// A tunnel records its own metrics when it closes
+				if (!handedOff) {
+					flow.close();
+					recordRequest(requestType, requestUrl);
+				}
+			} while (keepAlive && served < MAX_REQUESTS);
+		} finally {
+			if (!handedOff) {
+				if (flow != null) {
+					flow.close();
+				}
+				closeClient();
+				ProxyMetrics.connectionClosed();
+			}
 		}
+	}
 
-		if (ProxyMultiThread.isBlocked(requestUrl)) {
-			System.out.println("Blocked site " + requestUrl + " requested.");
-			blockedSiteRequested();
+	// Record the metrics of the request just served, and log it
+	private void recordRequest(String requestType, String requestUrl) {
+		long finishedAt = System.nanoTime();
+		ProxyMetrics.recordRequest(outcome, startedAt, firstByteAt, finishedAt);
+		AccessLog.access(clientAddress, requestType, requestUrl, ProxyMetrics.getOutcomeName(outcome), status,
+				startedAt, firstByteAt, finishedAt);
+	}
+
+	// Read the request line and headers of the next request into this thread's
+	// head buffer, and parse them as they arrive. Return false if the client
+	// closed the connection instead. Work out from the version and headers
+	// whether the client wants the connection kept open. The input is marked
+	// first, so that it can be put back to just after the head, since bytes
+	// read past it belong to the body or the next request.
+	private boolean readRequestHead() throws IOException {
+		ByteBuffer buffer = headBuffer.get();
+		buffer.clear();
+		requestHead.reset();
+		clientInput.mark(HttpHead.MAX_HEAD_SIZE);
+		while (!requestHead.parse(buffer)) {
+			if (!buffer.hasRemaining()) {
+				throw new IOException("Request head too large");
+			}
+			int read = clientInput.read(buffer.array(), buffer.position(), buffer.remaining());
+			if (read < 0) {
+				if (!requestHead.hasStartLine()) {
+					return false;
+				}
+				throw new EOFException("Client closed the connection part way through the request head");
+			}
+			buffer.position(buffer.position() + read);
+		}
+		clientInput.reset();
+		long remaining = requestHead.getHeadEnd();
+		while (remaining > 0) {
+			long skipped = clientInput.skip(remaining);
+			if (skipped <= 0) {
+				throw new EOFException("Client closed the connection part way through the request head");
+			}
+			remaining -= skipped;
+		}
+		// Drop the mark, so that the input does not keep reading bytes into its
+		// buffer to be able to return to it
+		clientInput.mark(0);
+		http11 = requestHead.isHttp11();
+		String connection = requestHead.hasHeader("proxy-connection") ? "proxy-connection" : "connection";
+		keepAlive = http11 ? !requestHead.headerContains(connection, "close")
+				: requestHead.headerContains(connection, "keep-alive");
+		chunkedResponse = false;
+		return true;
+	}
+
+	// Read past the body of the current request, if it has one, so that the
+	// next request starts where it should. The page is fetched with a GET, so
+	// the body is not used.
+	private void skipRequestBody() throws IOException {
+		long contentLength = requestHead.getContentLength();
+		InputStream body;
+		if (requestHead.isChunked()) {
+			body = new OriginResponse.ChunkedInputStream(clientInput);
+		} else if (contentLength >= 0) {
+			body = new OriginResponse.BoundedInputStream(clientInput, contentLength);
+		} else {
 			return;
 		}
+		byte[] buffer = copyBuffer.get();
+		while (body.read(buffer) >= 0) {
+		}
+	}
 
-		switch (requestType) {
-			case CONNECT:
-				System.out.println("HTTPS request for : " + requestUrl);
-				handleHTTPSRequest(requestUrl);
-				break;
-			default:
-				File file = ProxyMultiThread.getCachedPage(requestUrl);
-				if (file == null) {
-					System.out.println("HTTP request for : " + requestUrl + ". No cached page found.");
-					fulfilNonCachedRequest(requestUrl);
-				} else {
-					System.out.println("HTTP request for : " + requestUrl + ". Cached page found.");
-					fulfilCachedRequest(file);
-				}
-				break;
+	// Return the range of the page a GET request asks for, or null if it asks
+	// for the whole page. A range sent with If-Range is only used if the page is
+	// cached, whole or in part, with the validator given. Otherwise the client's
+	// copy may have changed, so it is sent the whole page.
+	private ByteRange getRequestedRange(String requestType, String requestUrl, CacheEntry entry) {
+		ByteRange range = requestType.equals(GET) ? ByteRange.parse(requestHead.getHeader("range")) : null;
+		String ifRange = range == null ? null : requestHead.getHeader("if-range");
+		if (range == null || ifRange == null) {
+			return range;
 		}
+		CacheEntry cached = entry != null ? entry : ProxyMultiThread.getPartialPage(requestUrl);
+		return cached != null && matchesValidator(cached, ifRange) ? range : null;
 	}
 
-	// Parse a CONNECT or GET request and return an array containing the URL and
-	// port number
-	private String[] splitRequest(String requestString) {
-		String requestType, requestUrl;
-		int requestSeparatorIndex;
-		requestSeparatorIndex = requestString.indexOf(' ');
-		requestType = requestString.substring(0, requestSeparatorIndex);
-		requestUrl = requestString.substring(requestSeparatorIndex + 1);
-		requestUrl = requestUrl.substring(0, requestUrl.indexOf(' '));
-		if (!requestUrl.substring(0, 4).equals("http")) {
-			requestUrl = "http://" + requestUrl;
+	// Return whether an If-Range value names the cached version of a page. An
+	// entity tag must match the entry's exactly and neither may be weak.
+	static boolean matchesValidator(CacheEntry entry, String validator) {
+		if (validator.startsWith("\"") || validator.startsWith("W/")) {
+			return validator.startsWith("\"") && validator.equals(entry.getEtag());
 		}
-		return new String[] { requestType, requestUrl };
+		return validator.equals(entry.getLastModified());
+	}
+
+	// Fetch a page from the cache for the client, or only the range given of it
+	// if not null
+	private void fulfilCachedRequest(CacheEntry entry, ByteRange range) {
+		fulfilCachedRequest(entry, range, false);
 	}
 
-	// Fetch a page from the cache for the client
-	private void fulfilCachedRequest(File cachedFile) {
+	// Fetch a page from the cache for the client, or only the range given of it
+	// if not null, and start refreshing it in the background if it is stale. A
+	// page in the memory tier is written from memory. Otherwise the file is
+	// opened before the refresh starts, so that this version is sent whole even
+	// once a newer one replaces it, and sent as it is, straight from the file to
+	// the socket where the socket has a channel. A page stored compressed is
+	// sent compressed if the client accepts it, and whole, since ranges are of
+	// the decoded body. Otherwise it is decoded on the way to the client.
+	private void fulfilCachedRequest(CacheEntry entry, ByteRange range, boolean stale) {
+		outcome = ProxyMetrics.HIT;
+		byte[] body = entry.getBody();
+		FileChannel cachedFileChannel = null;
 		try {
-			String fileExtension = cachedFile.getName().substring(cachedFile.getName().lastIndexOf('.'));
-			if (isImage(fileExtension)) {
-				BufferedImage image = ImageIO.read(cachedFile);
-				if (image == null) {
-					System.out.println("Image " + cachedFile.getName() + " was null");
-					String response = getResponse(404, false);
-					clientWriter.write(response);
-					clientWriter.flush();
-				} else {
-					String response = getResponse(200, false);
-					clientWriter.write(response);
-					clientWriter.flush();
-					ImageIO.write(image, fileExtension.substring(1), browserSocket.getOutputStream());
+			if (body == null) {
+				cachedFileChannel = FileChannel.open(entry.getFile().toPath(), StandardOpenOption.READ);
+			}
+			if (stale) {
+				ProxyMultiThread.servedStalePage(entry);
+			}
+			String coding = entry.getContentEncoding();
+			if (coding != null && !ContentEncoding.accepts(requestHead.getHeader("accept-encoding"), coding)) {
+				sendDecoded(entry, body, cachedFileChannel);
+				return;
+			}
+			long size = body != null ? body.length : cachedFileChannel.size();
+			String headers = "Accept-Ranges: bytes\r\n";
+			if (coding != null) {
+				range = null;
+				headers = "Content-Encoding: " + coding + "\r\nVary: Accept-Encoding\r\n";
+				if (entry.getDecodedSize() > size) {
+					ProxyMetrics.addBytesSavedByCompression(entry.getDecodedSize() - size);
+				}
+			}
+			if (range != null && !range.isSatisfiable(size)) {
+				sendRangeNotSatisfiable(size);
+				return;
+			}
+			String status = "200 OK";
+			long start = 0;
+			long end = size - 1;
+			if (range != null) {
+				start = range.getStart(size);
+				end = range.getEnd(size);
+				status = "206 Partial Content";
+				headers = "Content-Range: bytes " + start + "-" + end + "/" + size + "\r\n";
+			}
+			long length = end - start + 1;
+			SocketChannel clientChannel = browserSocket.getChannel();
+			ProxyMetrics.addBytesFromCache(length);
+			// Under a limit on bytes the body is sent a buffer at a time, waiting
+			// between writes as the limit says
+			long slice = flow.isLimited() ? BUFFER_SIZE : Long.MAX_VALUE;
+			writeResponseHead(status, headers, length);
+			if (body != null) {
+				for (long position = start; position <= end; position += slice) {
+					int count = (int) Math.min(slice, end + 1 - position);
+					clientOutput.write(body, (int) position, count);
+					throttle(count);
+				}
+			} else if (clientChannel != null) {
+				clientOutput.flush();
+				long position = start;
+				while (position <= end) {
+					long sent = cachedFileChannel.transferTo(position, Math.min(slice, end + 1 - position),
+							clientChannel);
+					// Nothing sent to a blocking socket means the file has ended
+					if (sent <= 0) {
+						throw new EOFException("Cached file ended part way through the body");
+					}
+					ProxyMetrics.bytesToClients.add(sent);
+					position += sent;
+					throttle(sent);
 				}
 			} else {
-				BufferedReader cachedFileBufferedReader = new BufferedReader(
-						new InputStreamReader(new FileInputStream(cachedFile)));
-				String response = getResponse(200, false);
-				clientWriter.write(response);
-				clientWriter.flush();
-				String line;
-				while ((line = cachedFileBufferedReader.readLine()) != null) {
-					clientWriter.write(line);
+				sendFromChannel(cachedFileChannel, start, end);
+			}
+			clientOutput.flush();
+		} catch (NoSuchFileException | FileNotFoundException e) {
+			if (firstByteAt != 0) {
+				AccessLog.warn("Error sending cached file to client " + clientAddress);
+				keepAlive = false;
+				return;
+			}
+			// A newer version of the page replaced this one after it was looked up,
+			// and its file has been deleted. Nothing has been sent yet, so serve the
+			// newer version whole, or fetch the page if it is no longer cached.
+			CacheEntry current = ProxyMultiThread.getCachedPage(entry.getUrl());
+			if (current != null && current != entry && current.isFresh()) {
+				fulfilCachedRequest(current, null);
+			} else {
+				fetchCoalesced(entry.getUrl(), null);
+			}
+		} catch (IOException e) {
+			AccessLog.warn("Error sending cached file to client " + clientAddress);
+			keepAlive = false;
+		} finally {
+			if (cachedFileChannel != null) {
+				try {
+					cachedFileChannel.close();
+				} catch (IOException e) {
 				}
-				clientWriter.flush();
+			}
+		}
+	}
 
-				if (cachedFileBufferedReader != null) {
-					cachedFileBufferedReader.close();
+	// Send a page stored compressed to a client which does not accept the
+	// coding, decoding it on the way from memory or its open file
+	private void sendDecoded(CacheEntry entry, byte[] body, FileChannel cachedFileChannel) throws IOException {
+		InputStream stored = body != null ? new ByteArrayInputStream(body) : Channels.newInputStream(cachedFileChannel);
+		try (InputStream decoded = ContentEncoding.decompress(stored)) {
+			writeResponseHead("200 OK", "Vary: Accept-Encoding\r\n", entry.getDecodedSize());
+			ProxyMetrics.addBytesFromCache(Math.max(0, entry.getDecodedSize()));
+			teeToClient(decoded, null);
+		}
+	}
+
+	// Fetch a page which is not cached, or is stale, unless another request is
+	// already fetching it. In that case wait for that request, and serve what it
+	// cached. If it could cache nothing, or is taking too long, fetch the page
+	// without waiting on anyone. If it was cut off part way, join again: one of
+	// the requests waiting fetches the page next and the rest wait for it. If
+	// the server could not be reached or failed, answer with an error rather
+	// than trying the server again.
+	private void fetchCoalesced(String requestUrl, CacheEntry staleEntry) {
+		while (true) {
+			CompletableFuture<CacheEntry> fetch = ProxyMultiThread.joinFetch(requestUrl);
+			if (fetch == null) {
+				leader = true;
+				CacheEntry entry = null;
+				try {
+					entry = fulfilNonCachedRequest(requestUrl, staleEntry, null, null);
+				} finally {
+					// The requests waiting may already have been released
+					if (leader) {
+						leader = false;
+						if (fetchError != null) {
+							ProxyMultiThread.failFetch(requestUrl, fetchError);
+						} else if (fetchCutOff) {
+							ProxyMultiThread.abandonFetch(requestUrl);
+						} else {
+							ProxyMultiThread.finishFetch(requestUrl, entry);
+						}
+					}
 				}
+				return;
 			}
-			if (clientWriter != null) {
-				clientWriter.close();
+			try {
+				CacheEntry entry = fetch.get(COALESCE_TIMEOUT, TimeUnit.MILLISECONDS);
+				if (entry != null) {
+					AccessLog.debug("Serving " + requestUrl + " from another request's fetch.");
+					fulfilCachedRequest(entry, null);
+				} else {
+					AccessLog.debug("Page at " + requestUrl + " could not be cached, fetching it alongside others.");
+					fulfilNonCachedRequest(requestUrl, null, null, null);
+				}
+				return;
+			} catch (CancellationException e) {
+				AccessLog.debug("Another request stopped fetching " + requestUrl + ", joining again.");
+			} catch (ExecutionException e) {
+				AccessLog.warn("Another request failed to fetch " + requestUrl + " for client " + clientAddress);
+				outcome = ProxyMetrics.MISS;
+				keepAlive = false;
+				sendBadGateway();
+				return;
+			} catch (TimeoutException e) {
+				AccessLog.debug("Gave up waiting for another request to fetch " + requestUrl + ", fetching it.");
+				fulfilNonCachedRequest(requestUrl, null, null, null);
+				return;
+			} catch (InterruptedException e) {
+				AccessLog.warn("Gave up waiting for another request to fetch " + requestUrl);
+				keepAlive = false;
+				return;
 			}
-		} catch (IOException e) {
-			System.out.println("Error sending cached file to client");
+			// The stale entry may have been replaced by now, so is not revalidated
+			staleEntry = null;
 		}
 	}
 
-	// Set up a server connection, fetch the appropriate content. Return the content
-	// to the client and also add it to the cache.
-	private void fulfilNonCachedRequest(String requestUrl) {
+	// Fetch a range of a page which is not cached whole. Segments of the page
+	// which its sparse entry already holds are not fetched again: only the span
+	// from the first missing segment in the range to the last is. Without an
+	// entry, the range is widened to whole segments so that what is fetched can
+	// be cached.
+	private void fulfilRangeRequest(String requestUrl) {
+		SparseCacheEntry partial = ProxyMultiThread.getPartialPage(requestUrl);
+		ByteRange fetchRange;
+		if (partial != null) {
+			long size = partial.getSize();
+			if (!requestedRange.isSatisfiable(size)) {
+				fulfilCachedRequest(partial, requestedRange);
+				return;
+			}
+			int first = partial.segmentOf(requestedRange.getStart(size));
+			int last = partial.segmentOf(requestedRange.getEnd(size));
+			// Every segment of a stale entry is fetched again, with If-Range
+			// in case the page has changed
+			int firstMissing = partial.isFresh() ? partial.firstMissing(first, last) : first;
+			if (firstMissing < 0) {
+				AccessLog.debug("Cached range found for " + requestUrl + ".");
+				fulfilCachedRequest(partial, requestedRange);
+				return;
+			}
+			int lastMissing = partial.isFresh() ? partial.lastMissing(first, last) : last;
+			fetchRange = ByteRange.of(partial.segmentStart(firstMissing), partial.segmentEnd(lastMissing));
+		} else if (requestedRange.isSuffix()) {
+			fetchRange = requestedRange;
+		} else {
+			long segmentSize = SparseCacheEntry.getDefaultSegmentSize();
+			long last = requestedRange.getLast();
+			fetchRange = ByteRange.of(requestedRange.getFirst() / segmentSize * segmentSize,
+					last == -1 ? -1 : (last / segmentSize + 1) * segmentSize - 1);
+		}
+		fulfilNonCachedRequest(requestUrl, null, fetchRange, partial);
+	}
+
+	// Fetch a page over a pooled keep-alive connection to the server. Return the
+	// content to the client and also add it to the cache, unless the server
+	// forbids it. If a stale cached entry is given, ask the server whether it has
+	// changed, and serve the cached entry if it has not. The cached entry is
+	// also served if the server cannot be reached or fails, while it may still
+	// be used in place of an error. If a range to fetch is given, a 206 answer
+	// is relayed by relayFetchedRange(), and a 200 (the page has changed, or the
+	// server ignored the range) replaces any sparse entry. Any other response is
+	// passed on to the client without caching. Return the entry which is now
+	// cached for the page, or null if there is none.
+	private CacheEntry fulfilNonCachedRequest(String requestUrl, CacheEntry staleEntry, ByteRange fetchRange,
+			SparseCacheEntry partial) {
+		fetchError = null;
+		fetchCutOff = false;
+		OriginConnection serverConnection = null;
+		OutputStream cacheStream = null;
+		File tempFile = null;
+		outcome = ProxyMetrics.MISS;
 		try {
-			int fileExtensionIndex = requestUrl.lastIndexOf(".");
-			String fileExtension;
-			fileExtension = requestUrl.substring(fileExtensionIndex, requestUrl.length());
-			String fileName = requestUrl.substring(0, fileExtensionIndex);
-			fileName = fileName.substring(fileName.indexOf('.') + 1);
-			fileName = fileName.replace("/", "__");
-			fileName = fileName.replace('.', '_');
-
-			if (fileExtension.contains("/")) {
-				fileExtension = fileExtension.replace("/", "__");
-				fileExtension = fileExtension.replace('.', '_');
-				fileExtension += ".html";
-			}
-			fileName = fileName + fileExtension;
-			boolean caching = true;
-			File fileToCache = null;
-			BufferedWriter cacheWriter = null;
+			URL remoteURL = new URL(requestUrl);
+			String host = remoteURL.getHost();
+			int port = remoteURL.getPort() == -1 ? remoteURL.getDefaultPort() : remoteURL.getPort();
+			String request = getOriginRequest(GET, remoteURL, staleEntry, fetchRange, partial);
 
-			try {
-				fileToCache = new File("cache/" + fileName);
-				if (!fileToCache.exists()) {
-					fileToCache.createNewFile();
+			OriginResponse response = ProxyMultiThread.sendToOrigin(host, port, request, false);
+			serverConnection = response.getConnection();
+			int responseCode = response.getStatus();
+			long expiresAt = CacheControl.expiresAt(response.getHeader("Cache-Control"), response.getHeader("Expires"),
+					response.getHeader("Date"), response.getHeader("Age"), response.getHeader("Last-Modified"),
+					System.currentTimeMillis());
+			if (staleEntry != null) {
+				boolean notModified = responseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+				ProxyMultiThread.revalidatedPage(staleEntry, notModified, expiresAt);
+				if (notModified) {
+					AccessLog.debug("Cached page for " + requestUrl + " not modified.");
+					ProxyMultiThread.releaseOriginConnection(serverConnection, response.isKeepAlive());
+					serverConnection = null;
+					fulfilCachedRequest(staleEntry, null);
+					return staleEntry;
 				}
-				cacheWriter = new BufferedWriter(new FileWriter(fileToCache));
-			} catch (IOException e) {
-				System.out.println("Error trying to cache " + fileName);
-				caching = false;
-			} catch (NullPointerException e) {
-				System.out.println("Null pointer opening file " + fileName);
-			}
-			if (isImage(fileExtension)) {
-				URL remoteURL = new URL(requestUrl);
-				BufferedImage image = ImageIO.read(remoteURL);
-
-				if (image != null) {
-					ImageIO.write(image, fileExtension.substring(1), fileToCache);
-					String line = getResponse(200, false);
-					clientWriter.write(line);
-					clientWriter.flush();
-					ImageIO.write(image, fileExtension.substring(1), browserSocket.getOutputStream());
+				if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR && staleEntry.canServeOnError()) {
+					return serveStaleOnError(staleEntry);
+				}
+			}
+			InputStream serverStream = response.getBody();
+			if (fetchRange != null && responseCode == HttpURLConnection.HTTP_PARTIAL) {
+				relayFetchedRange(requestUrl, response, partial, expiresAt);
+				ProxyMultiThread.releaseOriginConnection(serverConnection, response.isKeepAlive());
+				serverConnection = null;
+				return null;
+			}
+			if (partial != null && responseCode == HttpURLConnection.HTTP_OK) {
+				AccessLog.debug("Partly cached page for " + requestUrl + " has changed.");
+				ProxyMultiThread.removeCachedPage(partial);
+			}
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				releaseUncacheable(requestUrl);
+				writeResponseHead(response.getStatusText(), response.getForwardedHeaders(),
+						response.getContentLength());
+				teeToClient(serverStream, null);
+				ProxyMultiThread.releaseOriginConnection(serverConnection, response.isKeepAlive());
+				serverConnection = null;
+				return null;
+			}
+			// A body the server sent encoded is cached as it is, if it can be decoded
+			// for clients which do not accept the coding. A body of a type which
+			// compresses well is compressed on its way into the cache.
+			String coding = ContentEncoding.normalize(response.getHeader("Content-Encoding"));
+			boolean caching = !CacheControl.parse(response.getHeader("Cache-Control")).isNoStore()
+					&& ContentEncoding.isCacheable(coding);
+			boolean compressing = coding == null
+					&& ContentEncoding.shouldCompress(response.getHeader("Content-Type"), response.getContentLength());
+			File fileToCache = null;
+			LongAdder decodedSize = new LongAdder();
 
-				} else {
-					String error = getResponse(404, false);
-					clientWriter.write(error);
-					clientWriter.flush();
-					return;
+			// The body is written to a temporary file, which only becomes the
+			// cached file once it is complete. A HTML page is scanned for what it
+			// links to on the way.
+			if (caching) {
+				try {
+					tempFile = CacheLayout.createTempFile(requestUrl);
+					cacheStream = new FileOutputStream(tempFile);
+					if (compressing) {
+						cacheStream = new ProxyMetrics.CountingOutputStream(ContentEncoding.compress(cacheStream),
+								decodedSize);
+					}
+					if (coding == null) {
+						cacheStream = ProxyMultiThread.scanForLinks(requestUrl, response.getHeader("Content-Type"),
+								cacheStream);
+					}
+				} catch (IOException e) {
+					AccessLog.error("Error trying to cache " + requestUrl);
+					caching = false;
 				}
-			} else {
-				URL remoteURL = new URL(requestUrl);
-				HttpURLConnection serverConnection = (HttpURLConnection) remoteURL.openConnection();
-				serverConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-				serverConnection.setRequestProperty("Content-Language", "en-US");
-				serverConnection.setUseCaches(false);
-				serverConnection.setDoOutput(true);
-				BufferedReader proxyToServerBR = new BufferedReader(
-						new InputStreamReader(serverConnection.getInputStream()));
-				String line = getResponse(200, false);
-				clientWriter.write(line);
-				while ((line = proxyToServerBR.readLine()) != null) {
-					clientWriter.write(line);
+			}
+			if (!caching) {
+				releaseUncacheable(requestUrl);
+			}
+			String headers = coding == null ? ""
+					: "Content-Encoding: " + response.getHeader("Content-Encoding") + "\r\n";
+			writeResponseHead("200 OK", headers, response.getContentLength());
+			caching = teeToClient(serverStream, caching ? cacheStream : null);
+			// The whole body has been read, so the connection is ready for another request
+			ProxyMultiThread.releaseOriginConnection(serverConnection, response.isKeepAlive());
+			serverConnection = null;
+
+			if (cacheStream != null) {
+				try {
+					cacheStream.close();
 					if (caching) {
-						cacheWriter.write(line);
+						fileToCache = CacheLayout.commit(tempFile);
+						tempFile = null;
 					}
+				} catch (IOException e) {
+					AccessLog.error("Error writing to cache, response will not be cached");
+					caching = false;
 				}
-				clientWriter.flush();
-				if (proxyToServerBR != null) {
-					proxyToServerBR.close();
-				}
+				cacheStream = null;
 			}
-
+			CacheEntry entry = null;
 			if (caching) {
-				cacheWriter.flush();
-				ProxyMultiThread.addCachedPage(requestUrl, fileToCache);
+				String cacheControl = response.getHeader("Cache-Control");
+				entry = new CacheEntry(requestUrl, fileToCache, response.getHeader("ETag"),
+						response.getHeader("Last-Modified"), expiresAt, compressing ? ContentEncoding.GZIP : coding,
+						compressing ? decodedSize.sum() : -1);
+				entry.setStaleWindows(CacheControl.staleWhileRevalidate(cacheControl),
+						CacheControl.staleIfError(cacheControl));
+				ProxyMultiThread.addCachedPage(entry);
 			}
-			if (cacheWriter != null) {
-				cacheWriter.close();
+			return entry;
+		} catch (Exception e) {
+			// Nothing has been sent yet, so the stale page can still be
+			if (staleEntry != null && firstByteAt == 0 && staleEntry.canServeOnError()) {
+				return serveStaleOnError(staleEntry);
 			}
-			if (clientWriter != null) {
-				clientWriter.close();
+			AccessLog.warn("Error sending non cached page " + requestUrl + " to client " + clientAddress);
+			keepAlive = false;
+			if (firstByteAt == 0) {
+				fetchError = e instanceof IOException ? (IOException) e : new IOException(e);
+				sendBadGateway();
+			} else {
+				fetchCutOff = true;
+			}
+			return null;
+		} finally {
+			// A connection left part way through a response cannot be reused
+			if (serverConnection != null) {
+				ProxyMultiThread.discardOriginConnection(serverConnection);
 			}
+			// Nor can a body left part way through being cached
+			if (cacheStream != null) {
+				try {
+					cacheStream.close();
+				} catch (IOException e) {
+				}
+			}
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	// If other requests are waiting on this one to fetch the page, and its
+	// response cannot be cached, let them fetch it themselves now rather than
+	// once the whole body has been sent
+	private void releaseUncacheable(String requestUrl) {
+		if (leader) {
+			leader = false;
+			ProxyMultiThread.finishFetch(requestUrl, null);
+		}
+	}
+
+	// Pass a HEAD request on to the server as a HEAD, and the head of its
+	// response back to the client. The response has no body, so it is neither
+	// served from nor added to the cache, and the connection to the server can
+	// be used again straight away.
+	private void fulfilHeadRequest(String requestUrl) {
+		OriginConnection serverConnection = null;
+		outcome = ProxyMetrics.MISS;
+		try {
+			URL remoteURL = new URL(requestUrl);
+			int port = remoteURL.getPort() == -1 ? remoteURL.getDefaultPort() : remoteURL.getPort();
+			String request = getOriginRequest(HEAD, remoteURL, null, null, null);
+
+			OriginResponse response = ProxyMultiThread.sendToOrigin(remoteURL.getHost(), port, request, true);
+			serverConnection = response.getConnection();
+			// The Content-Length is that of the body a GET would have had
+			String contentLength = response.getHeader("Content-Length");
+			writeResponseHead(response.getStatusText(), response.getForwardedHeaders(),
+					contentLength == null ? -1 : Long.parseLong(contentLength.trim()));
+			chunkedResponse = false;
+			clientOutput.flush();
+			ProxyMultiThread.releaseOriginConnection(serverConnection, response.isKeepAlive());
+			serverConnection = null;
 		} catch (Exception e) {
-			System.out.println("Error sending non cached page to client");
+			AccessLog.warn("Error sending HEAD response for " + requestUrl + " to client " + clientAddress);
+			keepAlive = false;
+		} finally {
+			if (serverConnection != null) {
+				ProxyMultiThread.discardOriginConnection(serverConnection);
+			}
+		}
+	}
+
+	// Serve a stale cached page because the server could not be reached or
+	// failed, and return it
+	private CacheEntry serveStaleOnError(CacheEntry staleEntry) {
+		AccessLog.debug("Server failed, serving stale page for " + staleEntry.getUrl() + ".");
+		ProxyMultiThread.servedStalePageOnError();
+		fulfilCachedRequest(staleEntry, null);
+		return staleEntry;
+	}
+
+	// Send the client its range from the server's 206 answer to a range fetch.
+	// What the server sent is written into the page's sparse entry, which is
+	// created here if there is none and the page may be cached, and each segment
+	// is marked as cached once all of it has been written. Parts of the client's
+	// range on either side of what the server sent are served from the entry.
+	private void relayFetchedRange(String requestUrl, OriginResponse response, SparseCacheEntry partial,
+			long expiresAt) throws IOException {
+		long[] contentRange = ByteRange.parseContentRange(response.getHeader("Content-Range"));
+		if (contentRange == null) {
+			throw new IOException("Server sent a 206 without a valid Content-Range");
+		}
+		long fetchedStart = contentRange[0];
+		long fetchedEnd = contentRange[1];
+		long size = contentRange[2];
+		if (partial != null && size != partial.getSize()) {
+			ProxyMultiThread.removeCachedPage(partial);
+			partial = null;
+		} else if (partial != null) {
+			ProxyMultiThread.revalidatedPage(partial, true, expiresAt);
+		} else if (size > 0 && !CacheControl.parse(response.getHeader("Cache-Control")).isNoStore()) {
+			partial = createPartialPage(requestUrl, response, size, expiresAt);
+		}
+
+		// Work out what the client can be sent: its range, cut short where the
+		// server's range ends unless the entry holds the rest
+		long knownSize = size >= 0 ? size : fetchedEnd + 1;
+		long start = requestedRange.getStart(knownSize);
+		long end = requestedRange.getEnd(knownSize);
+		if (end > fetchedEnd && (partial == null || !partial.hasRange(fetchedEnd + 1, end))) {
+			end = fetchedEnd;
+		}
+		boolean satisfiable = requestedRange.isSatisfiable(knownSize) && start <= end
+				&& (start >= fetchedStart || (partial != null && partial.hasRange(start, fetchedStart - 1)));
+		if (satisfiable) {
+			writeResponseHead("206 Partial Content",
+					"Content-Range: bytes " + start + "-" + end + "/" + (size >= 0 ? size : "*") + "\r\n",
+					end - start + 1);
+			if (start < fetchedStart) {
+				ProxyMetrics.addBytesFromCache(fetchedStart - start);
+				sendFromFile(partial, start, fetchedStart - 1);
+			}
+		} else {
+			sendRangeNotSatisfiable(knownSize);
+		}
+
+		FileChannel cacheChannel = null;
+		if (partial != null) {
+			try {
+				cacheChannel = FileChannel.open(partial.getFile().toPath(), StandardOpenOption.WRITE);
+			} catch (IOException e) {
+				AccessLog.error("Error trying to cache " + partial.getFile().getName());
+			}
+		}
+		// The first segment to mark as cached is the first the server sent all of
+		int segment = partial == null ? 0 : partial.segmentOf(fetchedStart);
+		if (partial != null && partial.segmentStart(segment) < fetchedStart) {
+			segment++;
+		}
+		byte[] buffer = copyBuffer.get();
+		InputStream serverStream = response.getBody();
+		long position = fetchedStart;
+		int read;
+		while ((read = serverStream.read(buffer)) >= 0) {
+			long from = Math.max(position, start);
+			long to = Math.min(position + read - 1, end);
+			if (satisfiable && from <= to) {
+				clientOutput.write(buffer, (int) (from - position), (int) (to - from + 1));
+				clientOutput.flush();
+				throttle(to - from + 1);
+			}
+			if (cacheChannel != null) {
+				try {
+					ByteBuffer written = ByteBuffer.wrap(buffer, 0, read);
+					long writeAt = position;
+					while (written.hasRemaining()) {
+						writeAt += cacheChannel.write(written, writeAt);
+					}
+					while (segment < partial.getSegmentCount() && partial.segmentEnd(segment) < position + read) {
+						if (partial.addSegment(segment++)) {
+							ProxyMultiThread.completedPage(partial);
+						}
+					}
+				} catch (IOException e) {
+					AccessLog.error("Error writing to cache, range will not be cached");
+					cacheChannel.close();
+					cacheChannel = null;
+				}
+			}
+			position += read;
+		}
+		if (cacheChannel != null) {
+			cacheChannel.close();
+		}
+
+		if (satisfiable && end > fetchedEnd) {
+			ProxyMetrics.addBytesFromCache(end - fetchedEnd);
+			sendFromFile(partial, fetchedEnd + 1, end);
 		}
+		clientOutput.flush();
 	}
 
-	// Handle a HTTPS CONNECT request
+	// Create and cache an empty sparse entry for a page the server has sent a
+	// range of, if it sent a strong validator to check the entry with later.
+	// Return null if the page cannot be cached this way.
+	private SparseCacheEntry createPartialPage(String requestUrl, OriginResponse response, long size,
+			long expiresAt) {
+		String etag = response.getHeader("ETag");
+		if (etag != null && etag.startsWith("W/")) {
+			etag = null;
+		}
+		String lastModified = response.getHeader("Last-Modified");
+		if (etag == null && lastModified == null) {
+			return null;
+		}
+		File file = null;
+		try {
+			file = CacheLayout.createPartialFile(requestUrl);
+			SparseCacheEntry partial = SparseCacheEntry.create(requestUrl, file, size, etag, lastModified, expiresAt);
+			ProxyMultiThread.addCachedPage(partial);
+			return partial;
+		} catch (IOException e) {
+			AccessLog.error("Error trying to cache " + requestUrl);
+			if (file != null) {
+				file.delete();
+			}
+			return null;
+		}
+	}
+
+	// Send the client the bytes from the first to the last given from a cached
+	// entry's file
+	private void sendFromFile(CacheEntry entry, long start, long end) throws IOException {
+		try (FileChannel cachedFileChannel = FileChannel.open(entry.getFile().toPath(), StandardOpenOption.READ)) {
+			sendFromChannel(cachedFileChannel, start, end);
+		}
+	}
+
+	// Send the client the bytes from the first to the last given from an open
+	// cached file. The file ending early is an error, since the response head
+	// has promised every byte.
+	private void sendFromChannel(FileChannel cachedFileChannel, long start, long end) throws IOException {
+		cachedFileChannel.position(start);
+		InputStream range = new OriginResponse.BoundedInputStream(Channels.newInputStream(cachedFileChannel),
+				end - start + 1);
+		byte[] buffer = copyBuffer.get();
+		int read;
+		while ((read = range.read(buffer)) >= 0) {
+			clientOutput.write(buffer, 0, read);
+			throttle(read);
+		}
+	}
+
+	// Tell the client that the range it asked for lies outside the page
+	private void sendRangeNotSatisfiable(long size) throws IOException {
+		writeResponseHead("416 Range Not Satisfiable", "Content-Range: bytes */" + size + "\r\n", 0);
+		clientOutput.flush();
+	}
+
+	// Tell the client the server could not be reached or failed. The connection
+	// is closed afterwards, so a failure to send this is ignored.
+	private void sendBadGateway() {
+		try {
+			writeResponseHead("502 Bad Gateway", "", 0);
+			clientOutput.flush();
+		} catch (IOException e) {
+		}
+	}
+
+	// Build the request sent to the server for a page, with the method given
+	// (GET, or HEAD for just the head of the response). It asks the server to
+	// keep the connection open, and to answer conditionally if a stale cached
+	// entry is given. If a range is given only that range is asked for, and if
+	// a sparse entry is given, only if the page has not changed since.
+	static String getOriginRequest(String method, URL remoteURL, CacheEntry staleEntry, ByteRange fetchRange,
+			SparseCacheEntry partial) {
+		return getOriginRequest(method, remoteURL, staleEntry, fetchRange, partial, true);
+	}
+
+	// Build the request sent to the server for a page, as above. Unless asked to
+	// keep the connection open, it is sent as HTTP/1.0 and asks the server to
+	// close the connection, so that the body runs until it does.
+	static String getOriginRequest(String method, URL remoteURL, CacheEntry staleEntry, ByteRange fetchRange,
+			SparseCacheEntry partial, boolean keepAlive) {
+		String path = remoteURL.getFile().isEmpty() ? "/" : remoteURL.getFile();
+		String host = remoteURL.getPort() == -1 ? remoteURL.getHost() : remoteURL.getHost() + ":" + remoteURL.getPort();
+		StringBuilder request = new StringBuilder();
+		request.append(method).append(' ').append(path).append(keepAlive ? " HTTP/1.1\r\n" : " HTTP/1.0\r\n");
+		request.append("Host: ").append(host).append("\r\n");
+		request.append("User-Agent: ProxyServer/1.0\r\n");
+		request.append("Accept: */*\r\n");
+		request.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+		if (staleEntry != null && staleEntry.getEtag() != null) {
+			request.append("If-None-Match: ").append(staleEntry.getEtag()).append("\r\n");
+		}
+		if (staleEntry != null && staleEntry.getLastModified() != null) {
+			request.append("If-Modified-Since: ").append(staleEntry.getLastModified()).append("\r\n");
+		}
+		if (fetchRange != null) {
+			request.append("Range: ").append(fetchRange).append("\r\n");
+		}
+		if (partial != null) {
+			String validator = partial.getEtag() != null ? partial.getEtag() : partial.getLastModified();
+			request.append("If-Range: ").append(validator).append("\r\n");
+		}
+		return request.append("\r\n").toString();
+	}
+
+	// Write the head of a response to the client: the status, the headers given
+	// (each ending in CRLF), and how the body is framed. A body of known length
+	// is sent with a Content-Length. Otherwise it is sent in chunks to a HTTP/1.1
+	// client, or ended by closing the connection for a HTTP/1.0 one.
+	private void writeResponseHead(String status, String headers, long contentLength) throws IOException {
+		if (firstByteAt == 0) {
+			firstByteAt = System.nanoTime();
+		}
+		this.status = Integer.parseInt(status.substring(0, 3));
+		StringBuilder head = new StringBuilder(http11 ? "HTTP/1.1 " : "HTTP/1.0 ").append(status).append("\r\n");
+		head.append(headers);
+		head.append("Proxy-agent: ProxyServer/1.0\r\n");
+		if (contentLength >= 0) {
+			head.append("Content-Length: ").append(contentLength).append("\r\n");
+		} else if (http11 && keepAlive) {
+			head.append("Transfer-Encoding: chunked\r\n");
+			chunkedResponse = true;
+		} else {
+			keepAlive = false;
+		}
+		if (!keepAlive) {
+			head.append("Connection: close\r\n");
+		} else if (!http11) {
+			head.append("Connection: keep-alive\r\n");
+		}
+		head.append("\r\n");
+		clientOutput.write(head.toString().getBytes("ISO-8859-1"));
+	}
+
+	// Copy a stream to the browser and, if given, to the cache at the same time.
+	// Bytes are passed on exactly as read through one buffer, in chunks if the
+	// response is chunked, and the browser is flushed after each one. A failure
+	// writing the cache stops caching but not the response. Return whether the
+	// cache holds the whole stream.
+	private boolean teeToClient(InputStream inputStream, OutputStream cacheStream) throws IOException {
+		byte[] buffer = copyBuffer.get();
+		boolean cacheComplete = cacheStream != null;
+		int read;
+		while ((read = inputStream.read(buffer)) >= 0) {
+			if (read == 0) {
+				continue;
+			}
+			if (chunkedResponse) {
+				clientOutput.write((Integer.toHexString(read) + "\r\n").getBytes("ISO-8859-1"));
+				clientOutput.write(buffer, 0, read);
+				clientOutput.write('\r');
+				clientOutput.write('\n');
+			} else {
+				clientOutput.write(buffer, 0, read);
+			}
+			clientOutput.flush();
+			throttle(read);
+			if (cacheComplete) {
+				try {
+					cacheStream.write(buffer, 0, read);
+				} catch (IOException e) {
+					AccessLog.error("Error writing to cache, response will not be cached");
+					cacheComplete = false;
+				}
+			}
+		}
+		if (chunkedResponse) {
+			clientOutput.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+		}
+		clientOutput.flush();
+		return cacheComplete;
+	}
+
+	// Record bytes just written to the client against the rate limits, and wait
+	// if they have gone over. Bytes served from the cache do not count against
+	// the server's limit. What is waiting is flushed first, so the wait does
+	// not hold it back as well.
+	private void throttle(long bytes) throws IOException {
+		long wait = flow.sent(bytes, outcome != ProxyMetrics.HIT);
+		if (wait > 0) {
+			clientOutput.flush();
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the rate limit");
+			}
+		}
+	}
+
+	// Handle a HTTPS CONNECT request. Once the server connection is open, the
+	// tunnel is handed over to an event loop, which relays both directions
+	// without holding a thread per connection.
 	private void handleHTTPSRequest(String requestUrl) {
 		String url = requestUrl.substring(7);
 		String pieces[] = url.split(":");
 		url = pieces[0];
 		int serverPort = Integer.valueOf(pieces[1]);
 
+		SocketChannel serverChannel = null;
 		try {
-			// Only the first line of the CONNECT request has been processed. Clear the
-			// rest.
-			for (int i = 0; i < 5; i++) {
-				clientReader.readLine();
-			}
 			// Create a new connection to the server
-			InetAddress serverAddress = InetAddress.getByName(url);
-			Socket serverSocket = new Socket(serverAddress, serverPort);
-			serverSocket.setSoTimeout(5000);
-
-			String line = getResponse(200, true);
-			clientWriter.write(line);
-			clientWriter.flush();
-
-			// Create the IO tools to read from and write to the server
-			BufferedWriter serverWriter = new BufferedWriter(new OutputStreamWriter(serverSocket.getOutputStream()));
-			BufferedReader serverReader = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-
-			// Spin off a seperate thread to send from the client to the server. This thread
-			// will handle communication from the server to the client.
-			ClientToServerHttpsTransmitter clientToServerHttps = new ClientToServerHttpsTransmitter(
-					browserSocket.getInputStream(), serverSocket.getOutputStream());
-			clientToServerHttpsThread = new Thread(clientToServerHttps);
-			clientToServerHttpsThread.start();
-
-			// Handle communication from the server to the client
-			try {
-				byte[] buffer = new byte[4096];
-				int read;
-				do {
-					read = serverSocket.getInputStream().read(buffer);
-					if (read > 0) {
-						browserSocket.getOutputStream().write(buffer, 0, read);
-						if (serverSocket.getInputStream().available() < 1) {
-							browserSocket.getOutputStream().flush();
-						}
-					}
-				} while (read >= 0);
-			} catch (SocketTimeoutException e) {
-				System.out.println("Socket timeout during HTTPs connection");
-			} catch (IOException e) {
-				System.out.println("Error handling HTTPs connection");
-			}
+			InetAddress serverAddress = ProxyMultiThread.resolveHost(url);
+			serverChannel = SocketChannel.open();
+			serverChannel.socket().connect(new InetSocketAddress(serverAddress, serverPort), 5000);
 
-			// Close the resources
-			closeResources(serverSocket, serverReader, serverWriter, clientWriter);
+			// Hand the tunnel over, along with the response telling the browser it is
+			// open and anything the browser has already sent through it
+			ByteBuffer established = ByteBuffer.wrap(getResponse(200, true).getBytes());
+			ByteBuffer alreadySent = null;
+			int buffered = Math.min(clientInput.available(), BUFFER_SIZE);
+			if (buffered > 0) {
+				byte[] bytes = new byte[buffered];
+				alreadySent = ByteBuffer.wrap(bytes, 0, clientInput.read(bytes));
+			}
+			EventLoop eventLoop = ProxyMultiThread.nextEventLoop();
+			TunnelRelay relay = new TunnelRelay(eventLoop, browserSocket.getChannel(), serverChannel, established,
+					alreadySent);
+			relay.setRequest(clientAddress, requestUrl, startedAt);
+			relay.setFlow(flow);
+			handedOff = true;
+			eventLoop.execute(relay::start);
 
 		} catch (SocketTimeoutException e) {
-			String line = getResponse(504, false);
-			try {
-				clientWriter.write(line);
-				clientWriter.flush();
-			} catch (IOException x) {
+			sendTimeout();
+			closeServerChannel(serverChannel);
+		} catch (Exception e) {
+			AccessLog.warn("Error on HTTPS " + requestUrl);
+			closeServerChannel(serverChannel);
+		}
+	}
+
+	// Handle a request to open a WebSocket. The request is sent on to the server
+	// and, if the server switches protocols, the connection is handed over to an
+	// event loop, which relays frames both ways for as long as the WebSocket
+	// stays open without holding a thread. If the server refuses, its response
+	// is passed on as it is.
+	private void handleWebSocketRequest(String requestUrl) {
+		SocketChannel serverChannel = null;
+		try {
+			URL remoteURL = new URL(requestUrl);
+			InetAddress serverAddress = ProxyMultiThread.resolveHost(remoteURL.getHost());
+			serverChannel = SocketChannel.open();
+			Socket serverSocket = serverChannel.socket();
+			int serverPort = remoteURL.getPort() == -1 ? 80 : remoteURL.getPort();
+			serverSocket.connect(new InetSocketAddress(serverAddress, serverPort), 5000);
+			serverSocket.setSoTimeout(UPGRADE_TIMEOUT);
+			serverSocket.setTcpNoDelay(true);
+			OutputStream serverOutput = new ProxyMetrics.CountingOutputStream(serverSocket.getOutputStream(),
+					ProxyMetrics.bytesToServers);
+			serverOutput.write(getUpgradeRequest(remoteURL, requestHead).getBytes("ISO-8859-1"));
+			serverOutput.flush();
+
+			// The response head is read a byte at a time, so that none of the frames
+			// the server may send straight after it are read here
+			OriginResponse response = OriginResponse.read(
+					new ProxyMetrics.CountingInputStream(serverSocket.getInputStream(), ProxyMetrics.bytesFromServers),
+					false);
+			String upgrade = response.getHeader("Upgrade");
+			if (response.getStatus() != 101 || upgrade == null || !upgrade.toLowerCase().contains("websocket")) {
+				AccessLog.debug("Server refused WebSocket for " + requestUrl + ": " + response.getStatusText());
+				writeResponseHead(response.getStatusText(), response.getForwardedHeaders(),
+						response.getContentLength());
+				teeToClient(response.getBody(), null);
+				closeServerChannel(serverChannel);
+				return;
 			}
+
+			// Hand the WebSocket over, along with the server's response and any frames
+			// the browser has already sent
+			byte[] head = ("HTTP/1.1 " + response.getStatusText() + "\r\n" + response.getForwardedHeaders()
+					+ "Upgrade: " + upgrade + "\r\nConnection: Upgrade\r\n\r\n").getBytes("ISO-8859-1");
+			ByteBuffer alreadySent = null;
+			int buffered = Math.min(clientInput.available(), BUFFER_SIZE);
+			if (buffered > 0) {
+				byte[] bytes = new byte[buffered];
+				alreadySent = ByteBuffer.wrap(bytes, 0, clientInput.read(bytes));
+			}
+			EventLoop eventLoop = ProxyMultiThread.nextEventLoop();
+			TunnelRelay relay = new TunnelRelay(eventLoop, browserSocket.getChannel(), serverChannel,
+					ByteBuffer.wrap(head), alreadySent);
+			relay.setRequest(clientAddress, requestUrl, startedAt);
+			relay.setWebSocket(head.length);
+			relay.setFlow(flow);
+			handedOff = true;
+			eventLoop.execute(relay::start);
+
+		} catch (SocketTimeoutException e) {
+			sendTimeout();
+			closeServerChannel(serverChannel);
 		} catch (Exception e) {
-			System.out.println("Error on HTTPS " + requestUrl);
+			AccessLog.warn("Error on WebSocket " + requestUrl);
+			closeServerChannel(serverChannel);
+		}
+	}
+
+	// Return whether a request asks to switch its connection to a WebSocket
+	static boolean isWebSocketUpgrade(HttpHead head) {
+		return head.headerContains("upgrade", "websocket") && head.headerContains("connection", "upgrade");
+	}
+
+	// Build the request sent to the server to open a WebSocket. The browser's
+	// headers are passed on, including the handshake's Sec-WebSocket-* headers,
+	// apart from those which apply only to the connection to the proxy.
+	static String getUpgradeRequest(URL remoteURL, HttpHead head) {
+		String path = remoteURL.getFile().isEmpty() ? "/" : remoteURL.getFile();
+		String host = remoteURL.getPort() == -1 ? remoteURL.getHost() : remoteURL.getHost() + ":" + remoteURL.getPort();
+		StringBuilder request = new StringBuilder();
+		request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(host).append("\r\n");
+		request.append("Upgrade: websocket\r\n");
+		request.append("Connection: Upgrade\r\n");
+		for (int i = 0; i < head.getHeaderCount(); i++) {
+			String name = head.getHeaderName(i);
+			if (!UPGRADE_HOP_BY_HOP_HEADERS.contains(name)) {
+				request.append(name).append(": ").append(head.getHeaderValue(i)).append("\r\n");
+			}
+		}
+		return request.append("\r\n").toString();
+	}
+
+	// Tell the browser the server did not answer in time
+	private void sendTimeout() {
+		String line = getResponse(504, false);
+		firstByteAt = System.nanoTime();
+		status = 504;
+		try {
+			clientOutput.write(line.getBytes());
+			clientOutput.flush();
+		} catch (IOException x) {
 		}
 	}
 
 	// Respond to the browser with a 403 Error Code
 	private void blockedSiteRequested() {
 		try {
-			BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(browserSocket.getOutputStream()));
-			String line = getResponse(403, false);
-			bufferedWriter.write(line);
-			bufferedWriter.flush();
+			writeResponseHead("403 Access Forbidden", "", 0);
+			clientOutput.flush();
 		} catch (IOException e) {
-			System.out.println("Error writing to client when requested a blocked site");
+			AccessLog.warn("Error writing to client when requested a blocked site");
+			keepAlive = false;
 		}
 	}
 
-	// Check whether the file extension is that of an image
-	private boolean isImage(String fileExtension) {
-		return fileExtension.contains(PNG) || fileExtension.contains(JPG) || fileExtension.contains(JPEG)
-				|| fileExtension.contains(GIF);
+	// Respond to the browser with a 429 Error Code, telling it when to try again
+	private void rateLimited() {
+		try {
+			writeResponseHead("429 Too Many Requests", "Retry-After: 1\r\n", 0);
+			clientOutput.flush();
+		} catch (IOException e) {
+			AccessLog.warn("Error writing to client over the rate limit");
+			keepAlive = false;
+		}
 	}
 
 	// Return certain response strings based on the error code passed. There are two
 	// cases for 200, 'OK' and 'Connection established', in which case check the
 	// boolean.
-	private String getResponse(int code, boolean connectionEstablished) {
+	static String getResponse(int code, boolean connectionEstablished) {
 		String response = "";
 		switch (code) {
 			case 200:
@@ -330,6 +1229,15 @@ public class ConnectionThread implements Runnable {
 			case 404:
 				response = "HTTP/1.0 404 NOT FOUND \nProxy-agent: ProxyServer/1.0\n\r\n";
 				break;
+			case 429:
+				response = "HTTP/1.0 429 Too Many Requests\nRetry-After: 1\nProxy-agent: ProxyServer/1.0\n\r\n";
+				break;
+			case 502:
+				response = "HTTP/1.0 502 Bad Gateway\nProxy-agent: ProxyServer/1.0\n\r\n";
+				break;
+			case 503:
+				response = "HTTP/1.0 503 Service Unavailable\nProxy-agent: ProxyServer/1.0\n\r\n";
+				break;
 			case 504:
 				response = "HTTP/1.0 504 Timeout Occured after 10s\nUser-Agent: ProxyServer/1.0\n\r\n";
 				break;
@@ -339,54 +1247,25 @@ public class ConnectionThread implements Runnable {
 		return response;
 	}
 
-	// Close the passed resources
-	private void closeResources(Socket serverSocket, BufferedReader serverReader, BufferedWriter serverWriter,
-			BufferedWriter clientWriter) throws IOException {
-		if (serverSocket != null) {
-			serverSocket.close();
-		}
-		if (serverReader != null) {
-			serverReader.close();
-		}
-		if (serverWriter != null) {
-			serverWriter.close();
+	// Flush anything still waiting for the client, then close the connection
+	private void closeClient() {
+		try {
+			clientOutput.flush();
+		} catch (IOException e) {
 		}
-		if (clientWriter != null) {
-			clientWriter.close();
+		try {
+			browserSocket.close();
+		} catch (IOException e) {
 		}
 	}
 
-	// Seperate class to handle HTTPS transmission from the client to the server. In
-	// practise it is spun off as a seperate thread to run alongside transmission
-	// from the server to the client.
-	class ClientToServerHttpsTransmitter implements Runnable {
-
-		InputStream clientStream;
-		OutputStream serverStream;
-
-		public ClientToServerHttpsTransmitter(InputStream proxyToClientIS, OutputStream proxyToServerOS) {
-			this.clientStream = proxyToClientIS;
-			this.serverStream = proxyToServerOS;
-		}
-
-		@Override
-		public void run() {
+	// Close the channel to the server, if it was opened
+	private void closeServerChannel(SocketChannel serverChannel) {
+		if (serverChannel != null) {
 			try {
-				byte[] buffer = new byte[4096];
-				int read;
-				do {
-					read = clientStream.read(buffer);
-					if (read > 0) {
-						serverStream.write(buffer, 0, read);
-						if (clientStream.available() < 1) {
-							serverStream.flush();
-						}
-					}
-				} while (read >= 0);
-			} catch (SocketTimeoutException e) {
+				serverChannel.close();
 			} catch (IOException e) {
-				System.out.println("Proxy to client HTTPS read timed out");
 			}
 		}
 	}
-}
\ No newline at end of file
+}
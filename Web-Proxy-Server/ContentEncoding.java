@@ -0,0 +1,106 @@
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class ContentEncoding {
+
+	/*
+	 * Constants for this class. The coding the cache compresses bodies with, the
+	 * size of the buffers used to compress and decompress, the smallest body
+	 * worth compressing, and the media types which compress well (a type
+	 * matches if it starts with, or ends with a suffix in, the list).
+	 */
+	public static final String GZIP = "gzip";
+	private static final int BUFFER_SIZE = 8192;
+	private static final long MIN_COMPRESSED_BYTES = 1024;
+	private static final String[] COMPRESSIBLE_TYPES = { "text/", "application/javascript",
+			"application/x-javascript", "application/json", "application/xml", "application/xhtml+xml",
+			"image/svg+xml", "+json", "+xml" };
+
+	// Whether bodies are compressed before they are cached
+	private static volatile boolean enabled = true;
+
+	// Set whether bodies are compressed before they are cached
+	public static void setEnabled(boolean compress) {
+		enabled = compress;
+	}
+
+	// Return the coding named in a Content-Encoding header in the form the cache
+	// records it, or null if the body is not encoded
+	public static String normalize(String contentEncoding) {
+		if (contentEncoding == null) {
+			return null;
+		}
+		String coding = contentEncoding.trim().toLowerCase();
+		if (coding.isEmpty() || coding.equals("identity")) {
+			return null;
+		}
+		return coding.equals("x-gzip") ? GZIP : coding;
+	}
+
+	// Return whether a body sent in the given (normalized) coding can be cached.
+	// Only a body the proxy can decode for clients which do not accept the
+	// coding may be.
+	public static boolean isCacheable(String coding) {
+		return coding == null || coding.equals(GZIP);
+	}
+
+	// Return whether an unencoded body of the given type and length (-1 if not
+	// known) should be compressed before it is cached
+	public static boolean shouldCompress(String contentType, long contentLength) {
+		if (!enabled || contentType == null || (contentLength >= 0 && contentLength < MIN_COMPRESSED_BYTES)) {
+			return false;
+		}
+		int parameters = contentType.indexOf(';');
+		String type = (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim().toLowerCase();
+		for (String compressible : COMPRESSIBLE_TYPES) {
+			if (compressible.startsWith("+") ? type.endsWith(compressible) : type.startsWith(compressible)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Return whether an Accept-Encoding header (which may be null) allows a
+	// body in the given coding. The coding must be listed, or covered by *,
+	// without q=0.
+	public static boolean accepts(String acceptEncoding, String coding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		double wildcard = 0;
+		for (String listed : acceptEncoding.split(",")) {
+			String[] parts = listed.split(";");
+			String name = normalize(parts[0]);
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim().toLowerCase();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			if (coding.equals(name)) {
+				return quality > 0;
+			}
+			if ("*".equals(name)) {
+				wildcard = quality;
+			}
+		}
+		return wildcard > 0;
+	}
+
+	// Return a stream which compresses what is written to it into the given
+	// stream. Closing it finishes the compressed body and closes that stream.
+	public static OutputStream compress(OutputStream outputStream) throws IOException {
+		return new GZIPOutputStream(outputStream, BUFFER_SIZE);
+	}
+
+	// Return a stream which reads the given compressed stream decompressed
+	public static InputStream decompress(InputStream inputStream) throws IOException {
+		return new GZIPInputStream(inputStream, BUFFER_SIZE);
+	}
+}
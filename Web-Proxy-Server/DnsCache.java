@@ -0,0 +1,184 @@
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DnsCache {
+
+	/*
+	 * Constants for the cache. The number of threads which run lookups, how long
+	 * a blocking caller waits for a lookup, the fraction of an entry's time to
+	 * live left when a lookup is started in the background to refresh it, and
+	 * how often (in milliseconds) expired entries are dropped.
+	 */
+	private static final int RESOLVER_THREADS = 4;
+	private static final long LOOKUP_TIMEOUT = 10000;
+	private static final int PREFETCH_FRACTION = 5;
+	private static final long SWEEP_INTERVAL = 60000;
+
+	/*
+	 * Resolves host names to addresses. The default uses the system resolver,
+	 * and a stand-in can be given instead, for example in tests.
+	 */
+	public interface Resolver {
+		InetAddress[] resolve(String host) throws UnknownHostException;
+	}
+
+	/*
+	 * Variables for the cache. The resolver, the lookup for each host (finished
+	 * or still running), how long an address and a failed lookup are kept for,
+	 * the threads which run lookups, and when expired entries are next dropped.
+	 */
+	private Resolver resolver;
+	private ConcurrentHashMap<String, Lookup> lookups = new ConcurrentHashMap<>();
+	private long ttl;
+	private long negativeTtl;
+	private ExecutorService resolverThreads;
+	private AtomicLong nextSweepAt = new AtomicLong(System.currentTimeMillis() + SWEEP_INTERVAL);
+
+	/*
+	 * Counters for the cache. Lookups answered from the cache, lookups sent to
+	 * the resolver, and refreshes started before an entry expired.
+	 */
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong prefetches = new AtomicLong();
+
+	/*
+	 * Constructor for the cache using the system resolver.
+	 */
+	public DnsCache(long ttl, long negativeTtl) {
+		this(InetAddress::getAllByName, ttl, negativeTtl);
+	}
+
+	/*
+	 * Constructor for the cache using the given resolver.
+	 */
+	public DnsCache(Resolver resolver, long ttl, long negativeTtl) {
+		this.resolver = resolver;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		resolverThreads = Executors.newFixedThreadPool(RESOLVER_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "dns-resolver");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Look up a host without blocking. The future completes with its address,
+	// or exceptionally if it could not be resolved. A cached answer (including a
+	// failure) is returned straight away. An answer close to expiry is refreshed
+	// in the background, so that hosts in use are never waited on. Requests for
+	// a host already being looked up share that lookup.
+	public CompletableFuture<InetAddress> lookup(String host) {
+		String key = host.toLowerCase();
+		long now = System.currentTimeMillis();
+		sweep(now);
+		Lookup lookup = lookups.get(key);
+		if (lookup != null && (!lookup.result.isDone() || now < lookup.expiresAt)) {
+			hits.incrementAndGet();
+			if (lookup.result.isDone() && !lookup.result.isCompletedExceptionally() && lookup.refresh == null
+					&& now >= lookup.prefetchAt) {
+				prefetch(key, lookup);
+			}
+			return lookup.result;
+		}
+		misses.incrementAndGet();
+		Lookup fresh = new Lookup();
+		Lookup current = lookup == null ? lookups.putIfAbsent(key, fresh)
+				: lookups.replace(key, lookup, fresh) ? null : lookups.get(key);
+		if (current != null) {
+			return current.result;
+		}
+		start(key, fresh);
+		return fresh.result;
+	}
+
+	// Look up a host, waiting for the answer. For callers which already run on
+	// a thread of their own.
+	public InetAddress resolve(String host) throws UnknownHostException {
+		try {
+			return lookup(host).get(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UnknownHostException) {
+				throw (UnknownHostException) e.getCause();
+			}
+			throw new UnknownHostException(host);
+		} catch (InterruptedException | TimeoutException e) {
+			throw new UnknownHostException(host);
+		}
+	}
+
+	// Return a summary of the cache
+	public String getStats() {
+		return "DNS lookups cached: " + hits.get() + ", resolved: " + misses.get() + ", refreshed early: "
+				+ prefetches.get() + ", hosts: " + lookups.size();
+	}
+
+	// Stop the resolver threads
+	public void close() {
+		resolverThreads.shutdownNow();
+	}
+
+	// Drop every finished lookup which has expired, including failed ones, so
+	// that hosts which are no longer asked for do not stay in memory. Done by
+	// one caller once in each interval.
+	private void sweep(long now) {
+		long sweepAt = nextSweepAt.get();
+		if (now < sweepAt || !nextSweepAt.compareAndSet(sweepAt, now + SWEEP_INTERVAL)) {
+			return;
+		}
+		lookups.values().removeIf(lookup -> lookup.result.isDone() && now >= lookup.expiresAt);
+	}
+
+	// Refresh an entry which is about to expire. The current answer is served
+	// until the new one arrives, and a failed refresh keeps the current answer.
+	private void prefetch(String key, Lookup current) {
+		Lookup refresh = new Lookup();
+		synchronized (current) {
+			if (current.refresh != null) {
+				return;
+			}
+			current.refresh = refresh;
+		}
+		prefetches.incrementAndGet();
+		start(key, refresh);
+		refresh.result.whenComplete((address, error) -> {
+			if (error == null) {
+				lookups.replace(key, current, refresh);
+			}
+		});
+	}
+
+	// Run a lookup on one of the resolver threads, and record when its answer
+	// should be refreshed and when it expires
+	private void start(String key, Lookup lookup) {
+		try {
+			resolverThreads.execute(() -> {
+				try {
+					InetAddress[] addresses = resolver.resolve(key);
+					long now = System.currentTimeMillis();
+					lookup.prefetchAt = now + ttl - ttl / PREFETCH_FRACTION;
+					lookup.expiresAt = now + ttl;
+					lookup.result.complete(addresses[0]);
+				} catch (UnknownHostException | RuntimeException e) {
+					lookup.expiresAt = System.currentTimeMillis() + negativeTtl;
+					lookup.result.completeExceptionally(
+							e instanceof UnknownHostException ? e : new UnknownHostException(key));
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			lookup.result.completeExceptionally(new UnknownHostException(key));
+		}
+	}
+
+	/*
+	 * A lookup of one host. Its answer, when it should be refreshed and when it
+	 * expires (set once it has finished), and any refresh in progress.
+	 */
+	private static class Lookup {
+		private CompletableFuture<InetAddress> result = new CompletableFuture<>();
+		private volatile long prefetchAt = Long.MAX_VALUE;
+		private volatile long expiresAt;
+		private volatile Lookup refresh;
+	}
+}
@@ -0,0 +1,224 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class EventLoop implements Runnable {
+
+	/*
+	 * Variables for this event loop. An id to tell the loops apart, the selector
+	 * which multiplexes every channel owned by this loop, a queue of tasks handed
+	 * over by other threads which are still to be run on this loop, tasks to be
+	 * run once a delay has passed (soonest first, used only by the loop's own
+	 * thread), and a boolean to declare whether the loop is running.
+	 */
+	private int id;
+	private Selector selector;
+	private Queue<Runnable> pendingTasks;
+	private PriorityQueue<Timer> timers = new PriorityQueue<>();
+	private volatile boolean running = true;
+
+	/*
+	 * Variables used only by the loop which accepts connections. The channel the
+	 * browser connects to, the group of loops to hand connections to, and the
+	 * index of the next loop to hand a connection to.
+	 */
+	private ServerSocketChannel acceptorChannel;
+	private EventLoop[] group;
+	private int nextLoop;
+
+	/*
+	 * Constructor for the event loop. Open the selector.
+	 */
+	public EventLoop(int id) throws IOException {
+		this.id = id;
+		selector = Selector.open();
+		pendingTasks = new ConcurrentLinkedQueue<>();
+	}
+
+	// Make this loop accept connections from the browser and share them out
+	// round-robin across the given group of loops
+	public void registerAcceptor(ServerSocketChannel serverChannel, EventLoop[] group) throws IOException {
+		this.acceptorChannel = serverChannel;
+		this.group = group;
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	// Hand a newly accepted channel to this loop. It is registered by the loop's
+	// own thread the next time it wakes up.
+	public void addChannel(SocketChannel channel) {
+		execute(() -> registerConnection(channel));
+	}
+
+	// Run a task on this loop's own thread the next time it wakes up. Channels
+	// may only be registered with the selector, or have their keys changed, from
+	// that thread.
+	public void execute(Runnable task) {
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+
+	// Run a task on this loop's own thread once the given delay (in nanoseconds)
+	// has passed, e.g. to carry on reading once a rate limit allows. This must
+	// be called from the loop's own thread.
+	public void schedule(Runnable task, long delayNanos) {
+		timers.add(new Timer(System.nanoTime() + delayNanos, task));
+	}
+
+	// Stop the loop and close every channel it owns
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	// Return the selector for this loop, so that connections can register
+	// further channels (e.g. to the origin server) with it
+	public Selector getSelector() {
+		return selector;
+	}
+
+	// The functionality of the event loop. Wait for events on any channel, or
+	// until the next timer is due, and pass each ready channel to the connection
+	// it belongs to. A connection, task or timer which fails does not stop the
+	// loop.
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Timer next = timers.peek();
+				long wait = next == null ? 0 : next.dueAt - System.nanoTime();
+				if (next == null) {
+					selector.select();
+				} else if (wait <= 0) {
+					selector.selectNow();
+				} else {
+					selector.select(TimeUnit.NANOSECONDS.toMillis(wait + 999999));
+				}
+				runPendingTasks();
+				runDueTimers();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						acceptConnection();
+					} else {
+						handleKey(key);
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				break;
+			} catch (IOException | RuntimeException e) {
+				AccessLog.error("Error in event loop " + id);
+			}
+		}
+		closeChannels();
+	}
+
+	// Pass a ready key to its handler. A handler which fails with an unchecked
+	// exception is closed, so that only its own connections are lost and the
+	// loop carries on serving the rest.
+	private void handleKey(SelectionKey key) {
+		ChannelHandler handler = (ChannelHandler) key.attachment();
+		try {
+			handler.handle(key);
+		} catch (RuntimeException e) {
+			AccessLog.error("Error handling connection on event loop " + id);
+			try {
+				handler.close();
+			} catch (RuntimeException closeError) {
+				key.cancel();
+			}
+		}
+	}
+
+	// Accept every waiting connection and hand each to the next loop in turn
+	private void acceptConnection() {
+		try {
+			SocketChannel channel;
+			while ((channel = acceptorChannel.accept()) != null) {
+				EventLoop eventLoop = group[nextLoop];
+				nextLoop = (nextLoop + 1) % group.length;
+				eventLoop.addChannel(channel);
+			}
+		} catch (IOException | RuntimeException e) {
+			AccessLog.error("Error accepting connection on event loop " + id);
+		}
+	}
+
+	// Run the tasks handed over since the last wake up
+	private void runPendingTasks() {
+		Runnable task;
+		while ((task = pendingTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				AccessLog.error("Error running task on event loop " + id);
+			}
+		}
+	}
+
+	// Run the timers which are due
+	private void runDueTimers() {
+		long now = System.nanoTime();
+		while (!timers.isEmpty() && timers.peek().dueAt - now <= 0) {
+			try {
+				timers.poll().task.run();
+			} catch (RuntimeException e) {
+				AccessLog.error("Error running timer on event loop " + id);
+			}
+		}
+	}
+
+	// Register a channel accepted from the browser, to be served by a new
+	// NioConnection
+	private void registerConnection(SocketChannel channel) {
+		try {
+			channel.configureBlocking(false);
+			NioConnection connection = new NioConnection(this, channel);
+			channel.register(selector, SelectionKey.OP_READ, connection);
+		} catch (IOException e) {
+			AccessLog.error("Error registering connection on event loop " + id);
+			try {
+				channel.close();
+			} catch (IOException x) {
+			}
+		}
+	}
+
+	// Close the selector and every channel registered with it
+	private void closeChannels() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof ChannelHandler) {
+					((ChannelHandler) key.attachment()).close();
+				}
+			}
+			selector.close();
+		} catch (ClosedSelectorException e) {
+		} catch (IOException e) {
+			System.out.println("Error closing event loop " + id);
+		}
+	}
+
+	/*
+	 * A task to be run on the loop once it is due, at a System.nanoTime().
+	 */
+	private static class Timer implements Comparable<Timer> {
+		private long dueAt;
+		private Runnable task;
+
+		private Timer(long dueAt, Runnable task) {
+			this.dueAt = dueAt;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			return Long.signum(dueAt - other.dueAt);
+		}
+	}
+}
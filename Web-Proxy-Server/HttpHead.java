@@ -0,0 +1,313 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class HttpHead {
+
+	/*
+	 * Constants for the parser. The most bytes of head accepted, and how many
+	 * headers there is room for before the tables grow.
+	 */
+	public static final int MAX_HEAD_SIZE = 65536;
+	private static final int INITIAL_HEADERS = 32;
+
+	/*
+	 * Variables for the buffer being parsed, which is in fill mode with the head
+	 * starting at index 0. How far it has been scanned, where the line being
+	 * scanned starts, and the index just after the blank line which ends the
+	 * head (-1 until it has been found).
+	 */
+	private ByteBuffer buffer;
+	private int scanned;
+	private int lineStart;
+	private int headEnd = -1;
+
+	/*
+	 * Variables for the head, held as offsets into the buffer so that nothing is
+	 * copied until it is asked for. The start line and the three parts of it
+	 * (method, target and version for a request, or version, status and reason
+	 * for a response), and the name and value of each header, without the
+	 * whitespace around them.
+	 */
+	private int startLineStart = -1;
+	private int startLineEnd = -1;
+	private int firstSpace;
+	private int secondSpace;
+	private int headerCount;
+	private int[] nameStart = new int[INITIAL_HEADERS];
+	private int[] nameEnd = new int[INITIAL_HEADERS];
+	private int[] valueStart = new int[INITIAL_HEADERS];
+	private int[] valueEnd = new int[INITIAL_HEADERS];
+
+	// Forget the head parsed last, so the parser can be used for the next one.
+	// The header tables are kept.
+	public void reset() {
+		buffer = null;
+		scanned = 0;
+		lineStart = 0;
+		headEnd = -1;
+		startLineStart = -1;
+		startLineEnd = -1;
+		headerCount = 0;
+	}
+
+	// Parse the bytes added to the buffer since the last call, which must be
+	// with the same buffer. Return true once the whole head has been read.
+	// Blank lines before the start line (which browsers may send after a body)
+	// are skipped.
+	public boolean parse(ByteBuffer buffer) {
+		this.buffer = buffer;
+		int end = buffer.position();
+		for (int i = scanned; i < end && headEnd < 0; i++) {
+			if (buffer.get(i) == '\n') {
+				int lineEnd = i > lineStart && buffer.get(i - 1) == '\r' ? i - 1 : i;
+				endLine(lineEnd, i + 1);
+				lineStart = i + 1;
+			}
+		}
+		scanned = headEnd >= 0 ? headEnd : end;
+		return headEnd >= 0;
+	}
+
+	// Return whether the whole head has been read
+	public boolean isComplete() {
+		return headEnd >= 0;
+	}
+
+	// Return whether the start line has been read
+	public boolean hasStartLine() {
+		return startLineStart >= 0;
+	}
+
+	// Return the index just after the blank line which ends the head. Anything
+	// from there on is the body, or the next message.
+	public int getHeadEnd() {
+		return headEnd;
+	}
+
+	// Return the request method (or a response's version)
+	public String getMethod() {
+		return string(startLineStart, firstSpace);
+	}
+
+	// Return the request target (or a response's status code)
+	public String getTarget() {
+		return string(firstSpace + 1, secondSpace);
+	}
+
+	// Return the request target as the absolute URL the proxy works with. A
+	// target without a scheme, such as the host and port of a CONNECT, is
+	// prefixed with http://. A request line without a target throws an
+	// IllegalArgumentException.
+	public String getUrl() {
+		String target = getTarget();
+		if (target.isEmpty()) {
+			throw new IllegalArgumentException("Bad request line " + getStartLine());
+		}
+		return target.startsWith("http") ? target : "http://" + target;
+	}
+
+	// Return the status code of a response, or -1 if it is not a number
+	public int getStatus() {
+		long status = parseNumber(firstSpace + 1, secondSpace);
+		return status < 0 || status > 999 ? -1 : (int) status;
+	}
+
+	// Return the whole start line
+	public String getStartLine() {
+		return string(startLineStart, startLineEnd);
+	}
+
+	// Return whether the message is HTTP/1.1, from the end of a request line or
+	// the start of a status line
+	public boolean isHttp11() {
+		return regionEquals(startLineEnd - 8, startLineEnd, "HTTP/1.1")
+				|| regionEquals(startLineStart, firstSpace, "HTTP/1.1");
+	}
+
+	// Return the number of headers
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	// Return the name of a header, in lower case
+	public String getHeaderName(int header) {
+		return string(nameStart[header], nameEnd[header]).toLowerCase();
+	}
+
+	// Return the value of a header
+	public String getHeaderValue(int header) {
+		return string(valueStart[header], valueEnd[header]);
+	}
+
+	// Return the value of the first header with the given name (in any case), or
+	// null if there is none
+	public String getHeader(String name) {
+		int header = indexOf(name);
+		return header < 0 ? null : getHeaderValue(header);
+	}
+
+	// Return whether there is a header with the given name
+	public boolean hasHeader(String name) {
+		return indexOf(name) >= 0;
+	}
+
+	// Return whether the first header with the given name contains the given
+	// token (in lower case), ignoring case, without copying the value
+	public boolean headerContains(String name, String token) {
+		int header = indexOf(name);
+		if (header < 0) {
+			return false;
+		}
+		for (int i = valueStart[header]; i <= valueEnd[header] - token.length(); i++) {
+			if (regionEquals(i, i + token.length(), token)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Return the Content-Length, or -1 if there is none. A value which is not a
+	// number throws a NumberFormatException.
+	public long getContentLength() {
+		int header = indexOf("content-length");
+		if (header < 0) {
+			return -1;
+		}
+		long contentLength = parseNumber(valueStart[header], valueEnd[header]);
+		if (contentLength < 0) {
+			throw new NumberFormatException("Bad Content-Length " + getHeaderValue(header));
+		}
+		return contentLength;
+	}
+
+	// Return whether the body is sent in chunks
+	public boolean isChunked() {
+		return headerContains("transfer-encoding", "chunked");
+	}
+
+	// A line running up to the given index (without its line ending) has been
+	// scanned, and the next starts at the other. Record it as the start line or
+	// a header, or end the head if it is blank.
+	private void endLine(int lineEnd, int nextLine) {
+		if (startLineStart < 0) {
+			if (lineEnd > lineStart) {
+				startLineStart = lineStart;
+				startLineEnd = lineEnd;
+				firstSpace = find(' ', lineStart, lineEnd);
+				secondSpace = find(' ', firstSpace + 1, lineEnd);
+			}
+			return;
+		}
+		if (lineEnd == lineStart) {
+			headEnd = nextLine;
+			return;
+		}
+		int colon = find(':', lineStart, lineEnd);
+		if (colon == lineStart || colon == lineEnd) {
+			return;
+		}
+		if (headerCount == nameStart.length) {
+			int size = headerCount * 2;
+			nameStart = Arrays.copyOf(nameStart, size);
+			nameEnd = Arrays.copyOf(nameEnd, size);
+			valueStart = Arrays.copyOf(valueStart, size);
+			valueEnd = Arrays.copyOf(valueEnd, size);
+		}
+		int start = lineStart;
+		int end = colon;
+		while (start < end && isWhitespace(buffer.get(start))) {
+			start++;
+		}
+		while (end > start && isWhitespace(buffer.get(end - 1))) {
+			end--;
+		}
+		nameStart[headerCount] = start;
+		nameEnd[headerCount] = end;
+		start = colon + 1;
+		end = lineEnd;
+		while (start < end && isWhitespace(buffer.get(start))) {
+			start++;
+		}
+		while (end > start && isWhitespace(buffer.get(end - 1))) {
+			end--;
+		}
+		valueStart[headerCount] = start;
+		valueEnd[headerCount] = end;
+		headerCount++;
+	}
+
+	// Return the index of the first header with the given name, or -1
+	private int indexOf(String name) {
+		for (int i = 0; i < headerCount; i++) {
+			if (regionEquals(nameStart[i], nameEnd[i], name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Return whether a region of the buffer holds the given text, ignoring the
+	// case of ASCII letters
+	private boolean regionEquals(int start, int end, String text) {
+		if (start < 0 || end - start != text.length()) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (toLowerCase(buffer.get(start + i)) != Character.toLowerCase(text.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Return the index of the first occurrence of a byte in a region of the
+	// buffer, or the end of the region if there is none
+	private int find(char c, int start, int end) {
+		int i = start;
+		while (i < end && buffer.get(i) != c) {
+			i++;
+		}
+		return i;
+	}
+
+	// Parse a region of the buffer as a decimal number, or return -1 if it is
+	// not one (or is too long to be a sensible length)
+	private long parseNumber(int start, int end) {
+		if (start >= end || end - start > 18) {
+			return -1;
+		}
+		long number = 0;
+		for (int i = start; i < end; i++) {
+			byte digit = buffer.get(i);
+			if (digit < '0' || digit > '9') {
+				return -1;
+			}
+			number = number * 10 + digit - '0';
+		}
+		return number;
+	}
+
+	// Copy a region of the buffer into a string
+	private String string(int start, int end) {
+		if (start >= end) {
+			return "";
+		}
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + start, end - start, StandardCharsets.ISO_8859_1);
+		}
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static char toLowerCase(byte b) {
+		return (char) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff);
+	}
+}
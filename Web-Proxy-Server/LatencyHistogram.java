@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+	/*
+	 * Constants for the histogram. Latencies are recorded in microseconds. Those
+	 * below the linear limit each have their own bucket. Above it, each power of
+	 * two is split into a fixed number of buckets, so a bucket is never more
+	 * than 1/8 of its value wide, however long the latency.
+	 */
+	private static final int LINEAR_LIMIT = 16;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = LINEAR_LIMIT + (64 - 4) * SUB_BUCKETS;
+
+	/*
+	 * Variables for the histogram. The count in each bucket, the number of
+	 * latencies recorded, their sum and the largest. All are updated without
+	 * locking, so recording never makes a request wait.
+	 */
+	private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong total = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	// Record a latency given in nanoseconds
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		buckets.incrementAndGet(bucketFor(micros));
+		count.incrementAndGet();
+		total.addAndGet(micros);
+		max.accumulateAndGet(micros, Math::max);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	// Return the mean latency in microseconds
+	public long getMean() {
+		long recorded = count.get();
+		return recorded == 0 ? 0 : total.get() / recorded;
+	}
+
+	// Return the largest latency in microseconds
+	public long getMax() {
+		return max.get();
+	}
+
+	// Return the latency in microseconds which the given fraction of recorded
+	// latencies are at or below, to within the width of its bucket
+	public long getPercentile(double fraction) {
+		long recorded = count.get();
+		if (recorded == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(recorded * fraction));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	// Return a one line summary, in milliseconds
+	public String getSummary() {
+		return String.format("count %d, mean %.1fms, p50 %.1fms, p90 %.1fms, p99 %.1fms, max %.1fms", getCount(),
+				getMean() / 1000.0, getPercentile(0.5) / 1000.0, getPercentile(0.9) / 1000.0,
+				getPercentile(0.99) / 1000.0, getMax() / 1000.0);
+	}
+
+	// Return the bucket a latency in microseconds falls in
+	private static int bucketFor(long micros) {
+		if (micros < LINEAR_LIMIT) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + subBucket;
+	}
+
+	// Return the largest latency in microseconds which falls in a bucket
+	private static long upperBound(int bucket) {
+		if (bucket < LINEAR_LIMIT) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+		long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (subBucket + 1) * width - 1;
+	}
+}
@@ -0,0 +1,127 @@
+import java.io.*;
+import java.net.*;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LinkPrefetcher {
+
+	/*
+	 * Constants for the prefetcher. The most links which may wait to be
+	 * fetched (more are dropped), and how long (in seconds) an idle thread
+	 * waits for another link before it finishes.
+	 */
+	private static final int QUEUE_SIZE = 1000;
+	private static final long IDLE_TIMEOUT = 30;
+
+	/*
+	 * Variables for the prefetcher. The cache it fetches into, the most links
+	 * fetched for one page (0 to turn prefetching off), the URLs waiting for or
+	 * being fetched, and the low priority threads which fetch them, whose number
+	 * is the most fetched at once.
+	 */
+	private ResponseCache cache;
+	private int perPage;
+	private Set<String> pending = ConcurrentHashMap.newKeySet();
+	private ThreadPoolExecutor prefetchThreads;
+
+	/*
+	 * Counters for the prefetcher. Pages scanned for links, links fetched,
+	 * links another request was already fetching, links which could not be
+	 * fetched or cached, and links dropped because too many were waiting.
+	 */
+	private AtomicLong pagesScanned = new AtomicLong();
+	private AtomicLong prefetched = new AtomicLong();
+	private AtomicLong alreadyFetching = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+
+	/*
+	 * Constructor for the prefetcher. Initalize the local variables.
+	 */
+	public LinkPrefetcher(ResponseCache cache, int perPage, int threads) {
+		this.cache = cache;
+		this.perPage = threads > 0 ? perPage : 0;
+		prefetchThreads = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), IDLE_TIMEOUT,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<>(QUEUE_SIZE), runnable -> {
+					Thread thread = new Thread(runnable, "link-prefetcher");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				});
+		prefetchThreads.allowCoreThreadTimeOut(true);
+	}
+
+	// Return a stream which passes what is written to it on to the given one,
+	// and fetches what the page links to as it passes, if the page is HTML and
+	// prefetching is on. Otherwise return the given stream as it is.
+	public OutputStream scan(String pageUrl, String contentType, OutputStream out) {
+		if (perPage <= 0 || contentType == null || !contentType.trim().toLowerCase().startsWith("text/html")) {
+			return out;
+		}
+		try {
+			LinkScanner scanner = new LinkScanner(out, new URL(pageUrl), this, perPage);
+			pagesScanned.incrementAndGet();
+			return scanner;
+		} catch (MalformedURLException e) {
+			return out;
+		}
+	}
+
+	// Fetch a linked URL into the cache in the background, unless it is already
+	// cached, being fetched or waiting to be, or blocked. Return whether it will
+	// be fetched.
+	public boolean prefetch(String url) {
+		if (cache.contains(url) || ProxyMultiThread.isBlocked(url) || !pending.add(url)) {
+			return false;
+		}
+		try {
+			prefetchThreads.execute(() -> {
+				try {
+					prefetchNow(url);
+				} finally {
+					pending.remove(url);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			pending.remove(url);
+			dropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	// Stop prefetching. Fetches in progress are abandoned, and their temporary
+	// files are swept away later.
+	public void close() {
+		prefetchThreads.shutdownNow();
+	}
+
+	// Return a summary of the prefetcher
+	public String getStats() {
+		return "Prefetching: " + (perPage > 0 ? "up to " + perPage + " links a page" : "off") + ". Pages scanned: "
+				+ pagesScanned.get() + ". Links fetched: " + prefetched.get() + ", " + alreadyFetching.get()
+				+ " already being fetched, " + failures.get() + " failed, " + dropped.get() + " dropped, "
+				+ prefetchThreads.getQueue().size() + " waiting";
+	}
+
+	// Fetch a linked URL into the cache, unless a request got to it first.
+	// Requests for it which arrive while it is being fetched wait for this fetch
+	// rather than making their own.
+	private void prefetchNow(String url) {
+		if (cache.contains(url) || cache.joinFetch(url) != null) {
+			alreadyFetching.incrementAndGet();
+			return;
+		}
+		try {
+			CacheEntry fetched = CacheRefresher.fetch(cache, url, null);
+			prefetched.incrementAndGet();
+			AccessLog.debug("Prefetched " + url + (fetched == null ? ", which may not be cached." : "."));
+			cache.finishFetch(url, fetched);
+		} catch (IOException | RuntimeException e) {
+			failures.incrementAndGet();
+			AccessLog.debug("Error prefetching " + url);
+			cache.abandonFetch(url);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+import java.io.*;
+import java.net.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class LinkScanner extends FilterOutputStream {
+
+	/*
+	 * Constants for the scanner. The longest tag looked into (longer ones are
+	 * skipped), and the pattern of an attribute and its value, which may be in
+	 * double quotes, single quotes or none.
+	 */
+	private static final int MAX_TAG_SIZE = 4096;
+	private static final Pattern ATTRIBUTE = Pattern
+			.compile("([a-zA-Z][\\w-]*)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))");
+
+	/*
+	 * Variables for the scanner. The URL relative links are resolved against
+	 * (the page's own, unless it names another with a base tag), the prefetcher
+	 * the links are passed to, and how many more links it may be passed for
+	 * this page.
+	 */
+	private URL base;
+	private LinkPrefetcher prefetcher;
+	private int remaining;
+
+	/*
+	 * Variables for the tag being read. Its characters so far (null between
+	 * tags), and the quote its current attribute value is in (0 if none).
+	 */
+	private StringBuilder tag;
+	private char quote;
+
+	/*
+	 * Constructor for the scanner. Initalize the local variables.
+	 */
+	public LinkScanner(OutputStream out, URL pageUrl, LinkPrefetcher prefetcher, int budget) {
+		super(out);
+		this.base = pageUrl;
+		this.prefetcher = prefetcher;
+		this.remaining = budget;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		scan((char) (b & 0xff));
+		out.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (int i = off; i < off + len && remaining > 0; i++) {
+			scan((char) (b[i] & 0xff));
+		}
+		out.write(b, off, len);
+	}
+
+	// Read one more character of the page. Once a tag is complete, look in it
+	// for a link. The page is read as ISO-8859-1, which keeps the ASCII of the
+	// markup intact whatever the page's charset.
+	private void scan(char c) {
+		if (remaining <= 0) {
+			return;
+		}
+		if (tag == null) {
+			if (c == '<') {
+				tag = new StringBuilder();
+				quote = 0;
+			}
+			return;
+		}
+		if (quote != 0) {
+			if (c == quote) {
+				quote = 0;
+			}
+		} else if (c == '"' || c == '\'') {
+			quote = c;
+		} else if (c == '>') {
+			String complete = tag.toString();
+			tag = null;
+			scanTag(complete);
+			return;
+		}
+		tag.append(c);
+		if (tag.length() > MAX_TAG_SIZE) {
+			tag = null;
+		}
+	}
+
+	// Pass the resource a tag links to, if it is one the page needs to be shown,
+	// to the prefetcher: the src of an image or script, and the href of a
+	// stylesheet, icon or preload. A base tag changes what later links are
+	// relative to. Links to other pages are not followed.
+	private void scanTag(String text) {
+		int nameEnd = 0;
+		while (nameEnd < text.length() && Character.isLetterOrDigit(text.charAt(nameEnd))) {
+			nameEnd++;
+		}
+		String name = text.substring(0, nameEnd).toLowerCase();
+		if (!name.equals("img") && !name.equals("script") && !name.equals("link") && !name.equals("base")) {
+			return;
+		}
+		String src = null;
+		String href = null;
+		String rel = "";
+		Matcher attribute = ATTRIBUTE.matcher(text);
+		attribute.region(nameEnd, text.length());
+		while (attribute.find()) {
+			String value = attribute.group(2) != null ? attribute.group(2)
+					: attribute.group(3) != null ? attribute.group(3) : attribute.group(4);
+			switch (attribute.group(1).toLowerCase()) {
+				case "src":
+					src = value;
+					break;
+				case "href":
+					href = value;
+					break;
+				case "rel":
+					rel = value.toLowerCase();
+					break;
+				default:
+					break;
+			}
+		}
+		if (name.equals("base")) {
+			URL url = resolve(href);
+			if (url != null) {
+				base = url;
+			}
+		} else if (name.equals("link")) {
+			if (rel.contains("stylesheet") || rel.contains("icon") || rel.contains("preload")) {
+				prefetch(href);
+			}
+		} else {
+			prefetch(src);
+		}
+	}
+
+	// Pass a link on to the prefetcher, which counts against the page's budget
+	// only if the prefetcher takes it
+	private void prefetch(String link) {
+		URL url = resolve(link);
+		if (url != null && prefetcher.prefetch(url.toString())) {
+			remaining--;
+		}
+	}
+
+	// Resolve a link against the base URL, without any fragment. Return null if
+	// there is no link, or it is not to a page the proxy can fetch (e.g. data:,
+	// javascript: or https: links).
+	private URL resolve(String link) {
+		if (link == null) {
+			return null;
+		}
+		link = link.trim().replace("&amp;", "&");
+		if (link.isEmpty()) {
+			return null;
+		}
+		try {
+			URL url = new URL(base, link);
+			if (!url.getProtocol().equals("http") || url.getHost().isEmpty()) {
+				return null;
+			}
+			return new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile());
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadGenerator {
+
+	// Constants for the scenarios which can be run
+	private static final String HIT = "hit";
+	private static final String MISS = "miss";
+	private static final String TUNNEL = "tunnel";
+
+	// Defaults for the load, each of which can be overridden with the system
+	// property of the same name, e.g. -Dbench.clients=64
+	private static final String PROXY = "bench.proxy";
+	private static final String CLIENTS = "bench.clients";
+	private static final String SECONDS = "bench.seconds";
+	private static final String WARMUP_SECONDS = "bench.warmup";
+	private static final String BODY_BYTES = "bench.bodyBytes";
+	private static final String PAGES = "bench.pages";
+	private static final String DEFAULT_PROXY = "localhost:9999";
+	private static final int DEFAULT_CLIENTS = 16;
+	private static final int DEFAULT_SECONDS = 10;
+	private static final int DEFAULT_WARMUP_SECONDS = 2;
+	private static final int DEFAULT_BODY_BYTES = 16384;
+	private static final int DEFAULT_PAGES = 100;
+
+	// Constant for how long a client waits on the proxy before counting an error
+	private static final int SOCKET_TIMEOUT = 10000;
+
+	/*
+	 * One request (or, for a tunnel, one connection) made by a client. It is
+	 * given the client's connection to the proxy, if it has one open, and
+	 * returns the connection to use next, or null if it was closed.
+	 */
+	private interface Operation {
+		Connection run(Connection connection) throws IOException;
+	}
+
+	/*
+	 * Variables for the load. The proxy's address, how many clients run at once
+	 * and for how long, the stand-in origin server and its port, the body it
+	 * sends, the number of cacheable pages it serves, and a counter which makes
+	 * each uncacheable request unique.
+	 */
+	private String proxyHost;
+	private int proxyPort;
+	private int clients;
+	private int seconds;
+	private int warmupSeconds;
+	private HttpServer origin;
+	private int originPort;
+	private byte[] body;
+	private int pages;
+	private AtomicLong missCounter = new AtomicLong();
+
+	// Run each scenario against a proxy which is already running, or only the
+	// scenarios named as arguments, e.g. java LoadGenerator hit tunnel
+	public static void main(String[] args) throws Exception {
+		List<String> scenarios = args.length == 0 ? Arrays.asList(HIT, MISS, TUNNEL) : Arrays.asList(args);
+		// Without this the stand-in origin's small writes wait on delayed ACKs,
+		// which would hide the proxy's own latency
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		LoadGenerator generator = new LoadGenerator();
+		generator.startOrigin();
+		try {
+			for (String scenario : scenarios) {
+				generator.runScenario(scenario.toLowerCase());
+			}
+		} finally {
+			generator.origin.stop(0);
+		}
+	}
+
+	/*
+	 * Constructor for the load generator. Read the settings.
+	 */
+	public LoadGenerator() {
+		String proxy = System.getProperty(PROXY, DEFAULT_PROXY);
+		proxyHost = proxy.substring(0, proxy.lastIndexOf(':'));
+		proxyPort = Integer.parseInt(proxy.substring(proxy.lastIndexOf(':') + 1));
+		clients = Integer.getInteger(CLIENTS, DEFAULT_CLIENTS);
+		seconds = Integer.getInteger(SECONDS, DEFAULT_SECONDS);
+		warmupSeconds = Integer.getInteger(WARMUP_SECONDS, DEFAULT_WARMUP_SECONDS);
+		body = new byte[Integer.getInteger(BODY_BYTES, DEFAULT_BODY_BYTES)];
+		Arrays.fill(body, (byte) 'x');
+		pages = Integer.getInteger(PAGES, DEFAULT_PAGES);
+	}
+
+	// Start the stand-in origin server on the loopback address. Pages under
+	// /hit/ may be cached for an hour, and pages under /miss/ may not be cached.
+	private void startOrigin() throws IOException {
+		origin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		origin.createContext("/", this::serveOrigin);
+		origin.setExecutor(Executors.newFixedThreadPool(clients * 2, runnable -> {
+			Thread thread = new Thread(runnable, "stand-in-origin");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		origin.start();
+		originPort = origin.getAddress().getPort();
+	}
+
+	private void serveOrigin(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		if (path.startsWith("/" + HIT + "/")) {
+			exchange.getResponseHeaders().set("Cache-Control", "max-age=3600");
+		} else if (path.startsWith("/" + MISS + "/")) {
+			exchange.getResponseHeaders().set("Cache-Control", "no-store");
+		} else {
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "text/html");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream responseBody = exchange.getResponseBody();
+		responseBody.write(body);
+		responseBody.close();
+	}
+
+	// Warm the scenario up (which also fills the cache for cache hits), then
+	// run it and print its throughput and latencies
+	private void runScenario(String scenario) throws InterruptedException {
+		Operation operation;
+		switch (scenario) {
+			case HIT:
+				operation = connection -> get(connection, HIT + "/" + ThreadLocalRandom.current().nextInt(pages));
+				break;
+			case MISS:
+				operation = connection -> get(connection, MISS + "/" + missCounter.incrementAndGet());
+				break;
+			case TUNNEL:
+				operation = this::tunnel;
+				break;
+			default:
+				System.out.println("Unknown scenario " + scenario + ", expected " + HIT + ", " + MISS + " or " + TUNNEL);
+				return;
+		}
+		if (scenario.equals(HIT)) {
+			// Ask for every page once, so that each is cached before the warmup
+			for (int i = 0; i < pages; i++) {
+				try {
+					close(get(null, HIT + "/" + i));
+				} catch (IOException e) {
+				}
+			}
+		}
+		runClients(operation, warmupSeconds, new LatencyHistogram(), new LongAdder(), new AtomicReference<>());
+		LatencyHistogram latencies = new LatencyHistogram();
+		LongAdder errors = new LongAdder();
+		AtomicReference<IOException> firstError = new AtomicReference<>();
+		long elapsed = runClients(operation, seconds, latencies, errors, firstError);
+		System.out.println(String.format("%s: %d clients, %.1f requests/s, %d errors", scenario, clients,
+				latencies.getCount() * 1000000000.0 / elapsed, errors.sum()));
+		System.out.println("  " + latencies.getSummary());
+		if (firstError.get() != null) {
+			System.out.println("  First error: " + firstError.get());
+		}
+	}
+
+	// Run the operation from every client at once for the given time. Record
+	// the latency of each success, and count the failures and keep the first.
+	// Return how long the clients ran for, in nanoseconds.
+	private long runClients(Operation operation, int runSeconds, LatencyHistogram latencies, LongAdder errors,
+			AtomicReference<IOException> firstError) throws InterruptedException {
+		long startedAt = System.nanoTime();
+		long endAt = startedAt + runSeconds * 1000000000L;
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread(() -> {
+				Connection connection = null;
+				while (System.nanoTime() < endAt) {
+					long requestedAt = System.nanoTime();
+					try {
+						connection = operation.run(connection);
+						latencies.record(System.nanoTime() - requestedAt);
+					} catch (IOException e) {
+						firstError.compareAndSet(null, e);
+						errors.increment();
+						close(connection);
+						connection = null;
+					}
+				}
+				close(connection);
+			}, "load-client-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return System.nanoTime() - startedAt;
+	}
+
+	// Ask the proxy for a page on the stand-in origin, over the given keep-alive
+	// connection or a new one. Return the connection if the proxy keeps it open.
+	private Connection get(Connection connection, String page) throws IOException {
+		if (connection == null) {
+			connection = new Connection(proxyHost, proxyPort);
+		}
+		String host = "127.0.0.1:" + originPort;
+		connection.send("GET http://" + host + "/" + page + ".html HTTP/1.1\r\nHost: " + host + "\r\n\r\n");
+		if (!connection.readResponse()) {
+			connection.close();
+			return null;
+		}
+		return connection;
+	}
+
+	// Open a tunnel to the stand-in origin through the proxy, fetch a page
+	// through it, and close it
+	private Connection tunnel(Connection unused) throws IOException {
+		Connection connection = new Connection(proxyHost, proxyPort);
+		try {
+			String host = "127.0.0.1:" + originPort;
+			connection.send("CONNECT " + host + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n");
+			connection.readTunnelEstablished();
+			connection.send("GET /" + HIT + "/0.html HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n");
+			connection.readResponse();
+		} finally {
+			connection.close();
+		}
+		return null;
+	}
+
+	private static void close(Connection connection) {
+		if (connection != null) {
+			connection.close();
+		}
+	}
+
+	/*
+	 * A client's connection to the proxy.
+	 */
+	private static class Connection {
+
+		private Socket socket;
+		private BufferedInputStream input;
+		private OutputStream output;
+		private byte[] buffer = new byte[16384];
+
+		private Connection(String host, int port) throws IOException {
+			socket = new Socket(host, port);
+			socket.setSoTimeout(SOCKET_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			input = new BufferedInputStream(socket.getInputStream());
+			output = socket.getOutputStream();
+		}
+
+		private void send(String request) throws IOException {
+			output.write(request.getBytes("ISO-8859-1"));
+			output.flush();
+		}
+
+		// Read a response and all of its body. Fail if it is not a 200. Return
+		// whether the connection may be used for another request.
+		private boolean readResponse() throws IOException {
+			OriginResponse response = OriginResponse.read(input, false);
+			InputStream responseBody = response.getBody();
+			while (responseBody.read(buffer) >= 0) {
+			}
+			if (response.getStatus() != 200) {
+				throw new IOException("Proxy responded " + response.getStatusText());
+			}
+			return response.isKeepAlive();
+		}
+
+		// Read the proxy's answer to a CONNECT request. Fail if it is not a 200.
+		private void readTunnelEstablished() throws IOException {
+			int[] headSize = { 0 };
+			String statusLine = OriginResponse.readLine(input, headSize);
+			String line;
+			while ((line = OriginResponse.readLine(input, headSize)) != null && !line.isEmpty()) {
+			}
+			if (statusLine == null || line == null || !statusLine.contains(" 200 ")) {
+				throw new IOException("Proxy did not open the tunnel: " + statusLine);
+			}
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,934 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+
+public class NioConnection implements ChannelHandler {
+
+	/*
+	 * Constants for this class. The states a connection moves through, the sizes
+	 * of the buffers used in each direction, and how long to wait for another
+	 * request fetching the same page.
+	 */
+	private static final int READ_REQUEST = 0;
+	private static final int CONNECTING = 1;
+	private static final int FETCHING = 2;
+	private static final int SENDING_FILE = 3;
+	private static final int CLOSING = 4;
+	private static final int HANDED_OFF = 5;
+	private static final int WAITING = 6;
+	private static final int RESOLVING = 7;
+	private static final int BUFFER_SIZE = 16384;
+	private static final int FILE_CHUNK_SIZE = 65536;
+	private static final long COALESCE_TIMEOUT = 30000;
+	private static final String CONNECT = "CONNECT";
+	private static final String HEAD = "HEAD";
+
+	/*
+	 * Variables for this connection. The event loop which owns it, the channels
+	 * to the browser and to the server, the server's selection key, and the
+	 * current state.
+	 */
+	private EventLoop eventLoop;
+	private SocketChannel clientChannel;
+	private SocketChannel serverChannel;
+	private SelectionKey serverKey;
+	private int state = READ_REQUEST;
+	private boolean closed;
+
+	/*
+	 * Buffers for this connection, all kept in fill mode. Bytes read from the
+	 * client (the request, then the request sent on to the server), bytes waiting
+	 * to be written to the client, and the head of the server's response. Each
+	 * head is parsed as its bytes arrive.
+	 */
+	private ByteBuffer clientIn;
+	private ByteBuffer clientOut;
+	private ByteBuffer responseHead;
+	private HttpHead requestParser = new HttpHead();
+	private HttpHead responseParser = new HttpHead();
+
+	/*
+	 * Variables for the request being served. The URL, the codings the browser
+	 * accepts, whether the request is a tunnel or opens a WebSocket, whether the
+	 * server has sent its whole response, whether this connection is fetching
+	 * the page for others waiting on it, the stale cached entry being checked
+	 * with the server, the validators, expiry, stale windows and coding of the
+	 * response being cached, the cached body being sent from memory (or being
+	 * decoded), and the cached file being sent or written and how far through
+	 * it the connection is. A body being cached is written to a temporary file,
+	 * which replaces the cached file once the body is complete, through a stream
+	 * if it is being compressed (which counts its size before compression), and
+	 * a HTML page being cached is scanned for what it links to.
+	 * Frames the browser sends before the server has agreed to open a WebSocket
+	 * are held until it has. The transfer of the response is kept to the rate
+	 * limits, pausing the body while they say to wait.
+	 */
+	private String requestUrl;
+	private String acceptEncoding;
+	private CacheEntry staleEntry;
+	private String etag;
+	private String lastModified;
+	private long expiresAt;
+	private long staleWhileRevalidate;
+	private long staleIfError;
+	private String contentEncoding;
+	private boolean tunnel;
+	private boolean webSocket;
+	private boolean serverEof;
+	private boolean leader;
+	private boolean responseHeadDone;
+	private boolean caching;
+	private File cacheFile;
+	private File tempFile;
+	private ByteBuffer memoryBody;
+	private InputStream decodedBody;
+	private FileChannel fileChannel;
+	private long filePosition;
+	private OutputStream compressedCache;
+	private long decodedSize;
+	private OutputStream linkScanner;
+	private ByteBuffer earlyFrames;
+	private RateLimiter.Flow flow;
+	private boolean paused;
+
+	/*
+	 * Variables for the metrics of the request being served. When its head was
+	 * read, when the first byte of the response was sent, how it was served (-1
+	 * until known), and the status sent (0 if none). The client's address and
+	 * the request method are kept for the access log.
+	 */
+	private long startedAt;
+	private long firstByteAt;
+	private int outcome = -1;
+	private int status;
+	private String clientAddress;
+	private String requestType;
+
+	/*
+	 * Constructor for the connection. Initalize the local variables.
+	 */
+	public NioConnection(EventLoop eventLoop, SocketChannel clientChannel) {
+		this.eventLoop = eventLoop;
+		this.clientChannel = clientChannel;
+		clientIn = ByteBuffer.allocate(BUFFER_SIZE);
+		clientOut = ByteBuffer.allocate(BUFFER_SIZE);
+		clientAddress = clientChannel.socket().getInetAddress().getHostAddress();
+		ProxyMetrics.connectionOpened();
+	}
+
+	// Called by the event loop whenever one of this connection's channels is
+	// ready. Move the state machine along and then update the events of interest.
+	@Override
+	public void handle(SelectionKey key) {
+		try {
+			if (key.channel() == clientChannel) {
+				if (key.isReadable()) {
+					onClientReadable();
+				}
+				if (!closed && key.isValid() && key.isWritable()) {
+					onClientWritable();
+				}
+			} else {
+				if (key.isConnectable()) {
+					onServerConnectable();
+				}
+				if (!closed && key.isValid() && key.isReadable()) {
+					onServerReadable();
+				}
+				if (!closed && key.isValid() && key.isWritable()) {
+					onServerWritable();
+				}
+			}
+			checkFinished();
+			updateInterest();
+		} catch (IOException | RuntimeException e) {
+			close();
+		}
+	}
+
+	// Close both channels and any open cache file
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		abandonFetch();
+		closeQuietly(clientChannel);
+		closeQuietly(serverChannel);
+		closeQuietly(fileChannel);
+		closeQuietly(decodedBody);
+		closeQuietly(compressedCache);
+		if (tempFile != null) {
+			tempFile.delete();
+		}
+		if (flow != null) {
+			flow.close();
+		}
+		if (outcome >= 0) {
+			long finishedAt = System.nanoTime();
+			ProxyMetrics.recordRequest(outcome, startedAt, firstByteAt, finishedAt);
+			AccessLog.access(clientAddress, requestType, requestUrl, ProxyMetrics.getOutcomeName(outcome), status,
+					startedAt, firstByteAt, finishedAt);
+		}
+		ProxyMetrics.connectionClosed();
+	}
+
+	// Read part of the request from the browser
+	private void onClientReadable() throws IOException {
+		if (state == READ_REQUEST) {
+			int read = clientChannel.read(clientIn);
+			if (read > 0) {
+				ProxyMetrics.bytesFromClients.add(read);
+			}
+			if (read < 0) {
+				close();
+				return;
+			}
+			if (requestParser.parse(clientIn)) {
+				processRequest(requestParser.getHeadEnd());
+			} else if (!clientIn.hasRemaining()) {
+				AccessLog.warn("Request head too large from client " + clientAddress + ", closing connection.");
+				close();
+			}
+		}
+	}
+
+	// Write to the browser whatever is waiting, then continue sending the cached
+	// body or file if there is one, unless paused for a rate limit. A body being
+	// decoded is decoded a buffer at a time, as the browser is ready for more.
+	// Under a limit on bytes a body in memory is also sent a buffer at a time.
+	private void onClientWritable() throws IOException {
+		flushClientOut();
+		if (paused) {
+			return;
+		}
+		if (state == SENDING_FILE && clientOut.position() == 0 && memoryBody != null) {
+			int limit = memoryBody.limit();
+			if (flow.isLimited()) {
+				memoryBody.limit(Math.min(limit, memoryBody.position() + BUFFER_SIZE));
+			}
+			int written = clientChannel.write(memoryBody);
+			memoryBody.limit(limit);
+			sentToClient(written);
+			throttle(written);
+			if (!memoryBody.hasRemaining()) {
+				memoryBody = null;
+				state = CLOSING;
+			}
+		} else if (state == SENDING_FILE && clientOut.position() == 0 && decodedBody != null) {
+			int read = decodedBody.read(clientOut.array(), 0, clientOut.capacity());
+			if (read < 0) {
+				closeQuietly(decodedBody);
+				decodedBody = null;
+				state = CLOSING;
+			} else {
+				clientOut.position(read);
+				flushClientOut();
+				throttle(read);
+			}
+		} else if (state == SENDING_FILE && clientOut.position() == 0) {
+			long sent = fileChannel.transferTo(filePosition, FILE_CHUNK_SIZE, clientChannel);
+			sentToClient(sent);
+			throttle(sent);
+			filePosition += sent;
+			if (filePosition >= fileChannel.size()) {
+				closeQuietly(fileChannel);
+				fileChannel = null;
+				state = CLOSING;
+			}
+		}
+	}
+
+	// Finish connecting to the server. Hand a tunnel over to a TunnelRelay, or
+	// start sending the request to the server.
+	private void onServerConnectable() throws IOException {
+		try {
+			serverChannel.finishConnect();
+		} catch (IOException e) {
+			AccessLog.warn("Error connecting to server for " + requestUrl);
+			closeQuietly(serverChannel);
+			sendServerError();
+			return;
+		}
+		if (tunnel) {
+			startTunnel();
+		} else {
+			state = FETCHING;
+		}
+	}
+
+	// Read the response to a request from the server, unless paused for a rate
+	// limit. It is passed to the browser and written to the cache.
+	private void onServerReadable() throws IOException {
+		if (state == FETCHING && !paused) {
+			if (!responseHeadDone) {
+				readResponseHead();
+			} else if (clientOut.hasRemaining()) {
+				int start = clientOut.position();
+				int read = serverChannel.read(clientOut);
+				if (read > 0) {
+					ProxyMetrics.bytesFromServers.add(read);
+					throttle(read);
+				}
+				if (read < 0) {
+					finishFetch();
+				} else {
+					writeToCache(clientOut, start, clientOut.position());
+				}
+			}
+		}
+	}
+
+	// Write the request to the server
+	private void onServerWritable() throws IOException {
+		clientIn.flip();
+		ProxyMetrics.bytesToServers.add(serverChannel.write(clientIn));
+		clientIn.compact();
+	}
+
+	// Tell the browser the tunnel is open and hand both channels, along with any
+	// bytes the browser has already sent, over to a TunnelRelay on this loop
+	private void startTunnel() {
+		clientOut.put(ConnectionThread.getResponse(200, true).getBytes(StandardCharsets.ISO_8859_1));
+		clientOut.flip();
+		clientIn.flip();
+		TunnelRelay relay = new TunnelRelay(eventLoop, clientChannel, serverChannel, clientOut, clientIn);
+		relay.setRequest(clientAddress, requestUrl, startedAt);
+		relay.setFlow(flow);
+		flow = null;
+		state = HANDED_OFF;
+		relay.start();
+	}
+
+	// Parse the request line, then either block it, refuse it for going over a
+	// rate limit, open a tunnel or WebSocket, serve it from the cache, or fetch
+	// it from the server
+	private void processRequest(int headEnd) throws IOException {
+		startedAt = System.nanoTime();
+		String upgradeRequest = null;
+		try {
+			requestType = requestParser.getMethod();
+			requestUrl = requestParser.getUrl();
+			acceptEncoding = requestParser.getHeader("Accept-Encoding");
+			// The head is about to be dropped from the buffer, so the request to
+			// open a WebSocket is built from it now
+			if (requestType.equals("GET") && ConnectionThread.isWebSocketUpgrade(requestParser)) {
+				upgradeRequest = ConnectionThread.getUpgradeRequest(new URL(requestUrl), requestParser);
+			}
+		} catch (RuntimeException | MalformedURLException e) {
+			AccessLog.warn("Error reading request from client " + clientAddress);
+			close();
+			return;
+		}
+
+		// Keep only the bytes after the request head, which belong to the tunnel or
+		// WebSocket
+		clientIn.flip();
+		clientIn.position(headEnd);
+		clientIn.compact();
+
+		if (ProxyMultiThread.isBlocked(requestUrl)) {
+			AccessLog.debug("Blocked site " + requestUrl + " requested.");
+			outcome = ProxyMetrics.BLOCKED;
+			sendResponse(403);
+			return;
+		}
+
+		if (!ProxyMultiThread.allowRequest(clientAddress, requestUrl)) {
+			AccessLog.debug("Request for " + requestUrl + " from " + clientAddress + " over the rate limit.");
+			outcome = ProxyMetrics.LIMITED;
+			sendResponse(429);
+			return;
+		}
+		flow = ProxyMultiThread.openFlow(clientAddress, requestUrl);
+
+		if (requestType.equals(CONNECT)) {
+			AccessLog.debug("HTTPS request for : " + requestUrl);
+			String[] pieces = requestUrl.substring(7).split(":");
+			tunnel = true;
+			outcome = ProxyMetrics.TUNNEL;
+			connectToServer(pieces[0], Integer.valueOf(pieces[1]));
+			return;
+		}
+
+		if (upgradeRequest != null) {
+			AccessLog.debug("WebSocket request for : " + requestUrl);
+			startWebSocket(upgradeRequest);
+			return;
+		}
+
+		// A HEAD request is passed on as one, and its answer, which has no body,
+		// is neither served from nor added to the cache
+		if (requestType.equals(HEAD)) {
+			AccessLog.debug("HEAD request for : " + requestUrl);
+			startFetch(null);
+			return;
+		}
+
+		CacheEntry entry = ProxyMultiThread.getCachedPage(requestUrl);
+		if (entry != null && entry.isFresh()) {
+			AccessLog.debug("HTTP request for : " + requestUrl + ". Cached page found.");
+			serveCachedEntry(entry);
+			return;
+		}
+		if (entry != null && entry.canServeStale()) {
+			AccessLog.debug("HTTP request for : " + requestUrl
+					+ ". Cached page is stale, refreshing it in the background.");
+			// The file is opened before the refresh starts, so that this version is
+			// sent whole even once a newer one replaces it
+			serveCachedEntry(entry);
+			ProxyMultiThread.servedStalePage(entry);
+			return;
+		}
+
+		if (entry == null) {
+			AccessLog.debug("HTTP request for : " + requestUrl + ". No cached page found.");
+		} else {
+			AccessLog.debug("HTTP request for : " + requestUrl + ". Cached page is stale.");
+		}
+		fetchCoalesced(entry);
+	}
+
+	// Fetch the page, asking only whether it has changed if a stale cached entry
+	// is given, unless another request is already fetching it. In that case
+	// carry on once that request is done, on this connection's own loop.
+	private void fetchCoalesced(CacheEntry entry) throws IOException {
+		CompletableFuture<CacheEntry> fetch = ProxyMultiThread.joinFetch(requestUrl);
+		if (fetch == null) {
+			leader = true;
+			startFetch(entry);
+		} else {
+			state = WAITING;
+			fetch.copy().orTimeout(COALESCE_TIMEOUT, TimeUnit.MILLISECONDS)
+					.whenComplete((fetched, error) -> eventLoop.execute(() -> onFetchFinished(fetched, error)));
+		}
+	}
+
+	// Another request has finished fetching the page. Serve what it cached. If it
+	// could cache nothing, or is taking too long, fetch the page without waiting
+	// on anyone. If it was cut off part way, join again: one of the requests
+	// waiting fetches the page next and the rest wait for it. If the server
+	// could not be reached or failed, answer with an error rather than trying
+	// the server again.
+	private void onFetchFinished(CacheEntry entry, Throwable error) {
+		if (closed) {
+			return;
+		}
+		if (error instanceof CompletionException) {
+			error = error.getCause();
+		}
+		try {
+			if (entry != null) {
+				AccessLog.debug("Serving " + requestUrl + " from another request's fetch.");
+				serveCachedEntry(entry);
+			} else if (error instanceof CancellationException) {
+				AccessLog.debug("Another request stopped fetching " + requestUrl + ", joining again.");
+				fetchCoalesced(null);
+			} else if (error == null || error instanceof TimeoutException) {
+				AccessLog.debug("Fetching " + requestUrl + " without waiting for another request.");
+				startFetch(null);
+			} else {
+				AccessLog.warn("Another request failed to fetch " + requestUrl + " for client " + clientAddress);
+				outcome = ProxyMetrics.MISS;
+				sendResponse(502);
+			}
+			checkFinished();
+			updateInterest();
+		} catch (IOException | RuntimeException e) {
+			close();
+		}
+	}
+
+	// Send the request to the server, as a HEAD for a HEAD request and a GET
+	// otherwise, asking only whether it has changed if a stale cached entry is
+	// given
+	private void startFetch(CacheEntry entry) throws IOException {
+		staleEntry = entry;
+		outcome = ProxyMetrics.MISS;
+		URL remoteURL = new URL(requestUrl);
+		// The same request the blocking mode sends, except that the body is read
+		// until the server closes the connection
+		String request = ConnectionThread.getOriginRequest(requestType.equals(HEAD) ? HEAD : "GET", remoteURL,
+				staleEntry, null, null, false);
+		clientIn.clear();
+		clientIn.put(request.getBytes(StandardCharsets.ISO_8859_1));
+		connectToServer(remoteURL.getHost(), remoteURL.getPort() == -1 ? 80 : remoteURL.getPort());
+	}
+
+	// Send the request to open a WebSocket on to the server. Its answer is read
+	// as for a page, until its head shows whether it switched protocols.
+	private void startWebSocket(String upgradeRequest) throws IOException {
+		webSocket = true;
+		outcome = ProxyMetrics.WEBSOCKET;
+		URL remoteURL = new URL(requestUrl);
+		earlyFrames = ByteBuffer.allocate(clientIn.position());
+		clientIn.flip();
+		earlyFrames.put(clientIn).flip();
+		clientIn.clear();
+		clientIn.put(upgradeRequest.getBytes(StandardCharsets.ISO_8859_1));
+		connectToServer(remoteURL.getHost(), remoteURL.getPort() == -1 ? 80 : remoteURL.getPort());
+	}
+
+	// The server has switched protocols. Hand both channels, along with its
+	// response and any frames either side has already sent, over to a
+	// TunnelRelay on this loop.
+	private void switchToWebSocket(int headEnd) {
+		TunnelRelay relay = new TunnelRelay(eventLoop, clientChannel, serverChannel, responseHead, earlyFrames);
+		relay.setRequest(clientAddress, requestUrl, startedAt);
+		relay.setWebSocket(headEnd);
+		relay.setFlow(flow);
+		flow = null;
+		responseHead = null;
+		earlyFrames = null;
+		state = HANDED_OFF;
+		relay.start();
+	}
+
+	// Send a cached entry to the browser, from memory if it is in the memory tier
+	// and otherwise from its file. An entry stored compressed is sent as it is
+	// if the browser accepts the coding, and is decoded on the way otherwise.
+	private void serveCachedEntry(CacheEntry entry) throws IOException {
+		byte[] body = entry.getBody();
+		String coding = entry.getContentEncoding();
+		String headers = "";
+		if (body == null) {
+			try {
+				fileChannel = FileChannel.open(entry.getFile().toPath(), StandardOpenOption.READ);
+			} catch (NoSuchFileException e) {
+				serveReplacedEntry(entry);
+				return;
+			}
+		}
+		if (coding != null && !ContentEncoding.accepts(acceptEncoding, coding)) {
+			InputStream stored = body != null ? new ByteArrayInputStream(body) : Channels.newInputStream(fileChannel);
+			fileChannel = null;
+			decodedBody = ContentEncoding.decompress(stored);
+			ProxyMetrics.addBytesFromCache(Math.max(0, entry.getDecodedSize()));
+			headers = "Vary: Accept-Encoding\r\n";
+		} else {
+			if (body != null) {
+				memoryBody = ByteBuffer.wrap(body);
+			}
+			ProxyMetrics.addBytesFromCache(entry.getSize());
+			if (coding != null) {
+				headers = "Content-Encoding: " + coding + "\r\nVary: Accept-Encoding\r\n";
+				if (entry.getDecodedSize() > entry.getSize()) {
+					ProxyMetrics.addBytesSavedByCompression(entry.getDecodedSize() - entry.getSize());
+				}
+			}
+		}
+		outcome = ProxyMetrics.HIT;
+		status = 200;
+		clientOut.put(getOkResponse(headers));
+		state = SENDING_FILE;
+	}
+
+	// A newer version of the page replaced the entry after it was looked up, and
+	// its file has been deleted. Serve the newer version, or fetch the page if
+	// it is no longer cached.
+	private void serveReplacedEntry(CacheEntry entry) throws IOException {
+		CacheEntry current = ProxyMultiThread.getCachedPage(requestUrl);
+		if (current != null && current != entry && current.isFresh()) {
+			serveCachedEntry(current);
+		} else {
+			fetchCoalesced(null);
+		}
+	}
+
+	// Look up the server without blocking the event loop. A host in the DNS
+	// cache is connected to straight away. Otherwise the connection waits, and
+	// carries on from its own loop once the address is known.
+	private void connectToServer(String host, int port) throws IOException {
+		CompletableFuture<InetAddress> lookup = ProxyMultiThread.lookupHost(host);
+		if (lookup.isDone() && !lookup.isCompletedExceptionally()) {
+			connectToServer(lookup.join(), port);
+			return;
+		}
+		state = RESOLVING;
+		lookup.whenComplete((address, error) -> eventLoop.execute(() -> onResolved(address, port)));
+	}
+
+	// The server's address has been looked up. Connect to it, or tell the
+	// browser it could not be reached.
+	private void onResolved(InetAddress address, int port) {
+		if (closed) {
+			return;
+		}
+		try {
+			if (address == null) {
+				AccessLog.warn("Error connecting to server for " + requestUrl);
+				sendServerError();
+			} else {
+				connectToServer(address, port);
+			}
+			checkFinished();
+			updateInterest();
+		} catch (IOException | RuntimeException e) {
+			close();
+		}
+	}
+
+	// Open a non-blocking connection to the server and register it with this
+	// connection's event loop
+	private void connectToServer(InetAddress address, int port) throws IOException {
+		serverChannel = SocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverKey = serverChannel.register(eventLoop.getSelector(), SelectionKey.OP_CONNECT, this);
+		state = CONNECTING;
+		try {
+			if (serverChannel.connect(new InetSocketAddress(address, port))) {
+				onServerConnectable();
+			}
+		} catch (IOException e) {
+			AccessLog.warn("Error connecting to server for " + requestUrl);
+			closeQuietly(serverChannel);
+			sendServerError();
+		}
+	}
+
+	// Read the status line and headers of the server's response. A successful
+	// response is sent on under the proxy's own header and cached, unless the
+	// server forbids it. A 304 for a stale entry serves the cached entry instead,
+	// as does a server error while the entry may be served in place of one.
+	// Anything else, including any answer to a HEAD, is passed through untouched
+	// and not cached.
+	private void readResponseHead() throws IOException {
+		if (responseHead == null) {
+			responseHead = ByteBuffer.allocate(BUFFER_SIZE / 2);
+		}
+		int read = serverChannel.read(responseHead);
+		if (read > 0) {
+			ProxyMetrics.bytesFromServers.add(read);
+		}
+		HttpHead head = responseParser;
+		if (!head.parse(responseHead)) {
+			if (read < 0 || !responseHead.hasRemaining()) {
+				AccessLog.warn("Error sending non cached page " + requestUrl + " to client " + clientAddress);
+				closeQuietly(serverChannel);
+				responseHead = null;
+				sendServerError();
+			}
+			return;
+		}
+		responseHeadDone = true;
+		int headEnd = head.getHeadEnd();
+		status = Math.max(0, head.getStatus());
+		String cacheControl = head.getHeader("Cache-Control");
+		staleWhileRevalidate = CacheControl.staleWhileRevalidate(cacheControl);
+		staleIfError = CacheControl.staleIfError(cacheControl);
+		etag = head.getHeader("ETag");
+		lastModified = head.getHeader("Last-Modified");
+		expiresAt = CacheControl.expiresAt(cacheControl, head.getHeader("Expires"), head.getHeader("Date"),
+				head.getHeader("Age"), lastModified, System.currentTimeMillis());
+		responseHead.flip();
+		if (webSocket && status == 101) {
+			switchToWebSocket(headEnd);
+			return;
+		}
+		if (staleEntry != null) {
+			boolean notModified = status == 304;
+			ProxyMultiThread.revalidatedPage(staleEntry, notModified, expiresAt);
+			if (notModified) {
+				AccessLog.debug("Cached page for " + requestUrl + " not modified.");
+				releaseFetch(staleEntry);
+				responseHead = null;
+				serverEof = true;
+				closeQuietly(serverChannel);
+				serveCachedEntry(staleEntry);
+				return;
+			}
+			if (status >= 500 && staleEntry.canServeOnError()) {
+				responseHead = null;
+				closeQuietly(serverChannel);
+				sendServerError();
+				return;
+			}
+		}
+		if (status == 200 && !webSocket && !requestType.equals(HEAD)) {
+			// A body the server sent encoded is cached as it is, if it can be
+			// decoded for browsers which do not accept the coding. A body of a type
+			// which compresses well is compressed on its way into the cache.
+			String sentEncoding = head.getHeader("Content-Encoding");
+			contentEncoding = ContentEncoding.normalize(sentEncoding);
+			if (!CacheControl.parse(cacheControl).isNoStore() && ContentEncoding.isCacheable(contentEncoding)) {
+				openCacheFile(contentEncoding == null && ContentEncoding.shouldCompress(head.getHeader("Content-Type"),
+						getContentLength(head)));
+				if (caching && contentEncoding == null) {
+					linkScanner = ProxyMultiThread.scanForLinks(requestUrl, head.getHeader("Content-Type"),
+							OutputStream.nullOutputStream());
+				}
+			}
+			// Requests waiting on a response which cannot be cached fetch it
+			// themselves now, rather than once the whole body has been sent
+			if (!caching) {
+				releaseFetch(null);
+			}
+			clientOut.put(getOkResponse(sentEncoding == null ? "" : "Content-Encoding: " + sentEncoding + "\r\n"));
+			responseHead.position(headEnd);
+			int start = clientOut.position();
+			clientOut.put(responseHead);
+			writeToCache(clientOut, start, clientOut.position());
+		} else if (requestType.equals(HEAD)) {
+			// The answer to a HEAD ends with its head, whether or not the server
+			// closes the connection
+			responseHead.limit(headEnd);
+			clientOut.put(responseHead);
+			responseHead = null;
+			finishFetch();
+			return;
+		} else {
+			releaseFetch(null);
+			clientOut.put(responseHead);
+		}
+		responseHead = null;
+		if (read < 0) {
+			finishFetch();
+		}
+	}
+
+	// The server has sent its whole response. Record the cached file, then finish
+	// writing to the browser and close.
+	private void finishFetch() {
+		serverEof = true;
+		closeQuietly(serverChannel);
+		if (compressedCache != null) {
+			try {
+				compressedCache.close();
+				contentEncoding = ContentEncoding.GZIP;
+			} catch (IOException e) {
+				AccessLog.error("Error trying to cache " + requestUrl);
+				caching = false;
+			}
+			compressedCache = null;
+		}
+		closeQuietly(fileChannel);
+		fileChannel = null;
+		if (caching) {
+			try {
+				cacheFile = CacheLayout.commit(tempFile);
+				tempFile = null;
+			} catch (IOException e) {
+				AccessLog.error("Error trying to cache " + requestUrl);
+				caching = false;
+			}
+		}
+		if (tempFile != null) {
+			tempFile.delete();
+			tempFile = null;
+		}
+		if (caching) {
+			CacheEntry entry = new CacheEntry(requestUrl, cacheFile, etag, lastModified, expiresAt, contentEncoding,
+					contentEncoding == null ? -1 : decodedSize);
+			entry.setStaleWindows(staleWhileRevalidate, staleIfError);
+			ProxyMultiThread.addCachedPage(entry);
+			releaseFetch(entry);
+		} else {
+			releaseFetch(null);
+		}
+		state = CLOSING;
+	}
+
+	// If this connection is fetching the page for others, pass them the entry
+	// now cached for it (or null if it could not be cached)
+	private void releaseFetch(CacheEntry entry) {
+		if (leader) {
+			leader = false;
+			ProxyMultiThread.finishFetch(requestUrl, entry);
+		}
+	}
+
+	// If this connection is fetching the page for others, pass them the error
+	// which stopped it, so that they answer with an error too
+	private void failFetch(IOException error) {
+		if (leader) {
+			leader = false;
+			ProxyMultiThread.failFetch(requestUrl, error);
+		}
+	}
+
+	// If this connection is fetching the page for others and was cut off part
+	// way, have them join again
+	private void abandonFetch() {
+		if (leader) {
+			leader = false;
+			ProxyMultiThread.abandonFetch(requestUrl);
+		}
+	}
+
+	// Open the temporary file which the response will be cached in, compressing
+	// what is written to it if asked to
+	private void openCacheFile(boolean compress) {
+		try {
+			tempFile = CacheLayout.createTempFile(requestUrl);
+			fileChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+			if (compress) {
+				compressedCache = ContentEncoding.compress(Channels.newOutputStream(fileChannel));
+				decodedSize = 0;
+			}
+			caching = true;
+		} catch (IOException e) {
+			AccessLog.error("Error trying to cache " + requestUrl);
+			caching = false;
+		}
+	}
+
+	// Write a region of the buffer to the cache file. Caching stops (but the
+	// response to the browser carries on) if the file cannot be written.
+	private void writeToCache(ByteBuffer buffer, int start, int end) {
+		if (!caching || start == end) {
+			return;
+		}
+		ByteBuffer region = buffer.duplicate();
+		region.position(start);
+		region.limit(end);
+		try {
+			if (linkScanner != null) {
+				linkScanner.write(buffer.array(), start, end - start);
+			}
+			if (compressedCache != null) {
+				compressedCache.write(buffer.array(), start, end - start);
+				decodedSize += end - start;
+			} else {
+				while (region.hasRemaining()) {
+					fileChannel.write(region);
+				}
+			}
+		} catch (IOException e) {
+			AccessLog.error("Error trying to cache " + requestUrl);
+			caching = false;
+		}
+	}
+
+	// Return the head of a 200 response with the given headers (each ending in
+	// CRLF), whose body runs until the connection closes
+	private static byte[] getOkResponse(String headers) {
+		return ("HTTP/1.0 200 OK\r\n" + headers + "Proxy-agent: ProxyServer/1.0\r\n\r\n")
+				.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	// Tell the browser, and any requests waiting on this fetch, the server could
+	// not be reached or failed. If a stale cached entry was being checked and
+	// may be served in place of an error, serve it instead, and pass it to the
+	// waiting requests.
+	private void sendServerError() throws IOException {
+		if (tunnel || staleEntry == null || !staleEntry.canServeOnError()) {
+			failFetch(new IOException("Error fetching " + requestUrl));
+			sendResponse(tunnel ? 504 : 502);
+			return;
+		}
+		AccessLog.debug("Server failed, serving stale page for " + requestUrl + ".");
+		ProxyMultiThread.servedStalePageOnError();
+		releaseFetch(staleEntry);
+		serverEof = true;
+		serveCachedEntry(staleEntry);
+	}
+
+	// Queue one of the proxy's own responses and close once it has been sent
+	private void sendResponse(int code) {
+		clientOut.clear();
+		status = code;
+		clientOut.put(ConnectionThread.getResponse(code, false).getBytes(StandardCharsets.ISO_8859_1));
+		state = CLOSING;
+	}
+
+	// Record bytes passed to the browser against the rate limits and, if they
+	// have gone over, pause the body until the limit allows. Bytes served from
+	// the cache do not count against the server's limit.
+	private void throttle(long bytes) {
+		long wait = flow.sent(bytes, outcome != ProxyMetrics.HIT);
+		if (wait > 0) {
+			paused = true;
+			eventLoop.schedule(() -> {
+				paused = false;
+				updateInterest();
+			}, wait);
+		}
+	}
+
+	// Write as much as possible of the bytes waiting for the browser
+	private void flushClientOut() throws IOException {
+		clientOut.flip();
+		sentToClient(clientChannel.write(clientOut));
+		clientOut.compact();
+	}
+
+	// Count bytes sent to the browser, noting when the first was sent
+	private void sentToClient(long bytes) {
+		if (bytes > 0) {
+			ProxyMetrics.bytesToClients.add(bytes);
+			if (firstByteAt == 0) {
+				firstByteAt = System.nanoTime();
+			}
+		}
+	}
+
+	// Close the connection once there is nothing left to do
+	private void checkFinished() {
+		if (closed) {
+			return;
+		}
+		if (state == CLOSING && clientOut.position() == 0) {
+			close();
+		}
+	}
+
+	// Register interest in exactly the events which would let this connection
+	// make progress. A full buffer stops reading on the other side, which pushes
+	// back on whichever peer is sending too fast, as does a pause for a rate
+	// limit.
+	private void updateInterest() {
+		if (closed || state == HANDED_OFF) {
+			return;
+		}
+		int clientOps = 0;
+		if (state == READ_REQUEST) {
+			clientOps |= SelectionKey.OP_READ;
+		}
+		if (clientOut.position() > 0 || (state == SENDING_FILE && !paused)) {
+			clientOps |= SelectionKey.OP_WRITE;
+		}
+		clientChannel.keyFor(eventLoop.getSelector()).interestOps(clientOps);
+
+		if (serverKey != null && serverKey.isValid()) {
+			int serverOps = 0;
+			if (state == CONNECTING) {
+				serverOps = SelectionKey.OP_CONNECT;
+			} else if (state == FETCHING) {
+				if (!serverEof && !paused && (clientOut.hasRemaining() || !responseHeadDone)) {
+					serverOps |= SelectionKey.OP_READ;
+				}
+				if (clientIn.position() > 0) {
+					serverOps |= SelectionKey.OP_WRITE;
+				}
+			}
+			serverKey.interestOps(serverOps);
+		}
+	}
+
+	// Return the Content-Length of a response head, or -1 if it has none (or it
+	// cannot be read)
+	private static long getContentLength(HttpHead head) {
+		try {
+			return head.getContentLength();
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// Close a channel or stream, ignoring any error
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,109 @@
+import java.io.*;
+import java.net.*;
+
+public class OriginConnection {
+
+	/*
+	 * Variables for the connection. The host and port it is connected to, the
+	 * socket and the streams over it, whether it has been used for a previous
+	 * request, and when it was last returned to the pool.
+	 */
+	private String host;
+	private int port;
+	private Socket socket;
+	private BufferedInputStream inputStream;
+	private OutputStream outputStream;
+	private boolean reused;
+	private long idleSince;
+
+	/*
+	 * Constructor for the connection. Connect to the server at the address its
+	 * host name was resolved to, giving up after the timeout.
+	 */
+	public OriginConnection(String host, InetAddress address, int port, int connectTimeout, int readTimeout)
+			throws IOException {
+		this.host = host;
+		this.port = port;
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(address, port), connectTimeout);
+			socket.setSoTimeout(readTimeout);
+			socket.setTcpNoDelay(true);
+			inputStream = new BufferedInputStream(
+					new ProxyMetrics.CountingInputStream(socket.getInputStream(), ProxyMetrics.bytesFromServers));
+			outputStream = new BufferedOutputStream(
+					new ProxyMetrics.CountingOutputStream(socket.getOutputStream(), ProxyMetrics.bytesToServers));
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	// Return the key the pool files this connection under
+	public String getKey() {
+		return key(host, port);
+	}
+
+	// Return the key for connections to a host and port
+	public static String key(String host, int port) {
+		return host.toLowerCase() + ":" + port;
+	}
+
+	// Send a request head to the server
+	public void send(String request) throws IOException {
+		outputStream.write(request.getBytes("ISO-8859-1"));
+		outputStream.flush();
+	}
+
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	// Return whether this connection was taken from the pool rather than newly
+	// opened. A request on a reused connection may fail because the server
+	// closed it while idle, and is worth retrying on a new connection.
+	public boolean isReused() {
+		return reused;
+	}
+
+	public long getIdleSince() {
+		return idleSince;
+	}
+
+	// Record that the connection has been returned to the pool
+	void markIdle() {
+		reused = true;
+		idleSince = System.currentTimeMillis();
+	}
+
+	// Check that the server has not closed the connection or sent anything
+	// unexpected while it sat in the pool
+	boolean isHealthy() {
+		if (socket.isClosed()) {
+			return false;
+		}
+		try {
+			int readTimeout = socket.getSoTimeout();
+			socket.setSoTimeout(1);
+			try {
+				inputStream.mark(1);
+				inputStream.read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} finally {
+				socket.setSoTimeout(readTimeout);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Close the socket
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
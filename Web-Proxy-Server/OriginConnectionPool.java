@@ -0,0 +1,250 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OriginConnectionPool {
+
+	/*
+	 * Constants for the pool. The timeouts for connecting to and reading from a
+	 * server, how long a connection may sit idle before it is checked before
+	 * reuse, and how often idle connections are swept.
+	 */
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 30000;
+	private static final long HEALTH_CHECK_AFTER = 2000;
+	private static final long SWEEP_INTERVAL = 5000;
+
+	/*
+	 * Variables for the pool. The cache used to look up servers, the connections
+	 * to each host and port, a limit on the connections open to each host and
+	 * port and one on all connections, and how long a connection may stay idle
+	 * before it is closed.
+	 */
+	private DnsCache dnsCache;
+	private ConcurrentHashMap<String, HostConnections> hosts;
+	private Semaphore totalPermits;
+	private int maxPerHost;
+	private long idleTimeout;
+	private ScheduledExecutorService sweeper;
+
+	/*
+	 * Counters for the pool. Connections opened, and requests which reused an
+	 * idle connection instead.
+	 */
+	private AtomicLong opened = new AtomicLong();
+	private AtomicLong reused = new AtomicLong();
+
+	/*
+	 * Constructor for the pool. Start the thread which closes connections which
+	 * have been idle too long.
+	 */
+	public OriginConnectionPool(DnsCache dnsCache, int maxPerHost, int maxTotal, long idleTimeout) {
+		this.dnsCache = dnsCache;
+		this.hosts = new ConcurrentHashMap<>();
+		this.totalPermits = new Semaphore(maxTotal);
+		this.maxPerHost = maxPerHost;
+		this.idleTimeout = idleTimeout;
+		sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "origin-pool-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	// Send a request to a host and port and read the head of the response, over
+	// an idle connection if there is one. The server may have closed an idle
+	// connection without the pool noticing, so if the request fails on one it
+	// is sent once more, on a newly opened connection. The response's connection
+	// must be released or discarded once its body has been read.
+	public OriginResponse exchange(String host, int port, String request, boolean headRequest) throws IOException {
+		OriginConnection connection = acquire(host, port, true);
+		try {
+			return OriginResponse.exchange(connection, request, headRequest);
+		} catch (IOException e) {
+			discard(connection);
+			if (!connection.isReused()) {
+				throw e;
+			}
+		}
+		connection = acquire(host, port, false);
+		try {
+			return OriginResponse.exchange(connection, request, headRequest);
+		} catch (IOException e) {
+			discard(connection);
+			throw e;
+		}
+	}
+
+	// Take a connection to a host and port. An idle connection is reused if one
+	// is still healthy and reuse is allowed, and closed otherwise. A new one is
+	// opened if the host's limit allows it. If it does not, wait for whichever
+	// comes first: a connection being given back for reuse, or one being closed.
+	private OriginConnection acquire(String host, int port, boolean reuseIdle) throws IOException {
+		String key = OriginConnection.key(host, port);
+		HostConnections connections = hosts.computeIfAbsent(key, k -> new HostConnections());
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		OriginConnection connection;
+		while (true) {
+			synchronized (connections) {
+				while (connections.idle.isEmpty() && connections.open >= maxPerHost) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						throw new IOException("Too many connections to " + key);
+					}
+					try {
+						connections.wait(wait);
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("Interrupted waiting for a connection to " + key);
+					}
+				}
+				connection = connections.idle.pollFirst();
+				if (connection == null) {
+					connections.open++;
+					break;
+				}
+			}
+			long idleFor = System.currentTimeMillis() - connection.getIdleSince();
+			if (reuseIdle && idleFor < idleTimeout && (idleFor < HEALTH_CHECK_AFTER || connection.isHealthy())) {
+				reused.incrementAndGet();
+				return connection;
+			}
+			discard(connection);
+		}
+
+		try {
+			if (!totalPermits.tryAcquire() && !(closeAnyIdle() && totalPermits.tryAcquire())
+					&& !totalPermits.tryAcquire(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				closed(connections);
+				throw new IOException("Too many connections to servers");
+			}
+		} catch (InterruptedException e) {
+			closed(connections);
+			throw new InterruptedIOException("Interrupted waiting for a connection to " + key);
+		}
+		try {
+			connection = new OriginConnection(host, dnsCache.resolve(host), port, CONNECT_TIMEOUT, READ_TIMEOUT);
+			opened.incrementAndGet();
+			return connection;
+		} catch (IOException e) {
+			closed(connections);
+			totalPermits.release();
+			throw e;
+		}
+	}
+
+	// Give a connection back once its response has been read in full. If the
+	// server will keep it open it is kept for reuse, otherwise it is closed.
+	public void release(OriginConnection connection, boolean keepAlive) {
+		if (!keepAlive) {
+			discard(connection);
+			return;
+		}
+		connection.markIdle();
+		HostConnections connections = hosts.get(connection.getKey());
+		synchronized (connections) {
+			connections.idle.offerFirst(connection);
+			connections.notify();
+		}
+	}
+
+	// Close a connection which can no longer be used, freeing its place in the
+	// host's and the pool's limits
+	public void discard(OriginConnection connection) {
+		connection.close();
+		closed(hosts.get(connection.getKey()));
+		totalPermits.release();
+	}
+
+	// Return a summary of the pool
+	public String getStats() {
+		int idle = 0;
+		for (HostConnections connections : hosts.values()) {
+			synchronized (connections) {
+				idle += connections.idle.size();
+			}
+		}
+		return "Origin connections opened: " + opened.get() + ", reused: " + reused.get() + ", idle: " + idle;
+	}
+
+	// Close every idle connection and stop the sweeper
+	public void close() {
+		sweeper.shutdownNow();
+		for (HostConnections connections : hosts.values()) {
+			for (OriginConnection connection : takeIdle(connections, Long.MAX_VALUE)) {
+				discard(connection);
+			}
+		}
+	}
+
+	// Free a place in a host's limit, and wake a request waiting for one
+	private void closed(HostConnections connections) {
+		synchronized (connections) {
+			connections.open--;
+			connections.notify();
+		}
+	}
+
+	// Close the least recently used idle connection to any host, to make room
+	// for a new one. Return whether one was closed.
+	private boolean closeAnyIdle() {
+		OriginConnection oldest = null;
+		HostConnections oldestHost = null;
+		for (HostConnections connections : hosts.values()) {
+			synchronized (connections) {
+				OriginConnection candidate = connections.idle.peekLast();
+				if (candidate != null && (oldest == null || candidate.getIdleSince() < oldest.getIdleSince())) {
+					oldest = candidate;
+					oldestHost = connections;
+				}
+			}
+		}
+		if (oldest == null) {
+			return false;
+		}
+		synchronized (oldestHost) {
+			if (!oldestHost.idle.removeLastOccurrence(oldest)) {
+				return false;
+			}
+		}
+		discard(oldest);
+		return true;
+	}
+
+	// Close every connection which has been idle for longer than the timeout
+	private void sweep() {
+		long idleSince = System.currentTimeMillis() - idleTimeout;
+		for (HostConnections connections : hosts.values()) {
+			for (OriginConnection connection : takeIdle(connections, idleSince)) {
+				discard(connection);
+			}
+		}
+	}
+
+	// Remove and return a host's idle connections which have been idle since
+	// before the given time
+	private List<OriginConnection> takeIdle(HostConnections connections, long idleSince) {
+		List<OriginConnection> taken = new ArrayList<>();
+		synchronized (connections) {
+			for (Iterator<OriginConnection> iterator = connections.idle.iterator(); iterator.hasNext();) {
+				OriginConnection connection = iterator.next();
+				if (connection.getIdleSince() < idleSince) {
+					iterator.remove();
+					taken.add(connection);
+				}
+			}
+		}
+		return taken;
+	}
+
+	/*
+	 * The connections to one host and port. Those idle (most recently used
+	 * first), and the number open, idle or not. Both are guarded by the object's
+	 * lock, which requests wait on when the host is at its limit.
+	 */
+	private static class HostConnections {
+		private ArrayDeque<OriginConnection> idle = new ArrayDeque<>();
+		private int open;
+	}
+}
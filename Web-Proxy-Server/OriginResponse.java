@@ -0,0 +1,286 @@
+import java.io.*;
+import java.util.*;
+
+public class OriginResponse {
+
+	/*
+	 * Constants for reading a response. The most bytes of head accepted, and the
+	 * headers which describe the connection rather than the response, so are not
+	 * passed on to the browser.
+	 */
+	private static final int MAX_HEAD_SIZE = 65536;
+	private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<>(Arrays.asList("connection", "keep-alive",
+			"proxy-connection", "transfer-encoding", "content-length", "te", "trailer", "upgrade"));
+
+	/*
+	 * Variables for the response. The status line and code, the value of each
+	 * header by name in lower case (the last value, if a header is repeated),
+	 * every header line in the order received, so that repeated headers such as
+	 * Set-Cookie are all passed on, the body framed so that it ends where
+	 * the response does and its length (-1 if not known in advance), whether
+	 * the server will keep the connection open once the body has been read, and
+	 * the pooled connection it is read from (null if it was read some other way).
+	 */
+	private String statusLine;
+	private int status;
+	private HashMap<String, String> headers;
+	private List<String> headerLines;
+	private InputStream body;
+	private long contentLength = -1;
+	private boolean keepAlive;
+	private OriginConnection connection;
+
+	private OriginResponse(String statusLine, int status, HashMap<String, String> headers, List<String> headerLines) {
+		this.statusLine = statusLine;
+		this.status = status;
+		this.headers = headers;
+		this.headerLines = headerLines;
+	}
+
+	// Send a request over a pooled connection to a server and read the head of
+	// the response
+	static OriginResponse exchange(OriginConnection connection, String request, boolean headRequest)
+			throws IOException {
+		connection.send(request);
+		OriginResponse response = read(connection.getInputStream(), headRequest);
+		response.connection = connection;
+		return response;
+	}
+
+	// Read the head of a response from a server, skipping any interim responses,
+	// and frame its body. A HEAD request is given, since its response has no body.
+	public static OriginResponse read(InputStream inputStream, boolean headRequest) throws IOException {
+		OriginResponse response;
+		do {
+			response = readHead(inputStream);
+		} while (response.status >= 100 && response.status < 200 && response.status != 101);
+
+		boolean http11 = response.statusLine.startsWith("HTTP/1.1");
+		String connection = response.getHeader("Connection");
+		connection = connection == null ? "" : connection.toLowerCase();
+		response.keepAlive = http11 ? !connection.contains("close") : connection.contains("keep-alive");
+
+		String transferEncoding = response.getHeader("Transfer-Encoding");
+		String contentLength = response.getHeader("Content-Length");
+		if (headRequest || response.status == 204 || response.status == 304) {
+			response.body = new BoundedInputStream(inputStream, 0);
+			response.contentLength = 0;
+		} else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+			response.body = new ChunkedInputStream(inputStream);
+		} else if (contentLength != null) {
+			try {
+				response.contentLength = Long.parseLong(contentLength.trim());
+				response.body = new BoundedInputStream(inputStream, response.contentLength);
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad Content-Length " + contentLength);
+			}
+		} else {
+			// The body runs until the server closes the connection
+			response.body = inputStream;
+			response.keepAlive = false;
+		}
+		return response;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	// Return the value of a header, or null if the response does not have it
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase());
+	}
+
+	public InputStream getBody() {
+		return body;
+	}
+
+	public OriginConnection getConnection() {
+		return connection;
+	}
+
+	// Return whether the connection can be used again once the body has been
+	// read in full
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	// Return the status code and reason, without the HTTP version
+	public String getStatusText() {
+		return statusLine.substring(statusLine.indexOf(' ') + 1);
+	}
+
+	// Return the length of the body, or -1 if it is not known until the body
+	// has been read
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	// Return the headers to pass on to the browser, each ending in CRLF, in the
+	// order received and with every line of a repeated header. The headers which
+	// apply to the connection to the server, or to how the body is framed on it,
+	// are left out.
+	public String getForwardedHeaders() {
+		StringBuilder forwarded = new StringBuilder();
+		for (String line : headerLines) {
+			String name = line.substring(0, line.indexOf(':')).trim().toLowerCase();
+			if (!HOP_BY_HOP_HEADERS.contains(name)) {
+				forwarded.append(line).append("\r\n");
+			}
+		}
+		return forwarded.toString();
+	}
+
+	// Read a status line and headers, up to the blank line which ends them
+	private static OriginResponse readHead(InputStream inputStream) throws IOException {
+		int[] headSize = { 0 };
+		String statusLine = readLine(inputStream, headSize);
+		if (statusLine == null) {
+			throw new EOFException("Server closed the connection before responding");
+		}
+		String[] pieces = statusLine.split(" ", 3);
+		int status;
+		try {
+			status = Integer.parseInt(pieces[1]);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Bad status line " + statusLine);
+		}
+		HashMap<String, String> headers = new HashMap<>();
+		List<String> headerLines = new ArrayList<>();
+		String line;
+		while ((line = readLine(inputStream, headSize)) != null && !line.isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+				headerLines.add(line);
+			}
+		}
+		if (line == null) {
+			throw new EOFException("Server closed the connection part way through the response head");
+		}
+		return new OriginResponse(statusLine, status, headers, headerLines);
+	}
+
+	// Read a line ending in CRLF or LF, without the line ending. Return null if
+	// the stream ends first. The running size of the head is checked against the
+	// limit.
+	static String readLine(InputStream inputStream, int[] headSize) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int read;
+		while ((read = inputStream.read()) != '\n') {
+			if (read < 0) {
+				return null;
+			}
+			if (++headSize[0] > MAX_HEAD_SIZE) {
+				throw new IOException("Message head too large");
+			}
+			line.append((char) read);
+		}
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r') {
+			line.setLength(length - 1);
+		}
+		return line.toString();
+	}
+
+	/*
+	 * A body of a known length. It ends once that many bytes have been read,
+	 * leaving the connection at the start of the next response.
+	 */
+	static class BoundedInputStream extends InputStream {
+
+		private InputStream inputStream;
+		private long remaining;
+
+		BoundedInputStream(InputStream inputStream, long length) {
+			this.inputStream = inputStream;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int read = inputStream.read(buffer, offset, (int) Math.min(length, remaining));
+			if (read < 0) {
+				throw new EOFException("Server closed the connection part way through the body");
+			}
+			remaining -= read;
+			return read;
+		}
+	}
+
+	/*
+	 * A body sent in chunks, each preceded by its size. It ends after the last,
+	 * empty, chunk and any trailers, leaving the connection at the start of the
+	 * next response.
+	 */
+	static class ChunkedInputStream extends InputStream {
+
+		private InputStream inputStream;
+		private long chunkRemaining;
+		private boolean finished;
+
+		ChunkedInputStream(InputStream inputStream) {
+			this.inputStream = inputStream;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (finished) {
+				return -1;
+			}
+			if (chunkRemaining == 0) {
+				nextChunk();
+				if (finished) {
+					return -1;
+				}
+			}
+			int read = inputStream.read(buffer, offset, (int) Math.min(length, chunkRemaining));
+			if (read < 0) {
+				throw new EOFException("Server closed the connection part way through a chunk");
+			}
+			chunkRemaining -= read;
+			if (chunkRemaining == 0) {
+				// Each chunk is followed by a line ending
+				readLine(inputStream, new int[1]);
+			}
+			return read;
+		}
+
+		// Read the size of the next chunk. After the last chunk, skip the trailers.
+		private void nextChunk() throws IOException {
+			int[] lineSize = { 0 };
+			String sizeLine = readLine(inputStream, lineSize);
+			if (sizeLine == null) {
+				throw new EOFException("Server closed the connection before the last chunk");
+			}
+			int extension = sizeLine.indexOf(';');
+			try {
+				chunkRemaining = Long.parseLong((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(),
+						16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad chunk size " + sizeLine);
+			}
+			if (chunkRemaining == 0) {
+				String trailer;
+				while ((trailer = readLine(inputStream, lineSize)) != null && !trailer.isEmpty()) {
+				}
+				finished = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,221 @@
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ProxyMetrics {
+
+	/*
+	 * Constants for the metrics. How a request was served, which splits its
+	 * latencies into separate histograms.
+	 */
+	public static final int HIT = 0;
+	public static final int MISS = 1;
+	public static final int TUNNEL = 2;
+	public static final int BLOCKED = 3;
+	public static final int WEBSOCKET = 4;
+	public static final int LIMITED = 5;
+	private static final String[] OUTCOMES = { "hit", "miss", "tunnel", "blocked", "websocket", "limited" };
+
+	/*
+	 * Latency histograms for each outcome. The time from reading the request to
+	 * sending the first byte of the response, and to sending the last.
+	 */
+	private static final LatencyHistogram[] firstByte = new LatencyHistogram[OUTCOMES.length];
+	private static final LatencyHistogram[] total = new LatencyHistogram[OUTCOMES.length];
+	static {
+		for (int i = 0; i < OUTCOMES.length; i++) {
+			firstByte[i] = new LatencyHistogram();
+			total[i] = new LatencyHistogram();
+		}
+	}
+
+	/*
+	 * Byte counters. Bytes read from and written to browsers and servers, bytes
+	 * sent to browsers from the cache, which did not have to be fetched, and
+	 * bytes not sent because a compressed body was sent instead.
+	 */
+	static final LongAdder bytesFromClients = new LongAdder();
+	static final LongAdder bytesToClients = new LongAdder();
+	static final LongAdder bytesFromServers = new LongAdder();
+	static final LongAdder bytesToServers = new LongAdder();
+	private static final LongAdder bytesFromCache = new LongAdder();
+	private static final LongAdder bytesSavedByCompression = new LongAdder();
+
+	// Counter of whole messages carried by WebSockets which have closed
+	private static final LongAdder webSocketMessages = new LongAdder();
+
+	/*
+	 * Connection counters. Browser connections open now, and accepted since the
+	 * proxy started.
+	 */
+	private static final AtomicInteger activeConnections = new AtomicInteger();
+	private static final LongAdder acceptedConnections = new LongAdder();
+
+	// Record a request once it has been served. Times are from System.nanoTime().
+	// If no response was sent the time to first byte is not recorded.
+	public static void recordRequest(int outcome, long startedAt, long firstByteAt, long finishedAt) {
+		if (firstByteAt != 0) {
+			firstByte[outcome].record(firstByteAt - startedAt);
+		}
+		total[outcome].record(finishedAt - startedAt);
+	}
+
+	// Return the name of an outcome, as used in reports and the access log
+	public static String getOutcomeName(int outcome) {
+		return OUTCOMES[outcome];
+	}
+
+	// Record bytes sent to a browser from the cache
+	public static void addBytesFromCache(long bytes) {
+		bytesFromCache.add(bytes);
+	}
+
+	// Record bytes saved by sending a browser a compressed body
+	public static void addBytesSavedByCompression(long bytes) {
+		bytesSavedByCompression.add(bytes);
+	}
+
+	// Record the messages carried by a WebSocket once it has closed
+	public static void addWebSocketMessages(long messages) {
+		webSocketMessages.add(messages);
+	}
+
+	public static void connectionOpened() {
+		activeConnections.incrementAndGet();
+		acceptedConnections.increment();
+	}
+
+	public static void connectionClosed() {
+		activeConnections.decrementAndGet();
+	}
+
+	// Return the metrics as text, for the console and the stats endpoint. The
+	// dispatcher is null in non-blocking mode.
+	public static String getReport(ConnectionDispatcher dispatcher) {
+		StringBuilder report = new StringBuilder();
+		long hits = total[HIT].getCount();
+		long misses = total[MISS].getCount();
+		report.append(String.format(
+				"Requests: %d hits, %d misses, %d tunnels, %d websockets, %d blocked, %d limited, hit ratio %.1f%%%n",
+				hits, misses, total[TUNNEL].getCount(), total[WEBSOCKET].getCount(), total[BLOCKED].getCount(),
+				total[LIMITED].getCount(), percent(hits, hits + misses)));
+		for (int i = 0; i < OUTCOMES.length; i++) {
+			report.append("Time to first byte (").append(OUTCOMES[i]).append("): ").append(firstByte[i].getSummary())
+					.append(System.lineSeparator());
+			report.append("Total time (").append(OUTCOMES[i]).append("): ").append(total[i].getSummary())
+					.append(System.lineSeparator());
+		}
+		long toClients = bytesToClients.sum();
+		long fromCache = bytesFromCache.sum();
+		report.append(String.format("Bytes: %d from browsers, %d to browsers, %d from servers, %d to servers%n",
+				bytesFromClients.sum(), toClients, bytesFromServers.sum(), bytesToServers.sum()));
+		report.append(String.format("Bandwidth saved by the cache: %d bytes (%.1f%% of bytes to browsers)%n", fromCache,
+				percent(fromCache, toClients)));
+		report.append("Bandwidth saved by compression: ").append(bytesSavedByCompression.sum()).append(" bytes")
+				.append(System.lineSeparator());
+		report.append("WebSocket messages: ").append(webSocketMessages.sum()).append(System.lineSeparator());
+		report.append("Log records dropped: ").append(AccessLog.getDropped()).append(System.lineSeparator());
+		report.append("Connections: ").append(activeConnections.get()).append(" active, ")
+				.append(acceptedConnections.sum()).append(" accepted");
+		if (dispatcher != null) {
+			report.append(", ").append(dispatcher.getQueueDepth()).append(" queued");
+			int busy = dispatcher.getActiveCount();
+			if (busy >= 0) {
+				report.append(", ").append(busy).append(" threads busy");
+			}
+		}
+		return report.append(System.lineSeparator()).toString();
+	}
+
+	// Return the metrics as JSON, for the stats endpoint. Latencies are in
+	// microseconds.
+	public static String getJson(ConnectionDispatcher dispatcher) {
+		StringBuilder json = new StringBuilder("{\"latency\":{");
+		for (int i = 0; i < OUTCOMES.length; i++) {
+			json.append(i == 0 ? "" : ",").append('"').append(OUTCOMES[i]).append("\":{\"firstByte\":");
+			appendHistogram(json, firstByte[i]);
+			json.append(",\"total\":");
+			appendHistogram(json, total[i]);
+			json.append('}');
+		}
+		json.append("},\"bytes\":{\"fromClients\":").append(bytesFromClients.sum()).append(",\"toClients\":")
+				.append(bytesToClients.sum()).append(",\"fromServers\":").append(bytesFromServers.sum())
+				.append(",\"toServers\":").append(bytesToServers.sum()).append(",\"fromCache\":")
+				.append(bytesFromCache.sum()).append(",\"savedByCompression\":").append(bytesSavedByCompression.sum())
+				.append("},\"webSocketMessages\":").append(webSocketMessages.sum())
+				.append(",\"connections\":{\"active\":").append(activeConnections.get()).append(",\"accepted\":")
+				.append(acceptedConnections.sum());
+		if (dispatcher != null) {
+			json.append(",\"queued\":").append(dispatcher.getQueueDepth()).append(",\"busyThreads\":")
+					.append(dispatcher.getActiveCount());
+		}
+		return json.append("},\"log\":{\"dropped\":").append(AccessLog.getDropped()).append("}}").toString();
+	}
+
+	private static void appendHistogram(StringBuilder json, LatencyHistogram histogram) {
+		json.append("{\"count\":").append(histogram.getCount()).append(",\"mean\":").append(histogram.getMean())
+				.append(",\"p50\":").append(histogram.getPercentile(0.5)).append(",\"p90\":")
+				.append(histogram.getPercentile(0.9)).append(",\"p99\":").append(histogram.getPercentile(0.99))
+				.append(",\"max\":").append(histogram.getMax()).append('}');
+	}
+
+	private static double percent(long part, long whole) {
+		return whole == 0 ? 0 : 100.0 * part / whole;
+	}
+
+	/*
+	 * A stream which adds the bytes read through it to a counter.
+	 */
+	static class CountingInputStream extends FilterInputStream {
+
+		private LongAdder counter;
+
+		CountingInputStream(InputStream inputStream, LongAdder counter) {
+			super(inputStream);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if (read >= 0) {
+				counter.increment();
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read > 0) {
+				counter.add(read);
+			}
+			return read;
+		}
+	}
+
+	/*
+	 * A stream which adds the bytes written through it to a counter.
+	 */
+	static class CountingOutputStream extends FilterOutputStream {
+
+		private LongAdder counter;
+
+		CountingOutputStream(OutputStream outputStream, LongAdder counter) {
+			super(outputStream);
+			this.counter = counter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			counter.increment();
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			counter.add(length);
+		}
+	}
+}
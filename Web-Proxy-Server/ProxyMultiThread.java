@@ -12,9 +12,14 @@ The program should be able to:
 The program can be written in a programming language of your choice. However, you must ensure that you do not overuse any API or Library functionality that implements the majority of the work for you.
 */
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ProxyMultiThread implements Runnable {
 
@@ -23,33 +28,264 @@ public class ProxyMultiThread implements Runnable {
 	private static final String CACHED = "CACHED";
 	private static final String CLOSE = "CLOSE";
 	private static final String HELP = "HELP";
+	private static final String STATS = "STATS";
+	private static final String LOG = "LOG";
+	private static final String LIMIT = "LIMIT";
+	private static final String WEIGHT = "WEIGHT";
 
-	// Static local variables. Data structures to keep track of cached sites, blocked sites and threads.
-	private static HashMap<String, File> cachedMap;
-	private static HashMap<String, String> blockedMap;
-	private static ArrayList<Thread> threadList;
+	// Constant for the command line argument which selects the non-blocking mode
+	private static final String NIO = "NIO";
+
+	// Default port for the stats endpoint, which only listens on the loopback
+	// address. It can be overridden in the same way as the settings below, and
+	// a negative port turns it off.
+	private static final String STATS_PORT = "proxy.stats.port";
+	private static final int DEFAULT_STATS_PORT = 9998;
+
+	// Defaults for the settings of the connection dispatcher. Each can be
+	// overridden with the system property of the same name, e.g.
+	// -Dproxy.dispatch=virtual
+	private static final String DISPATCH_MODE = "proxy.dispatch";
+	private static final String DISPATCH_THREADS = "proxy.threads";
+	private static final String DISPATCH_QUEUE = "proxy.queue";
+	private static final String DISPATCH_REJECT = "proxy.reject";
+	private static final String DRAIN_TIMEOUT = "proxy.drainTimeout";
+	private static final int DEFAULT_THREADS = 200;
+	private static final int DEFAULT_QUEUE = 1000;
+	private static final long DEFAULT_DRAIN_TIMEOUT = 10000;
+
+	// Defaults for the byte budgets of the response cache, how long its pages
+	// may be served once stale, and how many of the most requested pages are
+	// refreshed before they expire, which can be overridden in the same way
+	private static final String CACHE_MEMORY = "proxy.cache.memoryBytes";
+	private static final String CACHE_MEMORY_ENTRY = "proxy.cache.maxMemoryEntryBytes";
+	private static final String CACHE_DISK = "proxy.cache.diskBytes";
+	private static final String CACHE_DEFAULT_TTL = "proxy.cache.defaultTtl";
+	private static final String CACHE_SEGMENT = "proxy.cache.segmentBytes";
+	private static final String CACHE_COMPRESS = "proxy.cache.compress";
+	private static final String CACHE_STALE_WHILE_REVALIDATE = "proxy.cache.staleWhileRevalidate";
+	private static final String CACHE_STALE_IF_ERROR = "proxy.cache.staleIfError";
+	private static final String CACHE_REFRESH_TOP = "proxy.cache.refreshTop";
+	private static final String CACHE_REFRESH_AHEAD = "proxy.cache.refreshAhead";
+	private static final long DEFAULT_CACHE_MEMORY = 32L * 1024 * 1024;
+	private static final long DEFAULT_CACHE_MEMORY_ENTRY = 256L * 1024;
+	private static final long DEFAULT_CACHE_DISK = 1024L * 1024 * 1024;
+	private static final long DEFAULT_CACHE_TTL = 60000;
+	private static final int DEFAULT_CACHE_SEGMENT = 1024 * 1024;
+	private static final long DEFAULT_CACHE_STALE_WHILE_REVALIDATE = 0;
+	private static final long DEFAULT_CACHE_STALE_IF_ERROR = 0;
+	private static final int DEFAULT_CACHE_REFRESH_TOP = 20;
+	private static final long DEFAULT_CACHE_REFRESH_AHEAD = 15000;
+
+	// Defaults for prefetching what HTML pages link to as they are cached, which
+	// can be overridden in the same way. The most links fetched for one page (0
+	// turns prefetching off), and the most fetched at once.
+	private static final String PREFETCH_PER_PAGE = "proxy.prefetch.perPage";
+	private static final String PREFETCH_THREADS = "proxy.prefetch.threads";
+	private static final int DEFAULT_PREFETCH_PER_PAGE = 0;
+	private static final int DEFAULT_PREFETCH_THREADS = 2;
+
+	// Defaults for the pool of keep-alive connections to servers, which can be
+	// overridden in the same way
+	private static final String POOL_MAX_PER_HOST = "proxy.pool.maxPerHost";
+	private static final String POOL_MAX_TOTAL = "proxy.pool.maxTotal";
+	private static final String POOL_IDLE_TIMEOUT = "proxy.pool.idleTimeout";
+	private static final int DEFAULT_POOL_MAX_PER_HOST = 8;
+	private static final int DEFAULT_POOL_MAX_TOTAL = 256;
+	private static final long DEFAULT_POOL_IDLE_TIMEOUT = 30000;
+
+	// Defaults for how long (in milliseconds) a HTTPS tunnel and a WebSocket may
+	// carry nothing either way before they are closed, which can be overridden
+	// in the same way (0 for no limit)
+	private static final String TUNNEL_IDLE_TIMEOUT = "proxy.tunnel.idleTimeout";
+	private static final String WEBSOCKET_IDLE_TIMEOUT = "proxy.webSocket.idleTimeout";
+	private static final long DEFAULT_TUNNEL_IDLE_TIMEOUT = 300000;
+	private static final long DEFAULT_WEBSOCKET_IDLE_TIMEOUT = 3600000;
+
+	// Defaults for how long host name lookups are cached, which can be
+	// overridden in the same way
+	private static final String DNS_TTL = "proxy.dns.ttl";
+	private static final String DNS_NEGATIVE_TTL = "proxy.dns.negativeTtl";
+	private static final long DEFAULT_DNS_TTL = 60000;
+	private static final long DEFAULT_DNS_NEGATIVE_TTL = 10000;
+
+	// Defaults for the access log, which can be overridden in the same way. The
+	// level is one of ERROR, WARN, INFO or DEBUG, and the sample rate is the
+	// fraction of requests logged. The file is rotated once it reaches the given
+	// size, keeping the given number of old files.
+	private static final String LOG_LEVEL = "proxy.log.level";
+	private static final String LOG_SAMPLE_RATE = "proxy.log.sampleRate";
+	private static final String LOG_FILE = "proxy.log.file";
+	private static final String LOG_MAX_BYTES = "proxy.log.maxBytes";
+	private static final String LOG_FILES = "proxy.log.files";
+	private static final String LOG_BUFFER = "proxy.log.buffer";
+	private static final String LOG_CONSOLE = "proxy.log.console";
+	private static final String DEFAULT_LOG_LEVEL = "INFO";
+	private static final String DEFAULT_LOG_FILE = "proxy.log";
+	private static final long DEFAULT_LOG_MAX_BYTES = 10L * 1024 * 1024;
+	private static final int DEFAULT_LOG_FILES = 5;
+	private static final int DEFAULT_LOG_BUFFER = 8192;
+
+	// Prefix of the rate limits, which can be set in the same way and changed
+	// from the console. Each is followed by one of RateLimiter.LIMITS, and is a
+	// number of requests or bytes a second. The default of 0 turns it off.
+	private static final String LIMIT_PREFIX = "proxy.limit.";
+
+	// Static local variables. Data structure to keep track of cached sites, the
+	// refresher which fetches stale and popular pages in the background, and the
+	// prefetcher which fetches what cached pages link to.
+	private static ResponseCache responseCache;
+	private static CacheRefresher cacheRefresher;
+	private static LinkPrefetcher linkPrefetcher;
+
+	// Static local variables. The blocked sites, as entered and compiled for
+	// matching. The list is never changed in place: blocking a site publishes a
+	// new copy, so requests read it without a lock and see each change whole.
+	private static volatile BlockList blockList = BlockList.compile(Collections.emptyList());
+
+	// Static local variables. The event loops which serve connections in
+	// non-blocking mode and relay HTTPS tunnels in both modes, and a counter to
+	// share tunnels out across them.
+	private static EventLoop[] eventLoops;
+	private static AtomicInteger nextEventLoop = new AtomicInteger();
+
+	// Static local variables. The cache of host name lookups, and the
+	// connections to servers kept open for reuse.
+	private static DnsCache dnsCache;
+	private static OriginConnectionPool originPool;
+
+	// Static local variables. The limits on the rate of requests and of bytes
+	// sent, per client, per server and in all.
+	private static RateLimiter rateLimiter = new RateLimiter();
 
 	/*
 	 * Static methods.
 	 */
-	// Get the cached page from the cache hashmap
-	public static File getCachedPage(String url) {
-		return cachedMap.get(url);
+	// Get the cached page from the response cache
+	public static CacheEntry getCachedPage(String url) {
+		return responseCache.get(url);
+	}
+
+	// Add a page to the response cache
+	public static void addCachedPage(CacheEntry entry) {
+		responseCache.put(entry);
+	}
+
+	// Get the sparse entry for a page of which only some ranges are cached
+	public static SparseCacheEntry getPartialPage(String url) {
+		return responseCache.getPartial(url);
+	}
+
+	// Record that a sparse entry now holds the whole page
+	public static void completedPage(CacheEntry entry) {
+		responseCache.completed(entry);
+	}
+
+	// Remove a page from the response cache, e.g. because it has changed
+	public static void removeCachedPage(CacheEntry entry) {
+		responseCache.remove(entry);
+	}
+
+	// Record whether the server said a stale cached page was still valid
+	public static void revalidatedPage(CacheEntry entry, boolean notModified, long expiresAt) {
+		responseCache.revalidated(entry, notModified, expiresAt);
+	}
+
+	// Record that a stale page is being served while it is refreshed in the
+	// background, and start the refresh
+	public static void servedStalePage(CacheEntry entry) {
+		cacheRefresher.servedStale(entry);
+	}
+
+	// Record that a stale page was served because the server could not be
+	// reached or failed
+	public static void servedStalePageOnError() {
+		cacheRefresher.servedOnError();
+	}
+
+	// Wrap the stream a page is being cached through, so that what it links to
+	// is prefetched as it passes, if it is HTML and prefetching is on
+	public static OutputStream scanForLinks(String url, String contentType, OutputStream cacheStream) {
+		return linkPrefetcher.scan(url, contentType, cacheStream);
+	}
+
+	// Join the fetch in progress for a page, or return null if the caller should
+	// fetch it
+	public static CompletableFuture<CacheEntry> joinFetch(String url) {
+		return responseCache.joinFetch(url);
+	}
+
+	// Finish fetching a page, passing the newly cached entry to any requests
+	// waiting for it, or null if it could not be cached
+	public static void finishFetch(String url, CacheEntry entry) {
+		responseCache.finishFetch(url, entry);
+	}
+
+	// Finish fetching a page which failed, passing the error to any requests
+	// waiting for it
+	public static void failFetch(String url, IOException error) {
+		responseCache.failFetch(url, error);
+	}
+
+	// Finish fetching a page which was cut off part way, so that any requests
+	// waiting for it join again
+	public static void abandonFetch(String url) {
+		responseCache.abandonFetch(url);
+	}
+
+	// Look up the address of a host without blocking
+	public static CompletableFuture<InetAddress> lookupHost(String host) {
+		return dnsCache.lookup(host);
+	}
+
+	// Look up the address of a host, waiting for the answer
+	public static InetAddress resolveHost(String host) throws UnknownHostException {
+		return dnsCache.resolve(host);
+	}
+
+	// Send a request to a server, over an idle connection if there is one, and
+	// read the head of the response
+	public static OriginResponse sendToOrigin(String host, int port, String request, boolean headRequest)
+			throws IOException {
+		return originPool.exchange(host, port, request, headRequest);
 	}
 
-	// Add a page to the cache hashmap
-	public static void addCachedPage(String urlString, File fileToCache) {
-		cachedMap.put(urlString, fileToCache);
+	// Give a connection to a server back once its response has been read, to be
+	// kept for reuse if the server allows it
+	public static void releaseOriginConnection(OriginConnection connection, boolean keepAlive) {
+		originPool.release(connection, keepAlive);
 	}
 
-	// Go through the blocked list to check whether the site is blocked
+	// Close a connection to a server which can no longer be used
+	public static void discardOriginConnection(OriginConnection connection) {
+		originPool.discard(connection);
+	}
+
+	// Return the next event loop in turn, to hand a tunnel over to
+	public static EventLoop nextEventLoop() {
+		return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+	}
+
+	// Return whether a client may make a request for the URL now, without
+	// going over a rate limit
+	public static boolean allowRequest(String client, String url) {
+		return rateLimiter.allowRequest(client, url);
+	}
+
+	// Start a transfer of a response to a client, kept to the rate limits
+	public static RateLimiter.Flow openFlow(String client, String url) {
+		return rateLimiter.openFlow(client, url);
+	}
+
+	// Check the URL against the compiled blocked list
 	public static boolean isBlocked(String url) {
-		for (String key : blockedMap.keySet()) {
-			if (url.contains(key)) {
-				return true;
-			}
-		}
-		return false;
+		return blockList.matches(url);
+	}
+
+	// Add a site to the blocked list. Changes are made one at a time, so that
+	// none is lost, but never hold up the requests reading the list.
+	public static synchronized void block(String rule) {
+		blockList = blockList.with(rule);
 	}
 
 	/*
@@ -57,27 +293,56 @@ public class ProxyMultiThread implements Runnable {
 	 */
 	public static void main(String[] args) {
 		ProxyMultiThread proxy = new ProxyMultiThread();
-		proxy.listen();
+		if (args.length > 0 && args[0].equalsIgnoreCase(NIO)) {
+			proxy.listenNonBlocking();
+		} else {
+			proxy.listen();
+		}
 	}
 
 	/*
 	 * Local variables. The port number for the browser to listen on, a server
-	 * socket to listen to this port, a boolean to declare whether the proxy is
-	 * running, and a seperate thread for the management console.
+	 * socket to listen to this port (and the channel it belongs to), a boolean to
+	 * declare whether the proxy is running, a seperate thread for the management
+	 * console, the dispatcher which runs each connection in blocking mode, and
+	 * the server for the stats endpoint.
 	 */
 	private int browserPort;
+	private ServerSocketChannel browserChannel;
 	private ServerSocket browserListener;
 	private volatile boolean running = true;
 	private Thread managementConsole;
+	private ConnectionDispatcher dispatcher;
+	private HttpServer statsServer;
 
 	/*
 	 * Constructor for the Proxy.
 	 */
 	public ProxyMultiThread() {
+		openAccessLog();
 		// initialise the data structures and client port number
-		cachedMap = new HashMap<>();
-		blockedMap = new HashMap<>();
-		threadList = new ArrayList<>();
+		responseCache = new ResponseCache(Long.getLong(CACHE_MEMORY, DEFAULT_CACHE_MEMORY),
+				Long.getLong(CACHE_MEMORY_ENTRY, DEFAULT_CACHE_MEMORY_ENTRY), Long.getLong(CACHE_DISK, DEFAULT_CACHE_DISK));
+		CacheControl.setDefaultTtl(Long.getLong(CACHE_DEFAULT_TTL, DEFAULT_CACHE_TTL));
+		CacheControl.setDefaultStaleWindows(
+				Long.getLong(CACHE_STALE_WHILE_REVALIDATE, DEFAULT_CACHE_STALE_WHILE_REVALIDATE),
+				Long.getLong(CACHE_STALE_IF_ERROR, DEFAULT_CACHE_STALE_IF_ERROR));
+		cacheRefresher = new CacheRefresher(responseCache,
+				Integer.getInteger(CACHE_REFRESH_TOP, DEFAULT_CACHE_REFRESH_TOP),
+				Long.getLong(CACHE_REFRESH_AHEAD, DEFAULT_CACHE_REFRESH_AHEAD));
+		linkPrefetcher = new LinkPrefetcher(responseCache,
+				Integer.getInteger(PREFETCH_PER_PAGE, DEFAULT_PREFETCH_PER_PAGE),
+				Integer.getInteger(PREFETCH_THREADS, DEFAULT_PREFETCH_THREADS));
+		SparseCacheEntry.setSegmentSize(Integer.getInteger(CACHE_SEGMENT, DEFAULT_CACHE_SEGMENT));
+		ContentEncoding.setEnabled(Boolean.parseBoolean(System.getProperty(CACHE_COMPRESS, "true")));
+		TunnelRelay.setIdleTimeouts(Long.getLong(TUNNEL_IDLE_TIMEOUT, DEFAULT_TUNNEL_IDLE_TIMEOUT),
+				Long.getLong(WEBSOCKET_IDLE_TIMEOUT, DEFAULT_WEBSOCKET_IDLE_TIMEOUT));
+		dnsCache = new DnsCache(Long.getLong(DNS_TTL, DEFAULT_DNS_TTL),
+				Long.getLong(DNS_NEGATIVE_TTL, DEFAULT_DNS_NEGATIVE_TTL));
+		originPool = new OriginConnectionPool(dnsCache, Integer.getInteger(POOL_MAX_PER_HOST, DEFAULT_POOL_MAX_PER_HOST),
+				Integer.getInteger(POOL_MAX_TOTAL, DEFAULT_POOL_MAX_TOTAL),
+				Long.getLong(POOL_IDLE_TIMEOUT, DEFAULT_POOL_IDLE_TIMEOUT));
+		setRateLimits();
 		browserPort = 9999;
 		// Spin off a seperate thread to handle the management console
 		managementConsole = new Thread(this);
@@ -87,9 +352,12 @@ public class ProxyMultiThread implements Runnable {
 		initializeBlockedSites();
 		// Start listening to the browser
 		try {
-			browserListener = new ServerSocket(browserPort);
+			browserChannel = ServerSocketChannel.open();
+			browserListener = browserChannel.socket();
+			browserListener.bind(new InetSocketAddress(browserPort));
 			System.out.println("Waiting for client on port " + browserListener.getLocalPort());
 			running = true;
+			startStatsEndpoint(Integer.getInteger(STATS_PORT, DEFAULT_STATS_PORT));
 		} catch (SocketException e) {
 			System.out.println("Socket Exception when connecting to client");
 		} catch (SocketTimeoutException e) {
@@ -103,41 +371,75 @@ public class ProxyMultiThread implements Runnable {
 	 * Non static methods.
 	 */
 
-	// Spin off a new thread for every new connection that the browser requests
+	// Hand every new connection that the browser requests to the dispatcher. The
+	// event loops run on their own threads and only relay HTTPS tunnels.
 	public void listen() {
+		try {
+			createEventLoops();
+			for (int i = 0; i < eventLoops.length; i++) {
+				new Thread(eventLoops[i], "event-loop-" + i).start();
+			}
+		} catch (IOException e) {
+			System.out.println("Error starting event loops");
+			return;
+		}
+		dispatcher = new ConnectionDispatcher(System.getProperty(DISPATCH_MODE, ConnectionDispatcher.POOL),
+				Integer.getInteger(DISPATCH_THREADS, DEFAULT_THREADS), Integer.getInteger(DISPATCH_QUEUE, DEFAULT_QUEUE),
+				System.getProperty(DISPATCH_REJECT, ConnectionDispatcher.REJECT_503));
 		while (running) {
 			try {
 				Socket socket = browserListener.accept();
-				Thread thread = new Thread(new ConnectionThread(socket));
-				threadList.add(thread);
-				thread.start();
-			} catch (SocketException e) {
+				dispatcher.dispatch(socket);
+			} catch (SocketException | ClosedChannelException e) {
 				System.out.println("Server closed");
 			} catch (IOException e) {
-				System.out.println("Error creating new Thread from ServerSocket.");
+				AccessLog.error("Error creating new Thread from ServerSocket.");
 			}
 		}
 	}
 
-	// Initalize the data structure for the cached sites by reading from the cache
-	// file. If a cache file does not exist, create one
-	private void initializeCachedSites() {
+	// Non-blocking alternative to listen(). Start one event loop per core. The
+	// first loop also accepts connections from the browser and hands each one to
+	// the loops in turn, where the request is served by a NioConnection.
+	public void listenNonBlocking() {
+		if (!browserListener.isBound()) {
+			System.out.println("Proxy is not listening on port " + browserPort);
+			return;
+		}
 		try {
-			File cachedSites = new File("cachedSites.txt");
-			if (!cachedSites.exists()) {
-				System.out.println("Creating new cache file");
-				cachedSites.createNewFile();
-			} else {
-				FileInputStream cachedFileStream = new FileInputStream(cachedSites);
-				ObjectInputStream cachedObjectStream = new ObjectInputStream(cachedFileStream);
-				cachedMap = (HashMap<String, File>) cachedObjectStream.readObject();
-				cachedFileStream.close();
-				cachedObjectStream.close();
+			createEventLoops();
+			int loopCount = eventLoops.length;
+			browserChannel.configureBlocking(false);
+			eventLoops[0].registerAcceptor(browserChannel, eventLoops);
+			System.out.println("Serving connections on " + loopCount + " event loop(s)");
+			for (int i = 1; i < loopCount; i++) {
+				new Thread(eventLoops[i], "event-loop-" + i).start();
 			}
+			eventLoops[0].run();
+		} catch (IOException e) {
+			System.out.println("Error starting event loops");
+		}
+	}
+
+	// Create one event loop per core
+	private void createEventLoops() throws IOException {
+		int loopCount = Runtime.getRuntime().availableProcessors();
+		eventLoops = new EventLoop[loopCount];
+		for (int i = 0; i < loopCount; i++) {
+			eventLoops[i] = new EventLoop(i);
+		}
+	}
+
+	// Initalize the data structure for the cached sites by replaying the cache
+	// index. If an index does not exist, one is created (and filled from the
+	// older cachedSites.txt file, if there is one).
+	private void initializeCachedSites() {
+		try {
+			int loaded = responseCache.open(new File("cacheIndex.log"), new File("cachedSites.txt"));
+			System.out.println("Loaded " + loaded + " cached sites");
+			cacheRefresher.start();
 		} catch (IOException e) {
 			System.out.println("Error loading previously cached sites file");
-		} catch (ClassNotFoundException e) {
-			System.out.println("Class not found loading in preivously cached sites file");
 		}
 	}
 
@@ -152,9 +454,10 @@ public class ProxyMultiThread implements Runnable {
 			} else {
 				FileInputStream blockedFileStream = new FileInputStream(blockedSitesTxtFile);
 				ObjectInputStream blockedObjectStream = new ObjectInputStream(blockedFileStream);
-				blockedMap = (HashMap<String, String>) blockedObjectStream.readObject();
+				HashMap<String, String> blockedMap = (HashMap<String, String>) blockedObjectStream.readObject();
 				blockedFileStream.close();
 				blockedObjectStream.close();
+				blockList = BlockList.compile(blockedMap.keySet());
 			}
 		} catch (IOException e) {
 			System.out.println("Error loading previously cached sites file");
@@ -163,46 +466,118 @@ public class ProxyMultiThread implements Runnable {
 		}
 	}
 
-	// Close the server. Write back to the cached and blocked files. Join the
-	// threads.
+	// Serve the metrics over HTTP on the loopback address, as text at /stats and
+	// as JSON at /stats.json
+	private void startStatsEndpoint(int port) {
+		if (port < 0) {
+			return;
+		}
+		try {
+			statsServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			statsServer.createContext("/stats", exchange -> {
+				boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+				sendStats(exchange, json ? "application/json" : "text/plain",
+						json ? ProxyMetrics.getJson(dispatcher) : ProxyMetrics.getReport(dispatcher));
+			});
+			statsServer.start();
+			System.out.println("Serving stats on http://localhost:" + port + "/stats");
+		} catch (IOException e) {
+			System.out.println("Error starting stats endpoint on port " + port);
+		}
+	}
+
+	// Send a stats response and close the exchange
+	private static void sendStats(HttpExchange exchange, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+		exchange.sendResponseHeaders(200, bytes.length);
+		OutputStream responseBody = exchange.getResponseBody();
+		responseBody.write(bytes);
+		responseBody.close();
+	}
+
+	// Start the access log with the settings given as system properties
+	private void openAccessLog() {
+		int level = AccessLog.parseLevel(System.getProperty(LOG_LEVEL, DEFAULT_LOG_LEVEL));
+		if (level < 0) {
+			System.out.println("Unknown log level " + System.getProperty(LOG_LEVEL) + ", using " + DEFAULT_LOG_LEVEL);
+			level = AccessLog.INFO;
+		}
+		double sampleRate = 1.0;
+		try {
+			sampleRate = Double.parseDouble(System.getProperty(LOG_SAMPLE_RATE, "1.0"));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid log sample rate " + System.getProperty(LOG_SAMPLE_RATE) + ", logging every request");
+		}
+		AccessLog.open(level, sampleRate, new File(System.getProperty(LOG_FILE, DEFAULT_LOG_FILE)),
+				Long.getLong(LOG_MAX_BYTES, DEFAULT_LOG_MAX_BYTES), Integer.getInteger(LOG_FILES, DEFAULT_LOG_FILES),
+				Integer.getInteger(LOG_BUFFER, DEFAULT_LOG_BUFFER),
+				Boolean.parseBoolean(System.getProperty(LOG_CONSOLE, "true")));
+	}
+
+	// Set the rate limits given as system properties
+	private void setRateLimits() {
+		for (String name : RateLimiter.LIMITS) {
+			String value = System.getProperty(LIMIT_PREFIX + name);
+			if (value == null) {
+				continue;
+			}
+			try {
+				rateLimiter.setLimit(name, Double.parseDouble(value));
+			} catch (NumberFormatException e) {
+				System.out.println("Invalid rate limit " + LIMIT_PREFIX + name + "=" + value + ", leaving it off");
+			}
+		}
+	}
+
+	// Close the server. Stop accepting connections and let those in flight
+	// finish, then write back to the cached and blocked files.
 	private void closeServer() {
 		System.out.println("Closing server");
 		running = false;
 		try {
-			FileOutputStream cachedFileStream = new FileOutputStream("cachedSites.txt");
-			ObjectOutputStream cachedObjectStream = new ObjectOutputStream(cachedFileStream);
-
-			cachedObjectStream.writeObject(cachedMap);
-			cachedObjectStream.close();
-			cachedFileStream.close();
+			System.out.println("Terminating connection");
+			browserListener.close();
+		} catch (Exception e) {
+			System.out.println("Exception closing proxy's server socket");
+			e.printStackTrace();
+		}
+		if (dispatcher != null) {
+			dispatcher.drain(Long.getLong(DRAIN_TIMEOUT, DEFAULT_DRAIN_TIMEOUT));
+		}
+		if (eventLoops != null) {
+			for (EventLoop eventLoop : eventLoops) {
+				if (eventLoop != null) {
+					eventLoop.shutdown();
+				}
+			}
+		}
+		if (statsServer != null) {
+			statsServer.stop(0);
+		}
+		cacheRefresher.close();
+		linkPrefetcher.close();
+		originPool.close();
+		dnsCache.close();
+		try {
+			responseCache.close();
 			System.out.println("Cached sites written");
 
 			FileOutputStream blockedFileStream = new FileOutputStream("blockedSites.txt");
 			ObjectOutputStream blockedObjectStream = new ObjectOutputStream(blockedFileStream);
+			// Saved in the same form as before, a map of each site to itself
+			HashMap<String, String> blockedMap = new HashMap<>();
+			for (String rule : blockList.getRules()) {
+				blockedMap.put(rule, rule);
+			}
 			blockedObjectStream.writeObject(blockedMap);
 			blockedObjectStream.close();
 			blockedFileStream.close();
 			System.out.println("Blocked site list saved");
-			try {
-				for (Thread thread : threadList) {
-					if (thread.isAlive()) {
-						thread.join();
-					}
-				}
-			} catch (InterruptedException e) {
-				System.out.println("Interrupted exception when closing server.");
-			}
-
 		} catch (IOException e) {
 			System.out.println("Error saving cache/blocked sites");
 		}
-		try {
-			System.out.println("Terminating connection");
-			browserListener.close();
-		} catch (Exception e) {
-			System.out.println("Exception closing proxy's server socket");
-			e.printStackTrace();
-		}
+		AccessLog.close();
 	}
 
 	// The functionality of the management console. Watch System.in and look out for
@@ -219,17 +594,32 @@ public class ProxyMultiThread implements Runnable {
 			switch (userInput) {
 				case BLOCKED:
 					System.out.println("\nCurrently Blocked Sites");
-					for (String key : blockedMap.keySet()) {
+					for (String key : blockList.getRules()) {
 						System.out.println(key);
 					}
 					System.out.println();
 					break;
 				case CACHED:
 					System.out.println("\nCurrently Cached Sites");
-					for (String key : cachedMap.keySet()) {
+					for (String key : responseCache.urls()) {
 						System.out.println(key);
 					}
 					System.out.println();
+					System.out.println(responseCache.getStats());
+					System.out.println(cacheRefresher.getStats());
+					System.out.println(linkPrefetcher.getStats());
+					System.out.println(originPool.getStats());
+					System.out.println(dnsCache.getStats());
+					System.out.println();
+					break;
+				case STATS:
+					System.out.println();
+					System.out.println(ProxyMetrics.getReport(dispatcher));
+					break;
+				case LIMIT:
+					System.out.println();
+					System.out.println(rateLimiter.getStats());
+					System.out.println();
 					break;
 				case CLOSE:
 					running = false;
@@ -237,17 +627,78 @@ public class ProxyMultiThread implements Runnable {
 					break;
 				case HELP:
 					System.out.println("Enter BLOCKED to view the list of blocked URLs.");
-					System.out.println("Enter CACHED to view the list of caches webpages");
+					System.out.println("Enter CACHED to view the list of caches webpages and the hit ratio of each cache tier");
+					System.out.println("Enter STATS to view request latencies, bytes transferred and connection counts");
+					System.out.println("Enter LOG followed by ERROR, WARN, INFO or DEBUG to change how much is logged");
+					System.out.println("Enter LIMIT to view the rate limits, or LIMIT followed by one of "
+							+ String.join(", ", RateLimiter.LIMITS) + " and a rate a second (0 for none) to set one");
+					System.out.println("Enter WEIGHT followed by a client address and a weight to change its share of "
+							+ RateLimiter.TOTAL_BYTES);
 					System.out.println("Enter CLOSE to close the proxy server.");
 					System.out.println("Enter HELP to see the list of possible commands");
 					System.out.println("Otherwise, enter a URL to add it to the blocked list.");
+					System.out.println("Start it with " + BlockList.DOMAIN_PREFIX + " to block a domain and all of its subdomains.");
 					break;
 				default:
-					blockedMap.put(userInput.toLowerCase(), userInput.toLowerCase());
+					if (userInput.startsWith(LOG + " ")) {
+						int level = AccessLog.parseLevel(userInput.substring(LOG.length()).trim());
+						if (level < 0) {
+							System.out.println("\nUnknown log level, enter ERROR, WARN, INFO or DEBUG\n");
+						} else {
+							AccessLog.setLevel(level);
+							System.out.println("\nLogging at level " + userInput.substring(LOG.length()).trim() + "\n");
+						}
+						break;
+					}
+					if (userInput.startsWith(LIMIT + " ")) {
+						setLimit(userInput.substring(LIMIT.length()).trim().split("\\s+"));
+						break;
+					}
+					if (userInput.startsWith(WEIGHT + " ")) {
+						setWeight(userInput.substring(WEIGHT.length()).trim().split("\\s+"));
+						break;
+					}
+					block(userInput);
 					System.out.println("\n" + userInput + " blocked successfully \n");
 					break;
 			}
 		}
 		terminalScanner.close();
 	}
-}
\ No newline at end of file
+
+	// Change a rate limit from the console, given its name and rate
+	private void setLimit(String[] words) {
+		try {
+			if (words.length == 2 && rateLimiter.setLimit(words[0], Double.parseDouble(words[1]))) {
+				System.out.println("\nRate limit changed\n");
+				System.out.println(rateLimiter.getStats());
+				System.out.println();
+				return;
+			}
+		} catch (NumberFormatException e) {
+		}
+		System.out.println("\nEnter LIMIT followed by one of " + String.join(", ", RateLimiter.LIMITS)
+				+ " and a rate a second\n");
+	}
+
+	// Change the weight of a client's share of the total rate from the console,
+	// given its address (or host name) and weight. The console reads it upper
+	// cased, so it is turned into the form clients are known by, e.g.
+	// fe80:0:0:0:0:0:0:1 for FE80::1, before the weight is set.
+	private void setWeight(String[] words) {
+		try {
+			double weight = words.length == 2 ? Double.parseDouble(words[1]) : 0;
+			if (weight > 0) {
+				String client = InetAddress.getByName(words[0]).getHostAddress();
+				rateLimiter.setWeight(client, weight);
+				System.out.println("\nWeight of " + client + " set to " + weight + "\n");
+				return;
+			}
+		} catch (NumberFormatException e) {
+		} catch (UnknownHostException e) {
+			System.out.println("\nUnknown client address " + words[0] + "\n");
+			return;
+		}
+		System.out.println("\nEnter WEIGHT followed by a client address and a weight above 0\n");
+	}
+}
@@ -0,0 +1,296 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiter {
+
+	/*
+	 * Constants for the names of the limits, as entered on the console and as
+	 * the last part of their system properties. The requests each client may
+	 * make and each server may be sent, the bytes each client may be sent and
+	 * each server's responses may carry, and the bytes all clients together may
+	 * be sent, each a second. A limit of 0 turns it off.
+	 */
+	public static final String CLIENT_REQUESTS = "clientRequests";
+	public static final String ORIGIN_REQUESTS = "originRequests";
+	public static final String CLIENT_BYTES = "clientBytes";
+	public static final String ORIGIN_BYTES = "originBytes";
+	public static final String TOTAL_BYTES = "totalBytes";
+	public static final String[] LIMITS = { CLIENT_REQUESTS, ORIGIN_REQUESTS, CLIENT_BYTES, ORIGIN_BYTES,
+			TOTAL_BYTES };
+
+	/*
+	 * Constants for the limiter. How many seconds of tokens a bucket holds,
+	 * which is the burst allowed after a quiet spell, how long after it last
+	 * sent anything a transfer still counts as active when the total is shared
+	 * out, how often the shares are worked out again (both in nanoseconds), and
+	 * how many buckets of each kind are kept before idle ones are dropped.
+	 */
+	private static final double BURST_SECONDS = 1;
+	private static final long ACTIVE_WINDOW = 1000000000L;
+	private static final long SHARE_INTERVAL = 100000000L;
+	private static final int MAX_BUCKETS = 10000;
+
+	/*
+	 * Variables for the limits, each a second (0 if off), and the weight of
+	 * each client's share of the total, for clients not given the default of 1.
+	 */
+	private volatile double clientRequests;
+	private volatile double originRequests;
+	private volatile double clientBytes;
+	private volatile double originBytes;
+	private volatile double totalBytes;
+	private ConcurrentHashMap<String, Double> weights = new ConcurrentHashMap<>();
+
+	/*
+	 * Variables for the buckets, by client address or server host, the bucket
+	 * for the total (null if it is off), and the transfers in progress. The
+	 * total is shared between the transfers which have sent lately in proportion
+	 * to their weights, so the sum of their weights is kept, worked out again at
+	 * most once per interval.
+	 */
+	private ConcurrentHashMap<String, TokenBucket> clientRequestBuckets = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String, TokenBucket> originRequestBuckets = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String, TokenBucket> clientByteBuckets = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String, TokenBucket> originByteBuckets = new ConcurrentHashMap<>();
+	private volatile TokenBucket totalBucket;
+	private Set<Flow> flows = ConcurrentHashMap.newKeySet();
+	private volatile double activeWeight;
+	private volatile long sharedAt;
+
+	/*
+	 * Counters for the limiter. Requests refused for each client and each
+	 * server going over its limit, and how often and for how long (in
+	 * nanoseconds) transfers were held back.
+	 */
+	private AtomicLong refusedForClients = new AtomicLong();
+	private AtomicLong refusedForOrigins = new AtomicLong();
+	private AtomicLong delays = new AtomicLong();
+	private AtomicLong delayedNanos = new AtomicLong();
+
+	// Set a limit by name, ignoring case. Buckets already in use change rate
+	// at once, and transfers in progress are held to the new limit from their
+	// next write. Return false if there is no limit of that name.
+	public boolean setLimit(String name, double perSecond) {
+		double limit = Math.max(0, perSecond);
+		long now = System.nanoTime();
+		if (name.equalsIgnoreCase(CLIENT_REQUESTS)) {
+			clientRequests = limit;
+			setRates(clientRequestBuckets, limit, now);
+		} else if (name.equalsIgnoreCase(ORIGIN_REQUESTS)) {
+			originRequests = limit;
+			setRates(originRequestBuckets, limit, now);
+		} else if (name.equalsIgnoreCase(CLIENT_BYTES)) {
+			clientBytes = limit;
+			setRates(clientByteBuckets, limit, now);
+		} else if (name.equalsIgnoreCase(ORIGIN_BYTES)) {
+			originBytes = limit;
+			setRates(originByteBuckets, limit, now);
+		} else if (name.equalsIgnoreCase(TOTAL_BYTES)) {
+			setTotal(limit, now);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	// Set the weight of a client's share of the total, relative to the default
+	// of 1. Transfers in progress take the new weight at once.
+	public void setWeight(String client, double weight) {
+		if (weight == 1) {
+			weights.remove(client);
+		} else {
+			weights.put(client, weight);
+		}
+		for (Flow flow : flows) {
+			if (flow.client.equals(client)) {
+				flow.weight = weight;
+			}
+		}
+		sharedAt = 0;
+	}
+
+	// Return whether a client may make a request for the given URL now, taking
+	// a token from the client's bucket and the server's if so
+	public boolean allowRequest(String client, String url) {
+		double limit = clientRequests;
+		long now = System.nanoTime();
+		if (limit > 0 && !bucket(clientRequestBuckets, client, limit, now).tryTake(now)) {
+			refusedForClients.incrementAndGet();
+			return false;
+		}
+		limit = originRequests;
+		if (limit > 0 && !bucket(originRequestBuckets, getHost(url), limit, now).tryTake(now)) {
+			refusedForOrigins.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	// Start a transfer to a client of the response to a request for the given
+	// URL. The caller reports each write to it and waits as it is told to, then
+	// closes it once the response has been sent.
+	public Flow openFlow(String client, String url) {
+		Flow flow = new Flow(client, getHost(url), weights.getOrDefault(client, 1.0));
+		flows.add(flow);
+		return flow;
+	}
+
+	// Return a summary of the limits and what they have held back
+	public String getStats() {
+		StringBuilder stats = new StringBuilder("Limits (per second, 0 is off):");
+		stats.append(' ').append(CLIENT_REQUESTS).append(' ').append(format(clientRequests));
+		stats.append(", ").append(ORIGIN_REQUESTS).append(' ').append(format(originRequests));
+		stats.append(", ").append(CLIENT_BYTES).append(' ').append(format(clientBytes));
+		stats.append(", ").append(ORIGIN_BYTES).append(' ').append(format(originBytes));
+		stats.append(", ").append(TOTAL_BYTES).append(' ').append(format(totalBytes));
+		stats.append(System.lineSeparator()).append("Weights: ").append(weights.isEmpty() ? "all 1" : weights);
+		stats.append(System.lineSeparator()).append("Requests refused: ").append(refusedForClients.get())
+				.append(" over a client's limit, ").append(refusedForOrigins.get()).append(" over a server's limit");
+		stats.append(System.lineSeparator()).append("Transfers held back: ").append(delays.get()).append(" times, ")
+				.append(TimeUnit.NANOSECONDS.toMillis(delayedNanos.get())).append(" ms in all, ").append(flows.size())
+				.append(" in progress");
+		return stats.toString();
+	}
+
+	// Return the host a request's URL is for, as the key of its server's buckets
+	static String getHost(String url) {
+		int start = url.indexOf("://");
+		start = start < 0 ? 0 : start + 3;
+		int end = start;
+		while (end < url.length() && url.charAt(end) != '/' && url.charAt(end) != ':' && url.charAt(end) != '?') {
+			end++;
+		}
+		return url.substring(start, end).toLowerCase();
+	}
+
+	// Return the bucket for a key, creating it full if there is none. Once there
+	// are too many, those which have filled up again, whose clients or servers
+	// have gone quiet, are dropped first.
+	private static TokenBucket bucket(ConcurrentHashMap<String, TokenBucket> buckets, String key, double rate,
+			long now) {
+		TokenBucket bucket = buckets.get(key);
+		if (bucket != null) {
+			return bucket;
+		}
+		if (buckets.size() >= MAX_BUCKETS) {
+			buckets.values().removeIf(idle -> idle.isFull(now));
+		}
+		return buckets.computeIfAbsent(key, k -> new TokenBucket(rate, rate * BURST_SECONDS));
+	}
+
+	// Change the total, creating its bucket full or dropping it as it is turned
+	// on or off
+	private synchronized void setTotal(double rate, long now) {
+		totalBytes = rate;
+		if (rate <= 0) {
+			totalBucket = null;
+		} else if (totalBucket == null) {
+			totalBucket = new TokenBucket(rate, rate * BURST_SECONDS);
+		} else {
+			totalBucket.setRate(rate, rate * BURST_SECONDS, now);
+		}
+	}
+
+	// Change the rate of every bucket of one kind
+	private static void setRates(ConcurrentHashMap<String, TokenBucket> buckets, double rate, long now) {
+		if (rate <= 0) {
+			buckets.clear();
+			return;
+		}
+		for (TokenBucket bucket : buckets.values()) {
+			bucket.setRate(rate, rate * BURST_SECONDS, now);
+		}
+	}
+
+	// Return the sum of the weights of the transfers which have sent lately,
+	// working it out again if it has not been for a while
+	private double getActiveWeight(long now) {
+		if (now - sharedAt >= SHARE_INTERVAL) {
+			double weight = 0;
+			for (Flow flow : flows) {
+				if (now - flow.sentAt < ACTIVE_WINDOW) {
+					weight += flow.weight;
+				}
+			}
+			activeWeight = weight;
+			sharedAt = now;
+		}
+		return activeWeight;
+	}
+
+	private static String format(double limit) {
+		return limit == Math.rint(limit) ? Long.toString((long) limit) : Double.toString(limit);
+	}
+
+	/*
+	 * A transfer to a client. Each write is taken from the client's bucket,
+	 * the server's bucket if the bytes came from the server rather than the
+	 * cache, the total's bucket, and the transfer's share of the total, which is
+	 * its weight's part of the weights of every transfer sending at the moment.
+	 * Transfers which have gone quiet give up their share, so the total is
+	 * always shared out in full between those with something to send.
+	 */
+	public class Flow {
+
+		private String client;
+		private String origin;
+		private volatile double weight;
+		private volatile long sentAt;
+		private TokenBucket share;
+
+		// A transfer has not sent anything yet, so does not count as active
+		private Flow(String client, String origin, double weight) {
+			this.client = client;
+			this.origin = origin;
+			this.weight = weight;
+			this.sentAt = System.nanoTime() - ACTIVE_WINDOW;
+		}
+
+		// Return whether any limit on bytes is set, so that large writes should be
+		// broken up for the limit to be kept evenly
+		public boolean isLimited() {
+			return clientBytes > 0 || originBytes > 0 || totalBytes > 0;
+		}
+
+		// Record that bytes were sent to the client, from the server or the cache,
+		// and return how long (in nanoseconds) to wait before sending more. Bytes
+		// the client sends through a tunnel are recorded in the same way, as not
+		// from the server.
+		public long sent(long bytes, boolean fromOrigin) {
+			long now = System.nanoTime();
+			sentAt = now;
+			long wait = 0;
+			double limit = clientBytes;
+			if (limit > 0) {
+				wait = bucket(clientByteBuckets, client, limit, now).take(bytes, now);
+			}
+			limit = originBytes;
+			if (limit > 0 && fromOrigin) {
+				wait = Math.max(wait, bucket(originByteBuckets, origin, limit, now).take(bytes, now));
+			}
+			TokenBucket total = totalBucket;
+			limit = totalBytes;
+			if (total != null && limit > 0) {
+				wait = Math.max(wait, total.take(bytes, now));
+				double rate = limit * weight / Math.max(weight, getActiveWeight(now));
+				if (share == null) {
+					share = new TokenBucket(rate, rate * BURST_SECONDS);
+				} else {
+					share.setRate(rate, rate * BURST_SECONDS, now);
+				}
+				wait = Math.max(wait, share.take(bytes, now));
+			}
+			if (wait > 0) {
+				delays.incrementAndGet();
+				delayedNanos.addAndGet(wait);
+			}
+			return wait;
+		}
+
+		// End the transfer, giving up its share of the total
+		public void close() {
+			flows.remove(this);
+		}
+	}
+}
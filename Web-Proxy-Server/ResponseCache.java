@@ -0,0 +1,518 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+public class ResponseCache {
+
+	/*
+	 * Constants for the cache. How far under budget a tier is brought once it
+	 * goes over, so that entries are evicted in batches rather than one on each
+	 * insertion. How many places in a tier's clock may be taken by entries which
+	 * have left the tier, beyond the number of entries, before they are cleared
+	 * out. How often (in seconds) the cache directory is swept for files no
+	 * entry refers to, and how long such a file must have been left alone
+	 * before it is deleted, so that bodies still being written are not. How
+	 * long (in milliseconds) requests for a page which could not be cached are
+	 * sent straight to the server rather than waiting on each other's fetches,
+	 * and how many such pages are remembered before those past that time are
+	 * cleared out.
+	 */
+	private static final double EVICTION_LOW_WATER = 0.9;
+	private static final int CLOCK_SLACK = 1024;
+	private static final long SWEEP_INTERVAL = 600;
+	private static final long ORPHAN_AGE = 60 * 60 * 1000;
+	private static final long PASS_TIME = 30000;
+	private static final int PASS_SLACK = 10000;
+
+	// What joinFetch() returns for a page which could not be cached lately
+	private static final CompletableFuture<CacheEntry> PASS = CompletableFuture.completedFuture(null);
+
+	/*
+	 * Variables for the cache. Every entry by URL, the fetches from the server
+	 * currently in progress by URL, when each page whose last fetch could not
+	 * be cached stops being fetched without coalescing, by URL, the index on disk which records every change
+	 * to the entries, the byte budgets of the memory
+	 * and disk tiers, the largest body which may be held in memory, and how many
+	 * bytes each tier currently holds, each tier's clock, and the thread which
+	 * sweeps the cache directory. A clock holds the tier's entries in the order
+	 * they were last passed over for eviction, each with when it had last been
+	 * used at the time. A lookup reads the map and records the use on the entry
+	 * without taking a lock. A disk hit which brings a body into memory reads
+	 * the file first, and only takes the lock to add it to the memory tier.
+	 * Changes to the tiers and their clocks are made while holding this
+	 * object's lock.
+	 */
+	private ConcurrentHashMap<String, CacheEntry> entries;
+	private ConcurrentHashMap<String, CompletableFuture<CacheEntry>> inFlight;
+	private ConcurrentHashMap<String, Long> passUntil;
+	private CacheIndex index;
+	private long maxMemoryBytes;
+	private long maxMemoryEntryBytes;
+	private long maxDiskBytes;
+	private volatile long memoryBytes;
+	private volatile long diskBytes;
+	private ArrayDeque<Map.Entry<Long, CacheEntry>> memoryClock = new ArrayDeque<>();
+	private ArrayDeque<Map.Entry<Long, CacheEntry>> diskClock = new ArrayDeque<>();
+	private ScheduledExecutorService sweeper;
+
+	/*
+	 * Counters for the cache. Lookups served from the memory tier, lookups served
+	 * from the disk tier, lookups which found nothing, stale entries checked with
+	 * the server, how many of those the server said were unchanged, and requests
+	 * which waited for another request's fetch instead of fetching themselves.
+	 */
+	private AtomicLong memoryHits = new AtomicLong();
+	private AtomicLong diskHits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong revalidations = new AtomicLong();
+	private AtomicLong notModified = new AtomicLong();
+	private AtomicLong coalesced = new AtomicLong();
+
+	/*
+	 * Constructor for the cache. Initalize the local variables.
+	 */
+	public ResponseCache(long maxMemoryBytes, long maxMemoryEntryBytes, long maxDiskBytes) {
+		this.entries = new ConcurrentHashMap<>();
+		this.inFlight = new ConcurrentHashMap<>();
+		this.passUntil = new ConcurrentHashMap<>();
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.maxMemoryEntryBytes = Math.min(maxMemoryEntryBytes, maxMemoryBytes);
+		this.maxDiskBytes = maxDiskBytes;
+	}
+
+	// Look up the entry for a URL, or return null if it is not cached (or only
+	// part of it is). A small entry found only on disk is moved into the memory
+	// tier so that the next request for it does not go to disk.
+	public CacheEntry get(String url) {
+		CacheEntry entry = entries.get(url);
+		if (entry == null || !entry.isComplete()) {
+			misses.incrementAndGet();
+			return null;
+		}
+		entry.touch();
+		if (entry.getBody() != null) {
+			memoryHits.incrementAndGet();
+			return entry;
+		}
+		if (!entry.getFile().exists()) {
+			remove(entry);
+			misses.incrementAndGet();
+			return null;
+		}
+		diskHits.incrementAndGet();
+		if (entry.getSize() <= maxMemoryEntryBytes) {
+			promote(entry);
+		}
+		return entry;
+	}
+
+	// Look up the sparse entry for a URL which is only partly cached, or return
+	// null if there is none
+	public SparseCacheEntry getPartial(String url) {
+		CacheEntry entry = entries.get(url);
+		if (!(entry instanceof SparseCacheEntry) || entry.isComplete()) {
+			return null;
+		}
+		if (!entry.getFile().exists()) {
+			remove(entry);
+			return null;
+		}
+		entry.touch();
+		return (SparseCacheEntry) entry;
+	}
+
+	// Open the index of the disk tier and load every entry it holds. The index
+	// is checksummed, so its entries are trusted without looking at their files,
+	// which keeps starting up quick however large the cache is. An entry whose
+	// file has gone is dropped when it is looked up, or by the next sweep. If
+	// there is a cache saved in the older serialized format, it is moved into
+	// the index. Return the number of entries loaded.
+	public int open(File indexFile, File legacyFile) throws IOException {
+		index = new CacheIndex(indexFile);
+		for (CacheEntry entry : index.replay().values()) {
+			insert(entry);
+		}
+		if (legacyFile.exists() && legacyFile.length() > 0) {
+			try {
+				loadLegacy(legacyFile);
+				legacyFile.renameTo(new File(legacyFile.getPath() + ".migrated"));
+			} catch (IOException | ClassNotFoundException | ClassCastException e) {
+				System.out.println("Error loading previously cached sites file");
+			}
+		}
+		index.startMaintenance(this::completeEntries);
+		sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "cache-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleWithFixedDelay(this::sweepOrphans, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.SECONDS);
+		return entries.size();
+	}
+
+	// Stop sweeping, then compact the index and flush it to disk
+	public void close() {
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+		}
+		if (index != null) {
+			index.close();
+		}
+	}
+
+	// Add an entry to the disk tier, replacing any previous entry for its URL,
+	// then evict the least recently used entries if the disk tier is over budget.
+	// A sparse entry is only recorded in the index once it is complete, since
+	// the index does not record which parts of it are cached.
+	public synchronized void put(CacheEntry entry) {
+		passUntil.remove(entry.getUrl());
+		if (index != null && entry.isComplete()) {
+			index.put(entry);
+		}
+		insert(entry);
+	}
+
+	// Record in the index that a sparse entry now holds the whole body
+	public synchronized void completed(CacheEntry entry) {
+		if (index != null && entries.get(entry.getUrl()) == entry) {
+			index.put(entry);
+		}
+	}
+
+	// Remove an entry which is no longer valid, and delete its file
+	public synchronized void remove(CacheEntry entry) {
+		if (entries.remove(entry.getUrl(), entry)) {
+			discard(entry, true);
+			if (index != null) {
+				index.remove(entry.getUrl());
+			}
+		}
+	}
+
+	// Record the server's answer to a conditional request for a stale entry. If
+	// the entry has not been modified, it is fresh again until the new expiry.
+	public void revalidated(CacheEntry entry, boolean wasNotModified, long expiresAt) {
+		revalidations.incrementAndGet();
+		if (wasNotModified) {
+			notModified.incrementAndGet();
+			entry.revalidated(expiresAt);
+			if (index != null) {
+				index.put(entry);
+			}
+		}
+	}
+
+	// Return whether a URL has an entry, whole or in part, or is being fetched.
+	// Unlike get(), this is not counted as a lookup.
+	public boolean contains(String url) {
+		return entries.containsKey(url) || inFlight.containsKey(url);
+	}
+
+	// Start fetching a URL which is not cached (or is stale). If no other request
+	// is fetching it, the caller is recorded as fetching it and null is returned.
+	// The caller must then call finishFetch(), failFetch() or abandonFetch() once
+	// it is done. Otherwise the fetch already in progress is returned, which
+	// completes with the new entry, or with null if nothing could be cached (the
+	// caller should then fetch the page itself, alongside any others waiting),
+	// or completes exceptionally if the server could not be reached or failed,
+	// or is cancelled if the fetch was abandoned part way (the caller should then
+	// join again, so that only one request fetches the page next). For a page
+	// which could not be cached lately, a fetch already completed with null is
+	// returned, so that requests for it do not wait on each other at all.
+	public CompletableFuture<CacheEntry> joinFetch(String url) {
+		Long until = passUntil.get(url);
+		if (until != null) {
+			if (System.currentTimeMillis() < until) {
+				return PASS;
+			}
+			passUntil.remove(url, until);
+		}
+		CompletableFuture<CacheEntry> existing = inFlight.putIfAbsent(url, new CompletableFuture<>());
+		if (existing != null) {
+			coalesced.incrementAndGet();
+		}
+		return existing;
+	}
+
+	// Finish the fetch for a URL started with joinFetch(), passing the entry now
+	// cached for it to every request waiting on it. If nothing could be cached,
+	// they are passed null, and requests for the page are sent straight to the
+	// server for a while.
+	public void finishFetch(String url, CacheEntry entry) {
+		CompletableFuture<CacheEntry> fetch = inFlight.remove(url);
+		if (entry == null) {
+			long now = System.currentTimeMillis();
+			if (passUntil.size() >= PASS_SLACK) {
+				passUntil.values().removeIf(until -> until <= now);
+			}
+			passUntil.put(url, now + PASS_TIME);
+		}
+		if (fetch != null) {
+			fetch.complete(entry);
+		}
+	}
+
+	// Finish the fetch for a URL started with joinFetch() which was cut off part
+	// way, by the client or the server, so that it is not known whether the page
+	// can be cached. Every request waiting on it joins again.
+	public void abandonFetch(String url) {
+		CompletableFuture<CacheEntry> fetch = inFlight.remove(url);
+		if (fetch != null) {
+			fetch.cancel(false);
+		}
+	}
+
+	// Finish the fetch for a URL started with joinFetch() which failed before
+	// any response came from the server, passing the error to every request
+	// waiting on it
+	public void failFetch(String url, IOException error) {
+		CompletableFuture<CacheEntry> fetch = inFlight.remove(url);
+		if (fetch != null) {
+			fetch.completeExceptionally(error);
+		}
+	}
+
+	// Return up to the given number of whole entries requested most often
+	// lately, most requested first. Each entry's count is halved as it is read,
+	// so that the ranking follows what has been requested since the last few
+	// calls rather than since the proxy started.
+	public List<CacheEntry> hottest(int count) {
+		List<Map.Entry<Integer, CacheEntry>> byRequests = new ArrayList<>();
+		for (CacheEntry entry : entries.values()) {
+			int requests = entry.decayRequests();
+			if (requests > 0 && entry.isComplete()) {
+				byRequests.add(new AbstractMap.SimpleImmutableEntry<>(requests, entry));
+			}
+		}
+		byRequests.sort(Map.Entry.<Integer, CacheEntry>comparingByKey().reversed());
+		List<CacheEntry> hottest = new ArrayList<>(Math.min(count, byRequests.size()));
+		for (Map.Entry<Integer, CacheEntry> entry : byRequests.subList(0, Math.min(count, byRequests.size()))) {
+			hottest.add(entry.getValue());
+		}
+		return hottest;
+	}
+
+	// Return the URLs of every cached entry
+	public Set<String> urls() {
+		return entries.keySet();
+	}
+
+	// Return a summary of the size of each tier and how often each served a hit,
+	// and how much space storing bodies compressed saves
+	public String getStats() {
+		long memory = memoryHits.get();
+		long disk = diskHits.get();
+		long miss = misses.get();
+		long lookups = Math.max(1, memory + disk + miss);
+		int compressed = 0;
+		long saved = 0;
+		for (CacheEntry entry : entries.values()) {
+			if (entry.getContentEncoding() != null && entry.getDecodedSize() >= 0) {
+				compressed++;
+				saved += entry.getDecodedSize() - entry.getSize();
+			}
+		}
+		return String.format(
+				"Entries: %d%nMemory tier: %d/%d bytes, %d hits (%.1f%%)%nDisk tier: %d/%d bytes, %d hits (%.1f%%)%nMisses: %d (%.1f%%)%nRevalidations: %d, %d not modified%nCoalesced requests: %d%nCompressed entries: %d, saving %d bytes",
+				entries.size(), memoryBytes, maxMemoryBytes, memory, 100.0 * memory / lookups, diskBytes,
+				maxDiskBytes, disk, 100.0 * disk / lookups, miss, 100.0 * miss / lookups, revalidations.get(),
+				notModified.get(), coalesced.get(), compressed, saved);
+	}
+
+	// Load the entries from a cache saved in the older serialized format. Entries
+	// whose file no longer exists are dropped. Files saved by the oldest format,
+	// which kept no validators or expiry, are loaded as stale entries to be
+	// checked with the server before use.
+	@SuppressWarnings("unchecked")
+	private void loadLegacy(File indexFile) throws IOException, ClassNotFoundException {
+		FileInputStream cachedFileStream = new FileInputStream(indexFile);
+		ObjectInputStream cachedObjectStream = new ObjectInputStream(cachedFileStream);
+		HashMap<String, Object> savedMap = (HashMap<String, Object>) cachedObjectStream.readObject();
+		cachedObjectStream.close();
+		cachedFileStream.close();
+		for (Map.Entry<String, Object> saved : savedMap.entrySet()) {
+			CacheEntry entry;
+			if (saved.getValue() instanceof CacheEntry) {
+				entry = (CacheEntry) saved.getValue();
+				entry.touch();
+			} else {
+				entry = new CacheEntry(saved.getKey(), (File) saved.getValue(), null, null, 0);
+			}
+			if (entry.getFile().exists()) {
+				put(entry);
+			}
+		}
+	}
+
+	// Add an entry to the map and the disk tier's total without recording it in
+	// the index, deleting the file of any previous version it replaces, then
+	// evict entries if the disk tier is over budget
+	private synchronized void insert(CacheEntry entry) {
+		CacheEntry previous = entries.put(entry.getUrl(), entry);
+		if (previous != null) {
+			discard(previous, !previous.getFile().equals(entry.getFile()));
+		}
+		diskBytes += entry.getSize();
+		diskClock.add(new AbstractMap.SimpleImmutableEntry<>(entry.getLastAccess(), entry));
+		evictDisk();
+	}
+
+	// Read an entry's body into memory, then evict bodies which have not been
+	// used lately if the memory tier is over budget. The file is read without
+	// holding the lock, so that other requests are not held up by the disk.
+	private void promote(CacheEntry entry) {
+		if (entry.getBody() != null) {
+			return;
+		}
+		byte[] body;
+		try {
+			body = Files.readAllBytes(entry.getFile().toPath());
+		} catch (IOException e) {
+			return;
+		}
+		synchronized (this) {
+			if (entry.getBody() != null || !isCurrent(entry) || body.length != entry.getSize()) {
+				return;
+			}
+			entry.setBody(body);
+			memoryBytes += body.length;
+			memoryClock.add(new AbstractMap.SimpleImmutableEntry<>(entry.getLastAccess(), entry));
+			evictMemory();
+		}
+	}
+
+	// Take an entry which has left the map off both tiers' totals, deleting its
+	// file if asked to. Its places in the clocks are left for the hands to pass,
+	// unless entries which have left take up too many places.
+	private void discard(CacheEntry entry, boolean deleteFile) {
+		byte[] body = entry.getBody();
+		if (body != null) {
+			memoryBytes -= body.length;
+			entry.setBody(null);
+		}
+		diskBytes -= entry.getSize();
+		if (deleteFile) {
+			entry.getFile().delete();
+		}
+		if (memoryClock.size() > entries.size() + CLOCK_SLACK) {
+			memoryClock.removeIf(hand -> !inMemory(hand.getValue()));
+		}
+		if (diskClock.size() > entries.size() + CLOCK_SLACK) {
+			diskClock.removeIf(hand -> !isCurrent(hand.getValue()));
+		}
+	}
+
+	// Drop bodies from memory until the memory tier is back under its low water
+	// mark. Their files stay in the disk tier.
+	private void evictMemory() {
+		if (memoryBytes <= maxMemoryBytes) {
+			return;
+		}
+		long target = (long) (maxMemoryBytes * EVICTION_LOW_WATER);
+		CacheEntry entry;
+		while (memoryBytes > target && (entry = nextVictim(memoryClock, this::inMemory)) != null) {
+			byte[] body = entry.getBody();
+			entry.setBody(null);
+			memoryBytes -= body.length;
+		}
+	}
+
+	// Remove entries, and delete their files, until the disk tier is back under
+	// its low water mark
+	private void evictDisk() {
+		if (diskBytes <= maxDiskBytes) {
+			return;
+		}
+		long target = (long) (maxDiskBytes * EVICTION_LOW_WATER);
+		CacheEntry entry;
+		while (diskBytes > target && (entry = nextVictim(diskClock, this::isCurrent)) != null) {
+			entries.remove(entry.getUrl(), entry);
+			discard(entry, true);
+			if (index != null) {
+				index.remove(entry.getUrl());
+			}
+		}
+	}
+
+	// Move a clock's hand on to the next entry to evict from its tier and return
+	// it, or null if the tier is empty. An entry used since the hand last passed
+	// it is given another round instead, unless every entry has had one during
+	// this call, so that constant use of a few entries cannot keep the hand going
+	// round. Places held by entries no longer in the tier are dropped as the
+	// hand passes them.
+	private static CacheEntry nextVictim(ArrayDeque<Map.Entry<Long, CacheEntry>> clock,
+			Predicate<CacheEntry> inTier) {
+		int secondChances = clock.size();
+		Map.Entry<Long, CacheEntry> hand;
+		while ((hand = clock.poll()) != null) {
+			CacheEntry entry = hand.getValue();
+			if (!inTier.test(entry)) {
+				continue;
+			}
+			long lastAccess = entry.getLastAccess();
+			if (lastAccess != hand.getKey() && secondChances-- > 0) {
+				clock.add(new AbstractMap.SimpleImmutableEntry<>(lastAccess, entry));
+				continue;
+			}
+			return entry;
+		}
+		return null;
+	}
+
+	// Return whether an entry is the one in the map for its URL
+	private boolean isCurrent(CacheEntry entry) {
+		return entries.get(entry.getUrl()) == entry;
+	}
+
+	// Return whether an entry is in the map and its body in the memory tier
+	private boolean inMemory(CacheEntry entry) {
+		return entry.getBody() != null && isCurrent(entry);
+	}
+
+	// Delete the files in the cache directory which no entry refers to, such as
+	// bodies whose entries were lost in a crash, and temporary files left by
+	// writes which never finished. Drop the entries whose files were not found,
+	// since the index is trusted on startup without looking at them.
+	private void sweepOrphans() {
+		Map<Path, CacheEntry> liveEntries = new HashMap<>();
+		for (CacheEntry entry : entries.values()) {
+			liveEntries.put(CacheLayout.normalize(entry.getFile()), entry);
+		}
+		Set<Path> missingFiles = new HashSet<>(liveEntries.keySet());
+		try {
+			int deleted = CacheLayout.sweep(missingFiles, ORPHAN_AGE);
+			if (deleted > 0) {
+				AccessLog.info("Swept " + deleted + " orphaned files from the cache directory");
+			}
+		} catch (IOException | UncheckedIOException e) {
+			AccessLog.error("Error sweeping the cache directory");
+			return;
+		}
+		int dropped = 0;
+		for (Path path : missingFiles) {
+			CacheEntry entry = liveEntries.get(path);
+			if (!entry.getFile().exists() && isCurrent(entry)) {
+				remove(entry);
+				dropped++;
+			}
+		}
+		if (dropped > 0) {
+			AccessLog.info("Dropped " + dropped + " cached pages whose files have gone");
+		}
+	}
+
+	// Return every entry which holds its whole body, for compacting the index
+	private List<CacheEntry> completeEntries() {
+		List<CacheEntry> complete = new ArrayList<>();
+		for (CacheEntry entry : entries.values()) {
+			if (entry.isComplete()) {
+				complete.add(entry);
+			}
+		}
+		return complete;
+	}
+}
@@ -0,0 +1,102 @@
+import java.io.*;
+import java.util.BitSet;
+
+public class SparseCacheEntry extends CacheEntry {
+
+	private static final long serialVersionUID = 1L;
+
+	// The size of the segments a new entry is split into, which can be changed
+	// with setSegmentSize()
+	private static volatile int defaultSegmentSize = 1024 * 1024;
+
+	/*
+	 * Variables for the entry. Its file is as long as the whole body, but only
+	 * the segments which have been fetched hold anything. The size of each
+	 * segment (the last may be shorter), how many there are, and which of them
+	 * have been fetched.
+	 */
+	private int segmentSize;
+	private int segmentCount;
+	private BitSet segments;
+
+	/*
+	 * Constructor for the entry. The file must already be as long as the body.
+	 */
+	private SparseCacheEntry(String url, File file, String etag, String lastModified, long expiresAt) {
+		super(url, file, etag, lastModified, expiresAt);
+		this.segmentSize = defaultSegmentSize;
+		this.segmentCount = (int) ((getSize() + segmentSize - 1) / segmentSize);
+		this.segments = new BitSet(segmentCount);
+	}
+
+	// Create an empty entry for a body of the given length, with a file of that
+	// length to fill in
+	public static SparseCacheEntry create(String url, File file, long length, String etag, String lastModified,
+			long expiresAt) throws IOException {
+		try (RandomAccessFile sparseFile = new RandomAccessFile(file, "rw")) {
+			sparseFile.setLength(length);
+		}
+		return new SparseCacheEntry(url, file, etag, lastModified, expiresAt);
+	}
+
+	// Set the size of the segments new entries are split into
+	public static void setSegmentSize(int bytes) {
+		defaultSegmentSize = bytes;
+	}
+
+	// Return the size of the segments new entries are split into
+	public static int getDefaultSegmentSize() {
+		return defaultSegmentSize;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	// Return the segment holding a byte of the body
+	public int segmentOf(long position) {
+		return (int) (position / segmentSize);
+	}
+
+	// Return the first byte of a segment
+	public long segmentStart(int segment) {
+		return (long) segment * segmentSize;
+	}
+
+	// Return the last byte of a segment
+	public long segmentEnd(int segment) {
+		return Math.min(segmentStart(segment + 1), getSize()) - 1;
+	}
+
+	@Override
+	public synchronized boolean isComplete() {
+		return segments.cardinality() == segmentCount;
+	}
+
+	// Return the first segment from the first to the last given which has not
+	// been fetched, or -1 if they all have
+	public synchronized int firstMissing(int fromSegment, int toSegment) {
+		int missing = segments.nextClearBit(fromSegment);
+		return missing <= toSegment ? missing : -1;
+	}
+
+	// Return the last segment from the first to the last given which has not
+	// been fetched, or -1 if they all have
+	public synchronized int lastMissing(int fromSegment, int toSegment) {
+		int missing = segments.previousClearBit(toSegment);
+		return missing >= fromSegment ? missing : -1;
+	}
+
+	// Return whether every byte from the first to the last given has been
+	// fetched
+	public boolean hasRange(long start, long end) {
+		return firstMissing(segmentOf(start), segmentOf(end)) < 0;
+	}
+
+	// Record that a segment has been fetched and written to the file. Return
+	// whether the entry now holds the whole body.
+	public synchronized boolean addSegment(int segment) {
+		segments.set(segment);
+		return segments.cardinality() == segmentCount;
+	}
+}
@@ -0,0 +1,68 @@
+public class TokenBucket {
+
+	/*
+	 * Variables for the bucket. How many tokens it gains a second and the most
+	 * it can hold, how many it holds now (negative while it is in debt), and
+	 * when (from System.nanoTime()) they were last counted.
+	 */
+	private double rate;
+	private double capacity;
+	private double tokens;
+	private long updatedAt;
+
+	/*
+	 * Constructor for the bucket, which starts full. Initalize the local
+	 * variables.
+	 */
+	public TokenBucket(double rate, double capacity) {
+		this.rate = rate;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.updatedAt = System.nanoTime();
+	}
+
+	// Take a token if there is one. Return false, taking nothing, if the bucket
+	// is empty.
+	public synchronized boolean tryTake(long now) {
+		refill(now);
+		if (tokens < 1) {
+			return false;
+		}
+		tokens--;
+		return true;
+	}
+
+	// Take the given number of tokens, going into debt if there are not enough,
+	// and return how long (in nanoseconds) to wait before the debt is paid off.
+	// Taking what has already been used, then waiting, lets a caller send
+	// whatever it has to hand without first asking how much it may send.
+	public synchronized long take(long amount, long now) {
+		refill(now);
+		tokens -= amount;
+		return tokens >= 0 || rate <= 0 ? 0 : (long) Math.ceil(-tokens / rate * 1000000000.0);
+	}
+
+	// Change how many tokens the bucket gains a second and the most it can hold.
+	// Tokens gained so far are counted at the old rate.
+	public synchronized void setRate(double rate, double capacity, long now) {
+		refill(now);
+		this.rate = rate;
+		this.capacity = capacity;
+		tokens = Math.min(tokens, capacity);
+	}
+
+	// Return whether the bucket has filled up again, so nothing has been taken
+	// from it lately
+	public synchronized boolean isFull(long now) {
+		refill(now);
+		return tokens >= capacity;
+	}
+
+	// Add the tokens gained since they were last counted
+	private void refill(long now) {
+		if (now > updatedAt) {
+			tokens = Math.min(capacity, tokens + (now - updatedAt) * rate / 1000000000.0);
+			updatedAt = now;
+		}
+	}
+}
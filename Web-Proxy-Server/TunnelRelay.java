@@ -0,0 +1,373 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+
+public class TunnelRelay implements ChannelHandler {
+
+	// How long (in milliseconds) a HTTPS tunnel and a WebSocket may go without
+	// carrying a byte either way before they are closed (0 for no limit), which
+	// can be changed with setIdleTimeouts()
+	private static volatile long tunnelIdleTimeout = 300000;
+	private static volatile long webSocketIdleTimeout = 3600000;
+
+	/*
+	 * Variables for the tunnel. The event loop which runs it, the channels to the
+	 * browser and the server, and a pooled direct buffer for each direction, kept
+	 * in fill mode.
+	 */
+	private EventLoop eventLoop;
+	private SocketChannel clientChannel;
+	private SocketChannel serverChannel;
+	private ByteBuffer toServer;
+	private ByteBuffer toClient;
+
+	/*
+	 * Variables for the state of the tunnel. Which side has stopped sending,
+	 * which side has been told there is nothing more to come, whether reading
+	 * from each side is paused to keep to a rate limit, when (System.nanoTime())
+	 * a byte was last read or written either way, and whether the tunnel has
+	 * been closed.
+	 */
+	private boolean clientEof;
+	private boolean serverEof;
+	private boolean serverOutputShut;
+	private boolean clientOutputShut;
+	private boolean clientPaused;
+	private boolean serverPaused;
+	private long lastActiveAt;
+	private boolean closed;
+
+	/*
+	 * Variables for the metrics of the tunnel. When the request which opened it
+	 * was read (0 if it is not to be recorded), when the tunnel was taken over,
+	 * the client, method, URL, status and outcome for the access log, and the
+	 * bytes the tunnel has carried from each side.
+	 */
+	private long startedAt;
+	private long firstByteAt;
+	private String clientAddress;
+	private String method = "CONNECT";
+	private String requestUrl;
+	private int status = 200;
+	private int outcome = ProxyMetrics.TUNNEL;
+	private long bytesFromClient;
+	private long bytesFromServer;
+
+	/*
+	 * Variables for a WebSocket. The frames passing from each side, which are
+	 * scanned as they pass (both null for a HTTPS tunnel, whose bytes are
+	 * opaque).
+	 */
+	private WebSocketFrames clientFrames;
+	private WebSocketFrames serverFrames;
+
+	/*
+	 * Variables for the rate limits. The transfer the bytes passing each way are
+	 * counted against (null if the tunnel is not limited).
+	 */
+	private RateLimiter.Flow flow;
+
+	/*
+	 * Constructor for the tunnel. Take buffers from the pool and fill them with
+	 * anything already waiting to be sent in each direction (e.g. the 200
+	 * Connection established response, or bytes the browser sent early). The
+	 * pending buffers are read from their position to their limit.
+	 */
+	public TunnelRelay(EventLoop eventLoop, SocketChannel clientChannel, SocketChannel serverChannel,
+			ByteBuffer pendingToClient, ByteBuffer pendingToServer) {
+		this.eventLoop = eventLoop;
+		this.clientChannel = clientChannel;
+		this.serverChannel = serverChannel;
+		toClient = BufferPool.acquire();
+		toServer = BufferPool.acquire();
+		if (pendingToClient != null) {
+			toClient.put(pendingToClient);
+		}
+		if (pendingToServer != null) {
+			toServer.put(pendingToServer);
+		}
+	}
+
+	// Record and log the tunnel when it closes. Its latency is measured from the
+	// given System.nanoTime() at which its CONNECT request was read.
+	public void setRequest(String clientAddress, String requestUrl, long startedAt) {
+		this.clientAddress = clientAddress;
+		this.requestUrl = requestUrl;
+		this.startedAt = startedAt;
+	}
+
+	// Relay a WebSocket, opened by a GET whose Upgrade the server accepted, rather
+	// than a HTTPS tunnel. Its frames are counted as they pass, and it is closed
+	// as soon as both sides have sent a Close frame. The bytes waiting for the
+	// browser start with the server's response head, of the size given, and
+	// anything after it (and everything waiting for the server) is frames.
+	public void setWebSocket(int responseHeadSize) {
+		method = "GET";
+		status = 101;
+		outcome = ProxyMetrics.WEBSOCKET;
+		clientFrames = new WebSocketFrames();
+		serverFrames = new WebSocketFrames();
+		serverFrames.scan(toClient, responseHeadSize, toClient.position());
+		clientFrames.scan(toServer, 0, toServer.position());
+	}
+
+	// Keep the bytes passing through the tunnel each way to the rate limits of
+	// the given transfer, which the tunnel closes when it closes. Bytes the
+	// client sends count against its own limits, but not the server's.
+	public void setFlow(RateLimiter.Flow flow) {
+		this.flow = flow;
+	}
+
+	// Set how long a HTTPS tunnel and a WebSocket may be idle for before they
+	// are closed, in milliseconds (0 for no limit)
+	public static void setIdleTimeouts(long tunnelMillis, long webSocketMillis) {
+		tunnelIdleTimeout = tunnelMillis;
+		webSocketIdleTimeout = webSocketMillis;
+	}
+
+	// Take over both channels on the event loop. This must run on the loop's own
+	// thread, so callers on other threads should pass it to EventLoop.execute().
+	public void start() {
+		firstByteAt = System.nanoTime();
+		lastActiveAt = firstByteAt;
+		try {
+			attach(clientChannel);
+			attach(serverChannel);
+			updateInterest();
+			long idleTimeout = clientFrames != null ? webSocketIdleTimeout : tunnelIdleTimeout;
+			if (idleTimeout > 0) {
+				checkIdle(TimeUnit.MILLISECONDS.toNanos(idleTimeout));
+			}
+		} catch (IOException e) {
+			AccessLog.warn("Error starting " + getKind() + " to " + requestUrl);
+			close();
+		}
+	}
+
+	// Relay whatever the ready channel allows. Data read from one side is written
+	// straight to the other where possible, rather than waiting for the next
+	// select.
+	@Override
+	public void handle(SelectionKey key) {
+		try {
+			if (key.channel() == clientChannel) {
+				if (key.isReadable()) {
+					clientEof = relay(clientChannel, toServer, serverChannel) || clientEof;
+				}
+				if (!closed && key.isValid() && key.isWritable()) {
+					flush(toClient, clientChannel);
+				}
+			} else {
+				if (key.isReadable()) {
+					serverEof = relay(serverChannel, toClient, clientChannel) || serverEof;
+				}
+				if (!closed && key.isValid() && key.isWritable()) {
+					flush(toServer, serverChannel);
+				}
+			}
+			passOnHalfClose();
+			if ((serverOutputShut && clientOutputShut) || isClosingHandshakeDone()) {
+				close();
+			} else {
+				updateInterest();
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+		}
+	}
+
+	// Close both channels and return the buffers to the pool
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			clientChannel.close();
+		} catch (IOException e) {
+		}
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+		}
+		BufferPool.release(toClient);
+		BufferPool.release(toServer);
+		toClient = null;
+		toServer = null;
+		if (flow != null) {
+			flow.close();
+		}
+		if (startedAt != 0) {
+			long finishedAt = System.nanoTime();
+			ProxyMetrics.recordRequest(outcome, startedAt, firstByteAt, finishedAt);
+			AccessLog.access(clientAddress, method, requestUrl, ProxyMetrics.getOutcomeName(outcome), status,
+					startedAt, firstByteAt, finishedAt);
+		}
+		if (clientFrames != null) {
+			ProxyMetrics.addWebSocketMessages(clientFrames.getMessages() + serverFrames.getMessages());
+		}
+		logThroughput();
+		ProxyMetrics.connectionClosed();
+	}
+
+	// Log how much the tunnel carried each way, and how fast, over its life
+	private void logThroughput() {
+		double seconds = Math.max(1, System.nanoTime() - firstByteAt) / 1000000000.0;
+		StringBuilder message = new StringBuilder(getKind()).append(" to ").append(requestUrl).append(" closed after ")
+				.append(String.format("%.1fs: %d bytes up (%.1f KB/s), %d bytes down (%.1f KB/s)", seconds,
+						bytesFromClient, bytesFromClient / seconds / 1024, bytesFromServer,
+						bytesFromServer / seconds / 1024));
+		if (clientFrames != null) {
+			message.append(String.format(", %d messages up in %d frames, %d messages down in %d frames",
+					clientFrames.getMessages(), clientFrames.getFrames(), serverFrames.getMessages(),
+					serverFrames.getFrames()));
+		}
+		AccessLog.debug(message.toString());
+	}
+
+	// Close the tunnel if it has carried nothing either way for the given time
+	// (in nanoseconds). Otherwise check again once that long has passed since
+	// it last did. Neither side may have closed its connection, e.g. a peer
+	// which has gone away without a FIN, so nothing else would free the
+	// channels and buffers.
+	private void checkIdle(long idleTimeout) {
+		if (closed) {
+			return;
+		}
+		long idle = System.nanoTime() - lastActiveAt;
+		if (idle >= idleTimeout) {
+			AccessLog.debug(getKind() + " to " + requestUrl + " idle, closing it.");
+			close();
+		} else {
+			eventLoop.schedule(() -> checkIdle(idleTimeout), idleTimeout - idle);
+		}
+	}
+
+	// Return what the tunnel carries, for the log
+	private String getKind() {
+		return clientFrames != null ? "WebSocket" : "HTTPS tunnel";
+	}
+
+	// Register a channel with the loop, or take it over if it is already
+	// registered (as it is when handed over by a NioConnection)
+	private void attach(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		SelectionKey key = channel.keyFor(eventLoop.getSelector());
+		if (key == null) {
+			channel.register(eventLoop.getSelector(), 0, this);
+		} else {
+			key.attach(this);
+		}
+	}
+
+	// Read from one side into its buffer, then write as much as possible to the
+	// other side. The frames of a WebSocket are scanned on the way through.
+	// Return true if the reading side has stopped sending.
+	private boolean relay(SocketChannel from, ByteBuffer buffer, SocketChannel to) throws IOException {
+		if (!buffer.hasRemaining()) {
+			return false;
+		}
+		int start = buffer.position();
+		int read = from.read(buffer);
+		if (read > 0) {
+			lastActiveAt = System.nanoTime();
+			if (from == clientChannel) {
+				ProxyMetrics.bytesFromClients.add(read);
+				bytesFromClient += read;
+			} else {
+				ProxyMetrics.bytesFromServers.add(read);
+				bytesFromServer += read;
+			}
+			throttle(from, read);
+			if (clientFrames != null) {
+				(from == clientChannel ? clientFrames : serverFrames).scan(buffer, start, start + read);
+			}
+		}
+		flush(buffer, to);
+		return read < 0;
+	}
+
+	// Record bytes read from a side against the rate limits and, if they have
+	// gone over, stop reading from that side until the limit allows
+	private void throttle(SocketChannel from, int read) {
+		boolean fromServer = from == serverChannel;
+		long wait = flow == null ? 0 : flow.sent(read, fromServer);
+		if (wait > 0) {
+			if (fromServer) {
+				serverPaused = true;
+			} else {
+				clientPaused = true;
+			}
+			eventLoop.schedule(() -> {
+				if (fromServer) {
+					serverPaused = false;
+				} else {
+					clientPaused = false;
+				}
+				if (!closed) {
+					updateInterest();
+				}
+			}, wait);
+		}
+	}
+
+	// Write as much of a buffer as the channel will take
+	private void flush(ByteBuffer buffer, SocketChannel to) throws IOException {
+		if (buffer.position() == 0) {
+			return;
+		}
+		buffer.flip();
+		int written = to.write(buffer);
+		if (written > 0) {
+			lastActiveAt = System.nanoTime();
+		}
+		(to == clientChannel ? ProxyMetrics.bytesToClients : ProxyMetrics.bytesToServers).add(written);
+		buffer.compact();
+	}
+
+	// Once one side has stopped sending and everything it sent has been passed
+	// on, shut the output to the other side so it sees the end of the stream
+	// while still being able to send in the opposite direction.
+	private void passOnHalfClose() throws IOException {
+		if (clientEof && !serverOutputShut && toServer.position() == 0) {
+			serverChannel.shutdownOutput();
+			serverOutputShut = true;
+		}
+		if (serverEof && !clientOutputShut && toClient.position() == 0) {
+			clientChannel.shutdownOutput();
+			clientOutputShut = true;
+		}
+	}
+
+	// Return whether each side of a WebSocket has sent a Close frame and each has
+	// been passed on in full, so nothing more may be sent either way
+	private boolean isClosingHandshakeDone() {
+		return clientFrames != null && clientFrames.isClosed() && serverFrames.isClosed() && toServer.position() == 0
+				&& toClient.position() == 0;
+	}
+
+	// Read from a side only while there is room to pass on what it sends, and
+	// wait to write to a side only while there is something for it. A full buffer
+	// therefore pushes back on whichever side is sending too fast, as does a
+	// pause for a rate limit.
+	private void updateInterest() {
+		int clientOps = 0;
+		int serverOps = 0;
+		if (!clientEof && !clientPaused && toServer.hasRemaining()) {
+			clientOps |= SelectionKey.OP_READ;
+		}
+		if (!serverEof && !serverPaused && toClient.hasRemaining()) {
+			serverOps |= SelectionKey.OP_READ;
+		}
+		if (toClient.position() > 0) {
+			clientOps |= SelectionKey.OP_WRITE;
+		}
+		if (toServer.position() > 0) {
+			serverOps |= SelectionKey.OP_WRITE;
+		}
+		clientChannel.keyFor(eventLoop.getSelector()).interestOps(clientOps);
+		serverChannel.keyFor(eventLoop.getSelector()).interestOps(serverOps);
+	}
+}
@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+
+public class WebSocketFrames {
+
+	/*
+	 * Constants for the frame format. The opcode of a Close frame (opcodes from
+	 * it upwards are control frames, which may come between the frames of a
+	 * message), and the longest a frame header can be: two bytes, an extended
+	 * length of up to eight, and a four byte mask.
+	 */
+	private static final int CLOSE = 0x8;
+	private static final int MAX_HEADER_SIZE = 14;
+
+	/*
+	 * Variables for the frame being scanned. Its header as read so far and how
+	 * long the header is (2 until its first two bytes say otherwise), how much
+	 * of its payload is still to pass, and whether it is a Close frame.
+	 */
+	private byte[] header = new byte[MAX_HEADER_SIZE];
+	private int headerRead;
+	private int headerSize = 2;
+	private long payloadRemaining;
+	private boolean closeFrame;
+
+	/*
+	 * Variables for the frames seen so far. How many frames and whole messages
+	 * have passed, whether a Close frame has passed in full, and whether the
+	 * stream stopped looking like frames, in which case scanning stops.
+	 */
+	private long frames;
+	private long messages;
+	private boolean closed;
+	private boolean broken;
+
+	// Scan bytes passing in one direction, which must be given in the order they
+	// were sent. Only the frame headers are read, the payloads are skipped.
+	public void scan(ByteBuffer buffer, int start, int end) {
+		int position = start;
+		while (position < end && !broken) {
+			if (payloadRemaining > 0) {
+				int skipped = (int) Math.min(payloadRemaining, end - position);
+				position += skipped;
+				payloadRemaining -= skipped;
+				if (payloadRemaining == 0) {
+					endFrame();
+				}
+				continue;
+			}
+			header[headerRead++] = buffer.get(position++);
+			if (headerRead == 2) {
+				int length = header[1] & 0x7f;
+				headerSize = 2 + ((header[1] & 0x80) != 0 ? 4 : 0) + (length == 126 ? 2 : length == 127 ? 8 : 0);
+			}
+			if (headerRead >= 2 && headerRead == headerSize) {
+				startFrame();
+			}
+		}
+	}
+
+	// Return the number of frames which have started to pass
+	public long getFrames() {
+		return frames;
+	}
+
+	// Return the number of data messages which have passed in full
+	public long getMessages() {
+		return messages;
+	}
+
+	// Return whether a Close frame has passed in full, after which no more
+	// frames may be sent in this direction
+	public boolean isClosed() {
+		return closed;
+	}
+
+	// The header of a frame has been read. Count the frame (and the message, if
+	// the frame ends one) and work out how long its payload is.
+	private void startFrame() {
+		int opcode = header[0] & 0x0f;
+		boolean fin = (header[0] & 0x80) != 0;
+		int length = header[1] & 0x7f;
+		if (length == 126) {
+			payloadRemaining = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+		} else if (length == 127) {
+			payloadRemaining = 0;
+			for (int i = 2; i < 10; i++) {
+				payloadRemaining = (payloadRemaining << 8) | (header[i] & 0xff);
+			}
+		} else {
+			payloadRemaining = length;
+		}
+		if (payloadRemaining < 0) {
+			// The most significant bit must be 0, so these are not frames
+			broken = true;
+			return;
+		}
+		frames++;
+		if (fin && opcode < CLOSE) {
+			messages++;
+		}
+		closeFrame = opcode == CLOSE;
+		headerRead = 0;
+		headerSize = 2;
+		if (payloadRemaining == 0) {
+			endFrame();
+		}
+	}
+
+	// The payload of a frame has passed in full
+	private void endFrame() {
+		if (closeFrame) {
+			closed = true;
+			closeFrame = false;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Matches URLs, most of which are not blocked, against blocklists of several
+ * sizes. One URL in 16 is for a domain which may be blocked.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(2)
+public class BlockListBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	public int rules;
+
+	private Predicate<String> blockList;
+	private String[] urls = new String[1024];
+	private int count;
+
+	@Setup
+	public void setUp() throws Exception {
+		blockList = Fixtures.get("blockList", rules);
+		Random random = new Random(42);
+		for (int i = 0; i < urls.length; i++) {
+			int n = random.nextInt(rules * 4);
+			urls[i] = i % 16 == 0 ? "http://ads" + (n & ~1) + ".example.com/banner.gif"
+					: "http://www.site" + n + ".com/articles/" + n + "/page.html?ref=home";
+		}
+	}
+
+	@Benchmark
+	public boolean isBlocked() {
+		return blockList.test(urls[count++ & 1023]);
+	}
+}
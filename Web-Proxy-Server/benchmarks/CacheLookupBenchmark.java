@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Looks up pages held in the memory tier of the cache, and pages which are not
+ * cached.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(2)
+public class CacheLookupBenchmark {
+
+	private static final int CACHED_PAGES = 10000;
+
+	private File directory;
+	private ToLongFunction<String> cache;
+	private String[] urls = new String[CACHED_PAGES];
+	private String[] uncachedUrls = new String[1024];
+	private int count;
+
+	@Setup
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("proxy-benchmark").toFile();
+		File[] files = new File[CACHED_PAGES];
+		for (int i = 0; i < CACHED_PAGES; i++) {
+			urls[i] = "http://www.site" + i + ".com/index.html";
+			files[i] = new File(directory, i + ".html");
+			try (FileOutputStream out = new FileOutputStream(files[i])) {
+				out.write(new byte[512]);
+			}
+		}
+		for (int i = 0; i < uncachedUrls.length; i++) {
+			uncachedUrls[i] = "http://uncached.com/" + i;
+		}
+		cache = Fixtures.get("cacheLookup", urls, files);
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public long cacheLookupHit() {
+		return cache.applyAsLong(urls[count++ % CACHED_PAGES]);
+	}
+
+	@Benchmark
+	public long cacheLookupMiss() {
+		return cache.applyAsLong(uncachedUrls[count++ & 1023]);
+	}
+}
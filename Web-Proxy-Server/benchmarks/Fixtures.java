@@ -0,0 +1,31 @@
+package benchmarks;
+
+import java.lang.reflect.*;
+
+/*
+ * Calls the static methods of BenchmarkFixtures, which hands the benchmarks the
+ * parts of the proxy they measure. It is in the default package with the rest
+ * of the proxy, so it cannot be named here and is loaded by name instead. This
+ * is only done while a benchmark is set up, never while it is measured.
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	// Call the fixture method of the given name with the given arguments, and
+	// return what it returns. An exception it throws is thrown on as it is.
+	@SuppressWarnings("unchecked")
+	static <T> T get(String name, Object... args) throws Exception {
+		for (Method method : Class.forName("BenchmarkFixtures").getMethods()) {
+			if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+				try {
+					return (T) method.invoke(null, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+		throw new NoSuchMethodException("BenchmarkFixtures." + name);
+	}
+}
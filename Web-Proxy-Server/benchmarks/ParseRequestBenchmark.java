@@ -0,0 +1,51 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Parses request heads of the kinds browsers send, in turn, and reads what the
+ * proxy reads from each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(2)
+public class ParseRequestBenchmark {
+
+	private static final String HEADERS = "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 "
+			+ "Firefox/115.0\r\nAccept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+			+ "Accept-Language: en-GB,en;q=0.5\r\nAccept-Encoding: gzip, deflate\r\n"
+			+ "Proxy-Connection: keep-alive\r\n\r\n";
+	private static final String[] REQUESTS = {
+			"GET http://www.example.com/index.html HTTP/1.1\r\nHost: www.example.com\r\n" + HEADERS,
+			"CONNECT www.example.com:443 HTTP/1.1\r\nHost: www.example.com:443\r\n" + HEADERS,
+			"GET http://images.example.org/photos/2019/summer/beach.jpg?size=large HTTP/1.1\r\n"
+					+ "Host: images.example.org\r\n" + HEADERS,
+			"GET www.example.net/ HTTP/1.0\r\nHost: www.example.net\r\n" + HEADERS };
+
+	private ToLongFunction<ByteBuffer> parser;
+	private ByteBuffer[] buffers = new ByteBuffer[REQUESTS.length];
+	private int count;
+
+	@Setup
+	public void setUp() throws Exception {
+		parser = Fixtures.get("requestParser");
+		int maxHeadSize = Fixtures.get("maxHeadSize");
+		for (int i = 0; i < REQUESTS.length; i++) {
+			buffers[i] = ByteBuffer.allocate(maxHeadSize);
+			buffers[i].put(REQUESTS[i].getBytes(StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	@Benchmark
+	public long parseRequest() {
+		return parser.applyAsLong(buffers[count++ & 3]);
+	}
+}
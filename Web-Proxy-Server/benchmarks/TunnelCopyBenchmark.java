@@ -0,0 +1,80 @@
+package benchmarks;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Sends data through a TunnelRelay running on its own event loop, between two
+ * pairs of loopback connections. Each operation writes one chunk in at the
+ * browser's end, while another thread reads it all out at the server's. The
+ * throughput is the chunk size divided by the time per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(2)
+public class TunnelCopyBenchmark {
+
+	@Param({ "16384" })
+	public int chunkBytes;
+
+	private SocketChannel browser;
+	private SocketChannel server;
+	private Closeable tunnel;
+	private Thread reader;
+	private ByteBuffer chunk;
+
+	@Setup
+	public void setUp() throws Exception {
+		SocketChannel[] browserSide = connectedPair();
+		SocketChannel[] serverSide = connectedPair();
+		browser = browserSide[0];
+		server = serverSide[1];
+		tunnel = Fixtures.get("tunnel", browserSide[1], serverSide[0]);
+		reader = new Thread(() -> {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(chunkBytes * 4);
+			try {
+				while (server.read(buffer) >= 0) {
+					buffer.clear();
+				}
+			} catch (IOException e) {
+			}
+		}, "benchmark-tunnel-reader");
+		reader.start();
+		chunk = ByteBuffer.allocateDirect(chunkBytes);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		browser.close();
+		reader.join(5000);
+		server.close();
+		tunnel.close();
+	}
+
+	@Benchmark
+	public int tunnelCopy() throws IOException {
+		chunk.clear();
+		while (chunk.hasRemaining()) {
+			browser.write(chunk);
+		}
+		return chunk.position();
+	}
+
+	// Return both ends of a loopback connection
+	private static SocketChannel[] connectedPair() throws IOException {
+		try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+			SocketChannel accepted = listener.accept();
+			return new SocketChannel[] { client, accepted };
+		}
+	}
+}